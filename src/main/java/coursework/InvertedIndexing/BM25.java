@@ -0,0 +1,20 @@
+package coursework.InvertedIndexing;
+
+/**
+ * BM25 term scoring shared by the index build (per-term max scores) and ranked retrieval.
+ * Both sides must use the same parameters for the max scores to be valid upper bounds.
+ */
+public final class BM25 {
+    public static final float K1 = 0.9f;
+    public static final float B = 0.4f;
+
+    private BM25() {}
+
+    public static float idf(int numDocs, int df) {
+        return (float) Math.log(1.0 + (numDocs - df + 0.5) / (df + 0.5));
+    }
+
+    public static float score(int tf, int docLength, float avgDocLength, float idf) {
+        return idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * docLength / avgDocLength));
+    }
+}
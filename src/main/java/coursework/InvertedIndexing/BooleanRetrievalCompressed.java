@@ -5,11 +5,7 @@ import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.fs.PathFilter;
-import org.apache.hadoop.fs.FileStatus;
-import org.apache.hadoop.io.MapFile;
-import org.apache.hadoop.io.Text;
-import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
 import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -21,10 +17,9 @@ import tl.lin.data.array.ArrayListWritable;
 import tl.lin.data.pair.PairOfInts;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.DataInputStream;
-import java.io.ByteArrayInputStream;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
@@ -32,65 +27,537 @@ import java.util.Stack;
 import java.util.TreeSet;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class BooleanRetrievalCompressed extends Configured implements Tool {
-    private List<MapFile.Reader> indices = new ArrayList<>();
-    private int numReducers;
+    // A query token: a quoted phrase or a single term/operator
+    private static final Pattern QUERY_TOKEN = Pattern.compile("\"([^\"]*)\"|\\S+");
+    // Rough heap cost of a decoded posting (PairOfInts plus its slot in the list) and of a list
+    private static final int POSTING_BYTES = 32;
+    private static final int LIST_BYTES = 64;
+
+    // Segments of the index in docno order; a non-segmented index is a single segment
+    private List<IndexSegment> segments = new ArrayList<>();
+    // Needed (with the dictionary's score bounds) for ranked retrieval only
+    private DocumentLengths documentLengths;
     private FSDataInputStream collection;
+    // Set when the index was built with -docstore: lines are then fetched from the segments' stores
+    private boolean useDocumentStore;
     private Stack<Set<Integer>> stack;
+    // Fetches posting lists of a query in parallel; readers are locked per partition
+    private ExecutorService executor;
+    // Decoded posting lists by term, bounded by their heap size; head terms stay in memory
+    private WeightedLruCache<String, ArrayListWritable<PairOfInts>> postingsCache;
+    // Result sets of Boolean queries by normalized query, bounded by the number of queries
+    private WeightedLruCache<String, Set<Integer>> resultCache;
 
     private BooleanRetrievalCompressed() {}
 
-    private void initialize(String indexPath, String collectionPath, FileSystem fs) throws IOException {
-        PathFilter pathFilter = new PathFilter() {
-            @Override
-            public boolean accept (Path path) {
-                return !path.getName().contains("SUCCESS") && path.getName().startsWith("part-r-");
-            }
-        };
-        // Need to sort files by pathname in lexicographical order
-        FileStatus[] statuses = fs.listStatus(new Path(indexPath), pathFilter);
-        Arrays.sort(statuses, new Comparator<FileStatus>() {
-            @Override
-            public int compare(FileStatus o1, FileStatus o2) {
-                return o1.getPath().toString().compareTo(o2.getPath().toString());
-            }
-        });
-        for (FileStatus status: statuses){
-            MapFile.Reader index = new MapFile.Reader(status.getPath(), fs.getConf());
-            indices.add(index);
-            System.out.println("Add index " + status.getPath());
+    private void initialize(String indexPath, String collectionPath, int cacheBlocks, FileSystem fs)
+            throws IOException {
+        List<Path> segmentPaths = IndexSegment.segments(fs, new Path(indexPath));
+        if (segmentPaths.isEmpty()) {
+            segmentPaths.add(new Path(indexPath));
         }
-        numReducers = indices.size();
-        System.out.println("The number of reducers detected: " + numReducers);
 
-        collection = fs.open(new Path(collectionPath));
+        boolean hasDictionaries = true;
+        boolean hasDocumentLengths = true;
+        useDocumentStore = true;
+        for (Path segmentPath : segmentPaths) {
+            IndexSegment segment = IndexSegment.open(fs, segmentPath, cacheBlocks);
+            segments.add(segment);
+            hasDictionaries &= segment.hasDictionary();
+            hasDocumentLengths &= DocumentLengths.exists(fs, segmentPath);
+            useDocumentStore &= segment.getDocumentStore() != null;
+        }
+        System.out.println("The number of segments detected: " + segments.size());
+
+        if (hasDictionaries && hasDocumentLengths) {
+            documentLengths = DocumentLengths.read(fs, segmentPaths);
+            System.out.println("Loaded lengths of " + documentLengths.getNumDocs() + " documents");
+        }
+        if (!useDocumentStore) {
+            collection = fs.open(new Path(collectionPath));
+        }
         stack = new Stack<>();
     }
 
+    /**
+     * Splits an RPN query into tokens. A quoted phrase such as {@code "outrageous fortune"} is one
+     * operand, kept with its quotes. Tokens are normalized: terms are lowercased like the indexed
+     * tokens, and phrases are single-spaced, so equivalent queries join into the same cache key.
+     */
+    private static List<String> parseQuery(String q) {
+        List<String> tokens = new ArrayList<>();
+        Matcher m = QUERY_TOKEN.matcher(q);
+        while (m.find()) {
+            String token = m.group();
+            if (isPhrase(token)) {
+                tokens.add("\"" + String.join(" ", phraseTerms(token)).toLowerCase() + "\"");
+            } else if (token.equals("AND") || token.equals("OR")) {
+                tokens.add(token);
+            } else {
+                tokens.add(token.toLowerCase());
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isPhrase(String token) {
+        return token.length() > 1 && token.startsWith("\"") && token.endsWith("\"");
+    }
+
+    private static String[] phraseTerms(String token) {
+        return token.substring(1, token.length() - 1).trim().split("\\s+");
+    }
+
     private void runQuery(String q) throws IOException {
-        String[] terms = q.split("\\s+");
+        List<String> terms = parseQuery(q);
+        String key = String.join(" ", terms);
+        Set<Integer> set = resultCache.get(key);
+        if (set == null) {
+            set = evaluate(terms);
+            resultCache.put(key, set, 1);
+        }
+
+        for (Integer i : set) {
+            String line = fetchLine(i);
+            System.out.println(i + "\t" + line);
+        }
+    }
+
+    private Set<Integer> evaluate(List<String> terms) throws IOException {
+        List<String> queryTerms = new ArrayList<>();
+        for (String t : terms) {
+            if (isPhrase(t)) {
+                queryTerms.addAll(Arrays.asList(phraseTerms(t)));
+            } else if (!t.equals("AND") && !t.equals("OR")) {
+                queryTerms.add(t);
+            }
+        }
+        // Start all fetches before evaluating, so latency tracks the slowest fetch rather than the sum.
+        Map<String, Future<ArrayListWritable<PairOfInts>>> postings = prefetchPostings(queryTerms);
 
         for (String t : terms) {
             if (t.equals("AND")) {
                 performAND();
             } else if (t.equals("OR")) {
                 performOR();
+            } else if (isPhrase(t)) {
+                stack.push(fetchPhraseDocumentSet(phraseTerms(t), postings));
             } else {
-                pushTerm(t);
+                pushTerm(postings.get(t));
             }
         }
 
-        Set<Integer> set = stack.pop();
+        return stack.pop();
+    }
 
-        for (Integer i : set) {
-            String line = fetchLine(i);
-            System.out.println(i + "\t" + line);
+    /**
+     * Ranks documents containing any query term by BM25 and prints the top k. Boolean operators in the
+     * query are ignored. Uses MaxScore pruning: lists are ordered by their max score, and once the
+     * summed max scores of the lowest lists cannot lift a document into the top k, those lists are
+     * only probed for documents found in the remaining (essential) lists.
+     *
+     * Lists are read compressed and decoded by their cursors only as far as the query gets: a probe
+     * into a non-essential list skips over the postings before the target without scoring them, and
+     * over the whole list of a segment whose last docno is below the target without reading it.
+     */
+    private void runRankedQuery(String q, int k) throws IOException {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String t : parseQuery(q)) {
+            if (isPhrase(t)) {
+                terms.addAll(Arrays.asList(phraseTerms(t)));
+            } else if (!t.equals("AND") && !t.equals("OR")) {
+                terms.add(t);
+            }
+        }
+
+        // df summed over segments; each segment's score bound comes from its largest tf and shortest
+        // document length, under the statistics of the whole index.
+        int numDocs = documentLengths.getNumDocs();
+        float avgLength = documentLengths.getAverageLength();
+        List<PostingCursor> cursorList = new ArrayList<>();
+        long totalPostings = 0;
+        for (String term : terms) {
+            int df = 0;
+            List<IndexSegment> termSegments = new ArrayList<>();
+            List<TermDictionary.Entry> termEntries = new ArrayList<>();
+            for (IndexSegment segment : segments) {
+                TermDictionary.Entry entry = segment.getEntry(term);
+                if (entry != null) {
+                    df += entry.getDf();
+                    termSegments.add(segment);
+                    termEntries.add(entry);
+                }
+            }
+            if (df == 0) {
+                System.out.println("The key " + term + " is not found in index.");
+                continue;
+            }
+            float idf = BM25.idf(numDocs, df);
+            float maxScore = 0.0f;
+            for (TermDictionary.Entry entry : termEntries) {
+                maxScore = Math.max(maxScore, entry.upperBound(avgLength, idf));
+            }
+            // Starts reading the first list, so that the terms are fetched in parallel.
+            cursorList.add(new PostingCursor(termSegments, termEntries, idf, maxScore));
+            totalPostings += df;
+        }
+        PostingCursor[] cursors = cursorList.toArray(new PostingCursor[0]);
+        for (PostingCursor cursor : cursors) {
+            cursor.next();
         }
+        Arrays.sort(cursors, new Comparator<PostingCursor>() {
+            @Override
+            public int compare(PostingCursor o1, PostingCursor o2) {
+                return Float.compare(o1.maxScore, o2.maxScore);
+            }
+        });
+        // upperBounds[i]: the best score a document can get from lists 0..i
+        float[] upperBounds = new float[cursors.length];
+        for (int i = 0; i < cursors.length; i++) {
+            upperBounds[i] = (i == 0 ? 0 : upperBounds[i - 1]) + cursors[i].maxScore;
+        }
+
+        PriorityQueue<ScoredDocument> topK = new PriorityQueue<>(k + 1);
+        float threshold = 0.0f;
+        int firstEssential = 0;
+        long scored = 0;
+        while (true) {
+            int docno = Integer.MAX_VALUE;
+            for (int i = firstEssential; i < cursors.length; i++) {
+                if (cursors[i].hasNext()) {
+                    docno = Math.min(docno, cursors[i].docno());
+                }
+            }
+            if (docno == Integer.MAX_VALUE) {
+                break;
+            }
+
+            int length = documentLengths.get(docno);
+            float score = 0.0f;
+            for (int i = firstEssential; i < cursors.length; i++) {
+                if (cursors[i].hasNext() && cursors[i].docno() == docno) {
+                    score += BM25.score(cursors[i].tf(), length, avgLength, cursors[i].idf);
+                    cursors[i].next();
+                }
+            }
+            for (int i = firstEssential - 1; i >= 0 && score + upperBounds[i] > threshold; i--) {
+                if (cursors[i].advance(docno)) {
+                    score += BM25.score(cursors[i].tf(), length, avgLength, cursors[i].idf);
+                }
+            }
+            scored++;
+
+            if (topK.size() < k || score > threshold) {
+                topK.add(new ScoredDocument(docno, score));
+                if (topK.size() > k) {
+                    topK.poll();
+                }
+                if (topK.size() == k) {
+                    threshold = topK.peek().score;
+                    while (firstEssential < cursors.length && upperBounds[firstEssential] <= threshold) {
+                        firstEssential++;
+                    }
+                }
+            }
+        }
+
+        long decoded = 0;
+        for (PostingCursor cursor : cursors) {
+            decoded += cursor.decoded;
+        }
+        List<ScoredDocument> results = new ArrayList<>(topK);
+        results.sort(null);
+        for (int i = results.size() - 1; i >= 0; i--) {
+            ScoredDocument doc = results.get(i);
+            System.out.println(String.format("%d\t%.4f\t%s", doc.docno, doc.score, fetchLine(doc.docno)));
+        }
+        System.out.println("\nscored " + scored + " documents, decoded " + decoded + " of " + totalPostings
+                + " postings");
     }
 
-    private void pushTerm(String term) throws IOException {
-        stack.push(fetchDocumentSet(term));
+    /**
+     * Iterates over the compressed posting lists of a term, segment by segment. A list is read when the
+     * cursor enters its segment, and the next segment's list is read ahead on the executor.
+     */
+    private final class PostingCursor {
+        private final List<IndexSegment> segments;
+        private final List<TermDictionary.Entry> entries;
+        private final float idf;
+        private final float maxScore;
+        private final DataInputBuffer in = new DataInputBuffer();
+        // Index of the current segment in the lists above, and the read of the following one
+        private int segment = -1;
+        private Future<byte[]> readAhead;
+        // Postings left in the current segment's list
+        private int remaining = 0;
+        private int docno;
+        private int tf;
+        private boolean exhausted = false;
+        private long decoded = 0;
+
+        private PostingCursor(List<IndexSegment> segments, List<TermDictionary.Entry> entries, float idf,
+                              float maxScore) {
+            this.segments = segments;
+            this.entries = entries;
+            this.idf = idf;
+            this.maxScore = maxScore;
+            readAhead = read(0);
+        }
+
+        private Future<byte[]> read(final int i) {
+            return executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return segments.get(i).fetchCompressedPostings(entries.get(i));
+                }
+            });
+        }
+
+        private void enter(int i) throws IOException {
+            Future<byte[]> list = i == segment + 1 ? readAhead : read(i);
+            if (i != segment + 1 && readAhead != null) {
+                readAhead.cancel(false);
+            }
+            byte[] bytes = await(list);
+            segment = i;
+            readAhead = i + 1 < entries.size() ? read(i + 1) : null;
+            in.reset(bytes, bytes.length);
+            remaining = WritableUtils.readVInt(in);
+            // The first gap of a segment's list is its docno.
+            docno = 0;
+        }
+
+        private boolean hasNext() {
+            return !exhausted;
+        }
+
+        private int docno() {
+            return docno;
+        }
+
+        private int tf() {
+            return tf;
+        }
+
+        private void next() throws IOException {
+            while (remaining == 0) {
+                if (segment + 1 == entries.size()) {
+                    exhausted = true;
+                    return;
+                }
+                enter(segment + 1);
+            }
+            docno += WritableUtils.readVInt(in);
+            tf = WritableUtils.readVInt(in);
+            remaining--;
+            decoded++;
+        }
+
+        // Moves to the first posting with docno >= target; returns whether it is exactly target.
+        private boolean advance(int target) throws IOException {
+            if (exhausted || docno >= target) {
+                return !exhausted && docno == target;
+            }
+            // Skip the segments that end before the target without reading their lists.
+            int i = segment;
+            while (i < entries.size() && entries.get(i).getLastDocno() < target) {
+                i++;
+            }
+            if (i == entries.size()) {
+                exhausted = true;
+                return false;
+            }
+            if (i != segment) {
+                enter(i);
+                next();
+            }
+            while (!exhausted && docno < target) {
+                next();
+            }
+            return !exhausted && docno == target;
+        }
+    }
+
+    private static final class ScoredDocument implements Comparable<ScoredDocument> {
+        private final int docno;
+        private final float score;
+
+        private ScoredDocument(int docno, float score) {
+            this.docno = docno;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(ScoredDocument other) {
+            return Float.compare(score, other.score);
+        }
+    }
+
+    private Map<String, Future<ArrayListWritable<PairOfInts>>> prefetchPostings(Iterable<String> terms) {
+        Map<String, Future<ArrayListWritable<PairOfInts>>> futures = new HashMap<>();
+        for (final String term : terms) {
+            if (futures.containsKey(term)) {
+                continue;
+            }
+            ArrayListWritable<PairOfInts> cached = postingsCache.get(term);
+            if (cached != null) {
+                futures.put(term, CompletableFuture.completedFuture(cached));
+                continue;
+            }
+            futures.put(term, executor.submit(new Callable<ArrayListWritable<PairOfInts>>() {
+                @Override
+                public ArrayListWritable<PairOfInts> call() throws IOException {
+                    ArrayListWritable<PairOfInts> postings = fetchPostings(term);
+                    postingsCache.put(term, postings, LIST_BYTES + (long) POSTING_BYTES * postings.size());
+                    return postings;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void pushTerm(Future<ArrayListWritable<PairOfInts>> postings) throws IOException {
+        stack.push(toDocumentSet(await(postings)));
+    }
+
+    /**
+     * Finds the documents containing the terms as consecutive tokens. Posting lists are intersected
+     * on docnos first; positions streams are read only if documents survive, and within them only the
+     * blocks of the surviving postings are decoded. A document's blocks are decoded term by term and
+     * the check stops at the first term that breaks the phrase.
+     */
+    private Set<Integer> fetchPhraseDocumentSet(String[] terms,
+                                                Map<String, Future<ArrayListWritable<PairOfInts>>> postings)
+            throws IOException {
+        int n = terms.length;
+        List<ArrayListWritable<PairOfInts>> lists = new ArrayList<>();
+        for (String term : terms) {
+            lists.add(await(postings.get(term)));
+        }
+
+        // Docno intersection; each candidate records the index of its posting in every list.
+        List<int[]> candidates = new ArrayList<>();
+        int[] pos = new int[n];
+        intersect:
+        while (true) {
+            int docno = 0;
+            for (int i = 0; i < n; i++) {
+                if (pos[i] == lists.get(i).size()) {
+                    break intersect;
+                }
+                docno = Math.max(docno, lists.get(i).get(pos[i]).getLeftElement());
+            }
+            boolean aligned = true;
+            for (int i = 0; i < n; i++) {
+                ArrayListWritable<PairOfInts> list = lists.get(i);
+                while (pos[i] < list.size() && list.get(pos[i]).getLeftElement() < docno) {
+                    pos[i]++;
+                }
+                if (pos[i] == list.size()) {
+                    break intersect;
+                }
+                aligned &= list.get(pos[i]).getLeftElement() == docno;
+            }
+            if (aligned) {
+                candidates.add(pos.clone());
+                for (int i = 0; i < n; i++) {
+                    pos[i]++;
+                }
+            }
+        }
+
+        Set<Integer> set = new TreeSet<>();
+        if (candidates.isEmpty()) {
+            return set;
+        }
+
+        byte[][] streams = new byte[n][];
+        int[][] offsets = new int[n][];
+        for (int i = 0; i < n; i++) {
+            streams[i] = fetchPositions(terms[i]);
+            offsets[i] = blockOffsets(streams[i], candidates, i);
+        }
+
+        DataInputBuffer in = new DataInputBuffer();
+        for (int c = 0; c < candidates.size(); c++) {
+            int[] postingIndex = candidates.get(c);
+            // Start positions of the phrase that are still possible
+            int[] starts = decodePositions(in, streams[0], offsets[0][c],
+                    lists.get(0).get(postingIndex[0]).getRightElement());
+            int numStarts = starts.length;
+            for (int i = 1; i < n && numStarts > 0; i++) {
+                int[] positions = decodePositions(in, streams[i], offsets[i][c],
+                        lists.get(i).get(postingIndex[i]).getRightElement());
+                int kept = 0;
+                for (int j = 0; j < numStarts; j++) {
+                    if (Arrays.binarySearch(positions, starts[j] + i) >= 0) {
+                        starts[kept++] = starts[j];
+                    }
+                }
+                numStarts = kept;
+            }
+            if (numStarts > 0) {
+                set.add(lists.get(0).get(postingIndex[0]).getLeftElement());
+            }
+        }
+
+        return set;
+    }
+
+    // Finds the block of each candidate's posting in a positions stream by hopping over the length
+    // prefixes; no positions are decoded.
+    private static int[] blockOffsets(byte[] stream, List<int[]> candidates, int list) throws IOException {
+        int[] offsets = new int[candidates.size()];
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(stream, stream.length);
+        int posting = 0;
+        for (int c = 0; c < candidates.size(); c++) {
+            int target = candidates.get(c)[list];
+            while (posting < target) {
+                in.skipBytes(WritableUtils.readVInt(in));
+                posting++;
+            }
+            offsets[c] = in.getPosition();
+        }
+        return offsets;
+    }
+
+    private static int[] decodePositions(DataInputBuffer in, byte[] stream, int offset, int tf)
+            throws IOException {
+        in.reset(stream, offset, stream.length - offset);
+        WritableUtils.readVInt(in);
+        int[] positions = new int[tf];
+        int position = 0;
+        for (int i = 0; i < tf; i++) {
+            position += WritableUtils.readVInt(in);
+            positions[i] = position;
+        }
+        return positions;
     }
 
     private void performAND() {
@@ -125,10 +592,10 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
         stack.push(sn);
     }
 
-    private Set<Integer> fetchDocumentSet(String term) throws IOException {
+    private Set<Integer> toDocumentSet(ArrayListWritable<PairOfInts> postings) {
         Set<Integer> set = new TreeSet<>();
 
-        for (PairOfInts pair : fetchPostings(term)) {
+        for (PairOfInts pair : postings) {
             set.add(pair.getLeftElement());
         }
 
@@ -136,41 +603,45 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
     }
 
     private ArrayListWritable<PairOfInts> fetchPostings(String term) throws IOException {
-        Text key = new Text();
-        key.set(term);
-        BytesWritable value = new BytesWritable();
-        MapFile.Reader index = indices.get((term.hashCode() & Integer.MAX_VALUE) % numReducers);
-        if (index.get(key, value) == null)
-            System.out.println("The key " + term + " is not found in index.");
-//            throw new IOException("The key " + term + " is not found in index.");
-        ByteArrayInputStream byteStream = new ByteArrayInputStream(value.getBytes());
-        DataInputStream dataStream = new DataInputStream(byteStream);
-
-        if(dataStream.available() <= 0) {
-            System.out.println("Expected data not present in stream for term: " + term);
-//            throw new IOException("Expected data not present in stream for term: " + term);
-        }
-        
+        // Segments cover increasing docno ranges, so concatenating their lists keeps postings sorted.
         ArrayListWritable<PairOfInts> postings = new ArrayListWritable<>();
-        int df = WritableUtils.readVInt(dataStream);
-        int docno = 0;
-        for (int i = 0; i < df; i++){
-            int gap = WritableUtils.readVInt(dataStream);
-            int termFrequency = WritableUtils.readVInt(dataStream);
-            docno += gap;
-            postings.add(new PairOfInts(docno, termFrequency));
+        for (IndexSegment segment : segments) {
+            postings.addAll(segment.fetchPostings(term));
+        }
+        if (postings.isEmpty()) {
+            System.out.println("The key " + term + " is not found in index.");
         }
-        assert byteStream.available() == 0: "df not consistent with len(postings)";
 
         // return the posting list
         return postings;
     }
 
-    public String fetchLine(long offset) throws IOException {
-        collection.seek(offset);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(collection));
+    private byte[] fetchPositions(String term) throws IOException {
+        // Blocks are in posting order within each segment, so the streams concatenate like the postings.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (IndexSegment segment : segments) {
+            stream.write(segment.fetchPositions(term));
+        }
+        return stream.toByteArray();
+    }
 
-        String d = reader.readLine();
+    public String fetchLine(long offset) throws IOException {
+        String d = null;
+        if (useDocumentStore) {
+            for (IndexSegment segment : segments) {
+                if (offset < segment.getDocnoEnd()) {
+                    d = segment.getDocumentStore().get((int) offset);
+                    break;
+                }
+            }
+        } else {
+            collection.seek(offset);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(collection));
+            d = reader.readLine();
+        }
+        if (d == null) {
+            throw new IOException((useDocumentStore ? "No document " : "No line at offset ") + offset);
+        }
         return d.length() > 80 ? d.substring(0, 80) + "..." : d;
     }
 
@@ -178,11 +649,32 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
         @Option(name = "-index", metaVar = "[path]", required = true, usage = "index path")
         String index;
 
-        @Option(name = "-collection", metaVar = "[path]", required = true, usage = "collection path")
+        @Option(name = "-collection", metaVar = "[path]", usage = "collection path (not needed with a document store)")
         String collection;
 
-        @Option(name = "-query", metaVar = "[term]", required = true, usage = "query")
+        @Option(name = "-cacheBlocks", metaVar = "[num]", usage = "document store blocks to cache")
+        int cacheBlocks = 64;
+
+        @Option(name = "-query", metaVar = "[term]", usage = "query")
         String query;
+
+        @Option(name = "-queries", metaVar = "[path]", usage = "file of queries, one per line")
+        String queries;
+
+        @Option(name = "-postingsCacheMB", metaVar = "[num]", usage = "memory for cached posting lists")
+        int postingsCacheMB = 64;
+
+        @Option(name = "-resultCacheSize", metaVar = "[num]", usage = "number of cached Boolean query results")
+        int resultCacheSize = 1000;
+
+        @Option(name = "-ranked", usage = "rank documents by BM25 instead of Boolean retrieval")
+        boolean ranked = false;
+
+        @Option(name = "-k", metaVar = "[num]", usage = "number of ranked results")
+        int k = 10;
+
+        @Option(name = "-threads", metaVar = "[num]", usage = "threads fetching posting lists")
+        int threads = 4;
     }
 
     /**
@@ -201,19 +693,90 @@ public class BooleanRetrievalCompressed extends Configured implements Tool {
             return -1;
         }
 
-        if (args.collection.endsWith(".gz")) {
-            System.out.println("gzipped collection is not seekable: use compressed version!");
+        if ((args.query == null) == (args.queries == null)) {
+            System.out.println("exactly one of -query and -queries is required");
             return -1;
         }
 
         FileSystem fs = FileSystem.get(new Configuration());
 
-        initialize(args.index, args.collection, fs);
+        List<String> queries = new ArrayList<>();
+        if (args.query != null) {
+            queries.add(args.query);
+        } else {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(new Path(args.queries))))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        queries.add(line.trim());
+                    }
+                }
+            }
+        }
+
+        List<Path> segmentPaths = IndexSegment.segments(fs, new Path(args.index));
+        boolean segmented = !segmentPaths.isEmpty();
+        if (!segmented) {
+            segmentPaths.add(new Path(args.index));
+        }
+        boolean documentStore = true;
+        for (Path segmentPath : segmentPaths) {
+            documentStore &= DocumentStore.exists(fs, segmentPath);
+        }
+        if (!documentStore) {
+            // Docnos of segments are shifted by their docno offsets, so they are no collection offsets.
+            if (segmented) {
+                System.out.println("segmented index without a document store in every segment: "
+                        + "build the segments with -docstore!");
+                return -1;
+            }
+            if (args.collection == null) {
+                System.out.println("index has no document store: -collection is required");
+                return -1;
+            }
+            if (args.collection.endsWith(".gz")) {
+                System.out.println("gzipped collection is not seekable: build the index with -docstore!");
+                return -1;
+            }
+        }
+
+        initialize(args.index, args.collection, args.cacheBlocks, fs);
+        postingsCache = new WeightedLruCache<>(args.postingsCacheMB * 1024L * 1024L);
+        resultCache = new WeightedLruCache<>(args.resultCacheSize);
 
-        System.out.println("Query: " + args.query);
-        long startTime = System.currentTimeMillis();
-        runQuery(args.query);
-        System.out.println("\nquery completed in " + (System.currentTimeMillis() - startTime) + "ms");
+        if (args.ranked && documentLengths == null) {
+            System.out.println("ranked retrieval needs an index built with a term dictionary and document lengths");
+            return -1;
+        }
+
+        // Caches live as long as the tool, so repeated queries and head terms of a -queries batch are
+        // answered from memory.
+        executor = Executors.newFixedThreadPool(args.threads);
+        try {
+            for (String query : queries) {
+                System.out.println("Query: " + query);
+                long startTime = System.currentTimeMillis();
+                if (args.ranked) {
+                    runRankedQuery(query, args.k);
+                } else {
+                    runQuery(query);
+                }
+                System.out.println("\nquery completed in " + (System.currentTimeMillis() - startTime) + "ms\n");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        System.out.println("posting list cache: " + postingsCache);
+        if (!args.ranked) {
+            System.out.println("result cache: " + resultCache);
+        }
+        if (useDocumentStore) {
+            long blockReads = 0;
+            for (IndexSegment segment : segments) {
+                blockReads += segment.getDocumentStore().getBlockReads();
+            }
+            System.out.println("document store blocks read: " + blockReads);
+        }
 
         return 1;
     }
@@ -16,7 +16,7 @@
 
 package coursework.InvertedIndexing;
 
-import io.bespin.java.util.Tokenizer;
+import io.bespin.java.util.ByteTokenizer;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -27,7 +27,10 @@ import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -35,117 +38,236 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
-import tl.lin.data.fd.Object2IntFrequencyDistribution;
-import tl.lin.data.fd.Object2IntFrequencyDistributionEntry;
-import tl.lin.data.pair.*;
+import tl.lin.data.array.ArrayListOfInts;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class BuildInvertedIndexCompressed extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(BuildInvertedIndexCompressed.class);
+    private static final String DOCSTORE_FIELD = "docstore";
+    private static final String DOCNO_OFFSET_FIELD = "docno.offset";
+    private static final String BUFFER_BYTES_FIELD = "inmapper.buffer.bytes";
+    private static final String POSITIONAL_FIELD = "positional";
 
-    private static final class MyMapper extends Mapper<LongWritable, Text, PairOfStringInt, IntWritable> {
-        private static final PairOfStringInt WORD = new PairOfStringInt();
-        private static final IntWritable VALUE = new IntWritable();
-        private static final Object2IntFrequencyDistribution<String> COUNTS =
-                new Object2IntFrequencyDistributionEntry<>();
+    /**
+     * In-mapper buffering: partial posting lists of many documents are accumulated per term and
+     * emitted as one compressed chunk per term whenever the buffer fills up, so the shuffle carries
+     * roughly one record per term per flush instead of one per (term, document).
+     */
+    private static final class MyMapper extends Mapper<LongWritable, Text, Text, PostingsChunk> {
+        private static final Text WORD = new Text();
+        private static final IntWritable DOCNO = new IntWritable();
+        private static final IntWritable LENGTH = new IntWritable();
+        // Tokens are scanned from the document's bytes into WORD; no Strings per token.
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        // Rough heap cost of a buffered term beyond its postings: map entry, Text and chunk objects
+        private static final int TERM_OVERHEAD = 128;
+        // Side outputs: document lengths for ranked retrieval, and optionally the document store
+        private MultipleOutputs<Text, PostingsChunk> mos;
+        private boolean docstore;
+        // Positional index: token positions of every term in the current document, by term id
+        private boolean positional;
+        private final List<ArrayListOfInts> positions = new ArrayList<>();
+        // Added to every docno so that the docnos of a new segment follow those of earlier segments
+        private int docnoOffset;
+        // Buffered terms get dense ids until the next flush; chunks, positions and tfs are indexed by id.
+        private final Map<Text, Integer> termIds = new HashMap<>();
+        private final List<Text> terms = new ArrayList<>();
+        private final List<PostingsChunk> chunks = new ArrayList<>();
+        // tf of each term in the current document, and the ids of the terms it contains
+        private int[] tfs = new int[1024];
+        private final ArrayListOfInts docTerms = new ArrayListOfInts();
+        private long bufferedBytes = 0;
+        private long bufferLimit;
+
+        @Override
+        public void setup(Context context) {
+            mos = new MultipleOutputs<>(context);
+            docstore = context.getConfiguration().getBoolean(DOCSTORE_FIELD, false);
+            positional = context.getConfiguration().getBoolean(POSITIONAL_FIELD, false);
+            docnoOffset = context.getConfiguration().getInt(DOCNO_OFFSET_FIELD, 0);
+            bufferLimit = context.getConfiguration().getLong(BUFFER_BYTES_FIELD, 64L * 1024 * 1024);
+        }
 
         @Override
         public void map(LongWritable docno, Text doc, Context context)
                 throws IOException, InterruptedException {
-            List<String> tokens = Tokenizer.tokenize(doc.toString());
+            // Build a histogram of the terms, and their positions if needed.
+            docTerms.clear();
+            int length = 0;
+            TOKENIZER.reset(doc);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
+                int id = termId(WORD);
+                if (tfs[id]++ == 0) {
+                    docTerms.add(id);
+                }
+                if (positional) {
+                    positions.get(id).add(length);
+                }
+                length++;
+            }
+
+            DOCNO.set(docnoOffset + (int) docno.get());
+            LENGTH.set(length);
+            mos.write(DocumentLengths.DIRECTORY, DOCNO, LENGTH, DocumentLengths.DIRECTORY + "/part");
+            if (docstore) {
+                mos.write(DocumentStore.DIRECTORY, DOCNO, doc, DocumentStore.DIRECTORY + "/part");
+            }
 
-            // Build a histogram of the terms.
-            COUNTS.clear();
-            for (String token : tokens) {
-                COUNTS.increment(token);
+            // Append postings to the buffered chunks; docnos of a split arrive in increasing order.
+            for (int i = 0; i < docTerms.size(); i++) {
+                int id = docTerms.get(i);
+                PostingsChunk chunk = chunks.get(id);
+                int before = chunk.getPayloadLength() + chunk.getPositionsLength();
+                if (positional) {
+                    chunk.add(DOCNO.get(), positions.get(id), length);
+                    positions.get(id).clear();
+                } else {
+                    chunk.add(DOCNO.get(), tfs[id], length);
+                }
+                bufferedBytes += chunk.getPayloadLength() + chunk.getPositionsLength() - before;
+                tfs[id] = 0;
             }
 
-            // Emit postings.
-            for (PairOfObjectInt<String> e : COUNTS) {
-                WORD.set(e.getLeftElement(), (int) docno.get());
-                VALUE.set(e.getRightElement());
-                context.write(WORD, VALUE);
+            if (bufferedBytes >= bufferLimit) {
+                flush(context);
             }
         }
+
+        // The id of a term, given a reused buffer: the Text is copied only for a new term.
+        private int termId(Text term) {
+            Integer id = termIds.get(term);
+            if (id == null) {
+                id = terms.size();
+                Text copy = new Text(term);
+                termIds.put(copy, id);
+                terms.add(copy);
+                chunks.add(new PostingsChunk());
+                if (positional) {
+                    positions.add(new ArrayListOfInts());
+                }
+                if (id == tfs.length) {
+                    tfs = Arrays.copyOf(tfs, tfs.length * 2);
+                }
+                bufferedBytes += TERM_OVERHEAD + copy.getLength();
+            }
+            return id;
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (int id = 0; id < terms.size(); id++) {
+                context.write(terms.get(id), chunks.get(id));
+            }
+            termIds.clear();
+            terms.clear();
+            chunks.clear();
+            positions.clear();
+            bufferedBytes = 0;
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+            mos.close();
+        }
     }
 
-    private static final class MyReducer extends
-            Reducer<PairOfStringInt, IntWritable, Text, BytesWritable> {
-        private static final Text WORD = new Text();
-        // writes compressed VInt to a byte array in memory
-        private ByteArrayOutputStream byteBuffer = new ByteArrayOutputStream();
-        // Wrap around `ByteArrayOutputStream` and write VInt in a binary format it
-        private DataOutputStream dataBuffer = new DataOutputStream(byteBuffer);
-        private String prevWord = "";
-        private int prevDocNo = 0;
-        // document frequency: the number of documents that contain the term
-        private int df = 0;
+    private static final class MyReducer extends Reducer<Text, PostingsChunk, Text, BytesWritable> {
+        private static final BytesWritable VALUE = new BytesWritable();
+        // The whole posting list df ++ [gap ++ tf] of a term is spliced into this one buffer
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private final DataOutputBuffer positionsBuffer = new DataOutputBuffer();
+        private final List<PostingsChunk> chunks = new ArrayList<>();
+        private MultipleOutputs<Text, BytesWritable> mos;
+        private boolean positional;
+        // The reducer writes its partition itself, to learn where each record starts, and the
+        // dictionary section of the partition along with it.
+        private int partition;
+        private String partitionName;
+        private PartitionWriter writer;
+        private final TermDictionary.Builder dictionary = new TermDictionary.Builder();
 
         @Override
-        public void reduce(PairOfStringInt key, Iterable<IntWritable> values, Context context)
+        public void setup(Context context) throws IOException, InterruptedException {
+            mos = new MultipleOutputs<>(context);
+            positional = context.getConfiguration().getBoolean(POSITIONAL_FIELD, false);
+            partition = context.getTaskAttemptID().getTaskID().getId();
+            partitionName = FileOutputFormat.getUniqueFile(context, "part", "");
+            writer = new PartitionWriter(context.getConfiguration(),
+                    new Path(FileOutputFormat.getWorkOutputPath(context), partitionName));
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<PostingsChunk> values, Context context)
                 throws IOException, InterruptedException {
-            Iterator<IntWritable> iter = values.iterator();
-            String curWord = key.getLeftElement();
-            int curDocno = key.getRightElement();
-
-            if (prevWord.length() > 0 && !prevWord.equals(curWord)){
-                // create new output stream in which written df ++ [gap ++ tf]
-                dataBuffer.flush(); // Pushes all VInts out to bytesBuffer
-                ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-                DataOutputStream dataOutput = new DataOutputStream(byteOutput);
-                WritableUtils.writeVInt(dataOutput, df);
-                dataOutput.write(byteBuffer.toByteArray());
-                dataOutput.flush(); // Pushes all VInts out to bytesOutput
-
-                // write the current posting list to context and clear it later
-                WORD.set(prevWord);
-                context.write(WORD, new BytesWritable(byteOutput.toByteArray()));
-
-                // reset states for new (word, docno)
-                byteBuffer.reset();
-                df = 0;
-                prevDocNo = 0;
+            // The framework reuses the value object, so each chunk is copied once.
+            chunks.clear();
+            int df = 0;
+            int maxTf = 0;
+            int minLength = Integer.MAX_VALUE;
+            for (PostingsChunk chunk : values) {
+                chunks.add(chunk.copy());
+                df += chunk.getDf();
+                maxTf = Math.max(maxTf, chunk.getMaxTf());
+                minLength = Math.min(minLength, chunk.getMinLength());
             }
-            prevWord = curWord;
-            df++;
-
-            int gap = curDocno - prevDocNo;
-            int sum = 0;
-            // Aggregate the term frequency for current docno
-            while (iter.hasNext()) {
-                sum += iter.next().get();
+            // Chunks cover disjoint docno ranges (a split is flushed in order), so sorting the few
+            // chunks by their first docno replaces a secondary sort on (term, docno) keys.
+            chunks.sort(new Comparator<PostingsChunk>() {
+                @Override
+                public int compare(PostingsChunk o1, PostingsChunk o2) {
+                    return Integer.compare(o1.getFirstDocno(), o2.getFirstDocno());
+                }
+            });
+
+            buffer.reset();
+            WritableUtils.writeVInt(buffer, df);
+            int prevDocno = 0;
+            for (PostingsChunk chunk : chunks) {
+                // Fix up the gap of the chunk's first posting against the previous chunk.
+                WritableUtils.writeVInt(buffer, chunk.getFirstDocno() - prevDocno);
+                buffer.write(chunk.getPayload(), 0, chunk.getPayloadLength());
+                prevDocno = chunk.getLastDocno();
             }
-            // add the (gap, termFrequency) to the posting list
-            WritableUtils.writeVInt(dataBuffer, gap);
-            WritableUtils.writeVInt(dataBuffer, sum);
-            prevDocNo = curDocno;
 
+            VALUE.set(buffer.getData(), 0, buffer.getLength());
+            long offset = writer.append(key, VALUE);
+            dictionary.add(key, partition, offset, df, maxTf, minLength, prevDocno);
+
+            // Positions go to their own MapFiles, which Boolean queries never open. Their blocks hold
+            // no docnos, so the chunks' streams are simply concatenated in the same order.
+            if (positional) {
+                positionsBuffer.reset();
+                for (PostingsChunk chunk : chunks) {
+                    positionsBuffer.write(chunk.getPositions(), 0, chunk.getPositionsLength());
+                }
+                VALUE.set(positionsBuffer.getData(), 0, positionsBuffer.getLength());
+                mos.write(IndexSegment.POSITIONS_DIRECTORY, key, VALUE, IndexSegment.POSITIONS_DIRECTORY + "/part");
+            }
         }
 
         @Override
-        public void cleanup (Context context) throws IOException, InterruptedException {
-            // create new output stream in which written df ++ [gap ++ tf]
-            dataBuffer.flush(); // Pushes all VInts out to bytesBuffer
-            ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-            DataOutputStream dataOutput = new DataOutputStream(byteOutput);
-            WritableUtils.writeVInt(dataOutput, df);
-            dataOutput.write(byteBuffer.toByteArray());
-            dataOutput.flush(); // Pushes all VInts out to bytesOutput
-            // write the last posting list to context
-            WORD.set(prevWord);
-            context.write(WORD, new BytesWritable(byteOutput.toByteArray()));
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            writer.close();
+            Path workPath = FileOutputFormat.getWorkOutputPath(context);
+            dictionary.writeSection(workPath.getFileSystem(context.getConfiguration()),
+                    new Path(new Path(workPath, TermDictionary.BLOCKS_DIRECTORY), partitionName));
+            mos.close();
         }
     }
 
-    private static final class MyPartitioner extends Partitioner<PairOfStringInt, IntWritable> {
+    private static final class MyPartitioner extends Partitioner<Text, PostingsChunk> {
         @Override
-        public int getPartition(PairOfStringInt key, IntWritable value, int numReduceTasks) {
-            return (key.getLeftElement().hashCode() & Integer.MAX_VALUE) % numReduceTasks;
+        public int getPartition(Text key, PostingsChunk value, int numReduceTasks) {
+            // Same as hashing the term String, which indexes without a dictionary rely on.
+            return (key.toString().hashCode() & Integer.MAX_VALUE) % numReduceTasks;
         }
     }
 
@@ -160,6 +282,18 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
 
         @Option(name = "-reducers", metaVar = "[num]", usage = "number of reducers")
         int numReducers = 1;
+
+        @Option(name = "-docstore", usage = "also write a compressed document store for fetching results")
+        boolean docstore = false;
+
+        @Option(name = "-positional", usage = "also index token positions for phrase queries")
+        boolean positional = false;
+
+        @Option(name = "-segment", usage = "add the input as a new segment of the index at the output path")
+        boolean segment = false;
+
+        @Option(name = "-bufferMB", metaVar = "[num]", usage = "postings buffered per mapper before a flush")
+        int bufferMB = 64;
     }
 
     /**
@@ -182,34 +316,74 @@ public class BuildInvertedIndexCompressed extends Configured implements Tool {
         LOG.info(" - input path: " + args.input);
         LOG.info(" - output path: " + args.output);
         LOG.info(" - num reducers: " + args.numReducers);
+        LOG.info(" - document store: " + args.docstore);
+        LOG.info(" - positional: " + args.positional);
+        LOG.info(" - new segment: " + args.segment);
+        LOG.info(" - mapper buffer: " + args.bufferMB + "MB");
+
+        FileSystem fs = FileSystem.get(getConf());
+        Path outputDir = new Path(args.output);
+        int docnoOffset = 0;
+        if (args.segment) {
+            docnoOffset = IndexSegment.nextDocnoOffset(fs, outputDir);
+            outputDir = IndexSegment.nextSegment(fs, outputDir);
+            LOG.info(" - segment path: " + outputDir);
+            LOG.info(" - docno offset: " + docnoOffset);
+        }
 
         Job job = Job.getInstance(getConf());
+        job.getConfiguration().setBoolean(DOCSTORE_FIELD, args.docstore);
+        job.getConfiguration().setBoolean(POSITIONAL_FIELD, args.positional);
+        job.getConfiguration().setInt(DOCNO_OFFSET_FIELD, docnoOffset);
+        job.getConfiguration().setLong(BUFFER_BYTES_FIELD, args.bufferMB * 1024L * 1024L);
         job.setJobName(BuildInvertedIndexCompressed.class.getSimpleName());
         job.setJarByClass(BuildInvertedIndexCompressed.class);
 
         job.setNumReduceTasks(args.numReducers);
 
         FileInputFormat.setInputPaths(job, new Path(args.input));
-        FileOutputFormat.setOutputPath(job, new Path(args.output));
+        FileOutputFormat.setOutputPath(job, outputDir);
 
-        job.setMapOutputKeyClass(PairOfStringInt.class);
-        job.setMapOutputValueClass(IntWritable.class);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(PostingsChunk.class);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(BytesWritable.class);
-        job.setOutputFormatClass(MapFileOutputFormat.class);
+        // The reducers write their partitions themselves; the output format only commits them.
+        LazyOutputFormat.setOutputFormatClass(job, MapFileOutputFormat.class);
 
         job.setMapperClass(MyMapper.class);
         job.setReducerClass(MyReducer.class);
         job.setPartitionerClass(MyPartitioner.class);
 
+        MultipleOutputs.addNamedOutput(job, DocumentLengths.DIRECTORY, SequenceFileOutputFormat.class,
+                IntWritable.class, IntWritable.class);
+        MultipleOutputs.addNamedOutput(job, DocumentStore.DIRECTORY, DocumentStoreOutputFormat.class,
+                IntWritable.class, Text.class);
+        MultipleOutputs.addNamedOutput(job, IndexSegment.POSITIONS_DIRECTORY, MapFileOutputFormat.class,
+                Text.class, BytesWritable.class);
+
         // Delete the output directory if it exists already.
-        Path outputDir = new Path(args.output);
-        FileSystem.get(getConf()).delete(outputDir, true);
+        fs.delete(outputDir, true);
 
         long startTime = System.currentTimeMillis();
-        job.waitForCompletion(true);
+        if (!job.waitForCompletion(true)) {
+            return -1;
+        }
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
+        // Join the reducers' dictionary sections, so that queries don't have to reproduce the partitioner.
+        startTime = System.currentTimeMillis();
+        TermDictionary dictionary = TermDictionary.concatenate(fs, outputDir);
+        dictionary.write(fs, new Path(outputDir, TermDictionary.FILE_NAME));
+        fs.delete(new Path(outputDir, TermDictionary.BLOCKS_DIRECTORY), true);
+        if (args.segment) {
+            DocumentLengths documentLengths = DocumentLengths.read(fs, outputDir);
+            IndexSegment.writeInfo(fs, outputDir, docnoOffset,
+                    Math.max(docnoOffset, documentLengths.getLastDocno() + 1));
+        }
+        LOG.info("Term dictionary with " + dictionary.size() + " terms written in "
+                + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
         return 0;
     }
 
@@ -0,0 +1,103 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Document lengths (number of tokens) written by the mappers of {@link BuildInvertedIndexCompressed}
+ * to {@code <index>/doclengths}. Kept as a sorted docno array so lookups are a binary search
+ * over two primitive arrays.
+ */
+public class DocumentLengths {
+    public static final String DIRECTORY = "doclengths";
+
+    private int[] docnos;
+    private int[] lengths;
+    private float avgLength;
+
+    private DocumentLengths() {}
+
+    public int getNumDocs() {
+        return docnos.length;
+    }
+
+    public float getAverageLength() {
+        return avgLength;
+    }
+
+    /**
+     * Returns the largest docno, or -1 if there are no documents.
+     */
+    public int getLastDocno() {
+        return docnos.length == 0 ? -1 : docnos[docnos.length - 1];
+    }
+
+    public int get(int docno) {
+        int i = Arrays.binarySearch(docnos, docno);
+        return i < 0 ? 0 : lengths[i];
+    }
+
+    public static boolean exists(FileSystem fs, Path indexPath) throws IOException {
+        return fs.exists(new Path(indexPath, DIRECTORY));
+    }
+
+    public static DocumentLengths read(FileSystem fs, Path indexPath) throws IOException {
+        return read(fs, Collections.singletonList(indexPath));
+    }
+
+    /**
+     * Reads the document lengths of several index segments into one table.
+     */
+    public static DocumentLengths read(FileSystem fs, List<Path> indexPaths) throws IOException {
+        List<FileStatus> statuses = new ArrayList<>();
+        for (Path indexPath : indexPaths) {
+            statuses.addAll(Arrays.asList(fs.listStatus(new Path(indexPath, DIRECTORY), new PathFilter() {
+                @Override
+                public boolean accept(Path path) {
+                    return path.getName().startsWith("part-");
+                }
+            })));
+        }
+
+        // Pack (docno, length) into longs so a single primitive sort orders both.
+        long[] packed = new long[1024];
+        int size = 0;
+        IntWritable docno = new IntWritable();
+        IntWritable length = new IntWritable();
+        for (FileStatus status : statuses) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(fs.getConf(),
+                    SequenceFile.Reader.file(status.getPath()))) {
+                while (reader.next(docno, length)) {
+                    if (size == packed.length) {
+                        packed = Arrays.copyOf(packed, size * 2);
+                    }
+                    packed[size++] = ((long) docno.get() << 32) | (length.get() & 0xFFFFFFFFL);
+                }
+            }
+        }
+        Arrays.sort(packed, 0, size);
+
+        DocumentLengths documentLengths = new DocumentLengths();
+        documentLengths.docnos = new int[size];
+        documentLengths.lengths = new int[size];
+        long totalLength = 0;
+        for (int i = 0; i < size; i++) {
+            documentLengths.docnos[i] = (int) (packed[i] >>> 32);
+            documentLengths.lengths[i] = (int) packed[i];
+            totalLength += documentLengths.lengths[i];
+        }
+        documentLengths.avgLength = size == 0 ? 0 : (float) totalLength / size;
+
+        return documentLengths;
+    }
+}
@@ -0,0 +1,277 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed copy of the collection, keyed by docno, written next to the index in
+ * {@code <index>/docstore}. Each map task writes one file of Deflate-compressed blocks of roughly
+ * {@link #BLOCK_SIZE} bytes; a block holds consecutive documents as
+ * {@code VInt docno gap, Text document}. The file ends with an offset table
+ * ({@code int firstDocno, long offset, int compressedLength, int length} per block) followed by
+ * {@code long tableOffset, int numBlocks}.
+ *
+ * The reader keeps the offset tables of all files in memory and an LRU cache of decoded blocks,
+ * so fetching many hits costs a few block reads rather than one random seek per hit.
+ */
+public class DocumentStore {
+    public static final String DIRECTORY = "docstore";
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int TRAILER_SIZE = 12;
+
+    /**
+     * Writes one store file; used through {@link DocumentStoreOutputFormat}.
+     */
+    public static final class Writer extends RecordWriter<IntWritable, Text> {
+        private final FSDataOutputStream out;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+        private final DataOutputStream blockData = new DataOutputStream(block);
+        private final Deflater deflater = new Deflater();
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private final ByteArrayOutputStream table = new ByteArrayOutputStream();
+        private final DataOutputStream tableData = new DataOutputStream(table);
+        private int numBlocks = 0;
+        private int firstDocno;
+        private int prevDocno;
+        private boolean empty = true;
+
+        public Writer(FSDataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(IntWritable docno, Text doc) throws IOException {
+            if (empty) {
+                firstDocno = docno.get();
+                prevDocno = firstDocno;
+                empty = false;
+            }
+            // Documents of a split arrive in docno order, so gaps are non-negative.
+            WritableUtils.writeVInt(blockData, docno.get() - prevDocno);
+            doc.write(blockData);
+            prevDocno = docno.get();
+            if (block.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            blockData.flush();
+            byte[] bytes = block.toByteArray();
+            deflater.reset();
+            deflater.setInput(bytes);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+
+            tableData.writeInt(firstDocno);
+            tableData.writeLong(out.getPos());
+            tableData.writeInt(length);
+            tableData.writeInt(bytes.length);
+            out.write(compressed, 0, length);
+            numBlocks++;
+
+            block.reset();
+            empty = true;
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) throws IOException {
+            if (!empty) {
+                flushBlock();
+            }
+            tableData.flush();
+            long tableOffset = out.getPos();
+            out.write(table.toByteArray());
+            out.writeLong(tableOffset);
+            out.writeInt(numBlocks);
+            out.close();
+            deflater.end();
+        }
+    }
+
+    // A decompressed block.
+    private static final class Block {
+        private final int[] docnos;
+        private final String[] docs;
+
+        private Block(int[] docnos, String[] docs) {
+            this.docnos = docnos;
+            this.docs = docs;
+        }
+    }
+
+    private final List<FSDataInputStream> files = new ArrayList<>();
+    // Offset table of all blocks in all files, sorted by first docno
+    private int[] firstDocnos;
+    private int[] blockFiles;
+    private long[] blockOffsets;
+    private int[] compressedLengths;
+    private int[] lengths;
+    private final Map<Integer, Block> cache;
+    private long blockReads = 0;
+
+    private DocumentStore(final int cacheBlocks) {
+        this.cache = new LinkedHashMap<Integer, Block>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+                return size() > cacheBlocks;
+            }
+        };
+    }
+
+    public static boolean exists(FileSystem fs, Path indexPath) throws IOException {
+        return fs.exists(new Path(indexPath, DIRECTORY));
+    }
+
+    /**
+     * Opens the store of an index.
+     *
+     * @param fs file system
+     * @param indexPath index directory written by {@link BuildInvertedIndexCompressed}
+     * @param cacheBlocks number of decoded blocks to keep in the LRU cache
+     * @return the store
+     */
+    public static DocumentStore open(FileSystem fs, Path indexPath, int cacheBlocks) throws IOException {
+        FileStatus[] statuses = fs.listStatus(new Path(indexPath, DIRECTORY), new PathFilter() {
+            @Override
+            public boolean accept(Path path) {
+                return path.getName().startsWith("part-");
+            }
+        });
+
+        DocumentStore store = new DocumentStore(cacheBlocks);
+        List<long[]> entries = new ArrayList<>();
+        for (FileStatus status : statuses) {
+            FSDataInputStream in = fs.open(status.getPath());
+            int file = store.files.size();
+            store.files.add(in);
+
+            in.seek(status.getLen() - TRAILER_SIZE);
+            long tableOffset = in.readLong();
+            int numBlocks = in.readInt();
+            in.seek(tableOffset);
+            for (int i = 0; i < numBlocks; i++) {
+                entries.add(new long[] { in.readInt(), file, in.readLong(), in.readInt(), in.readInt() });
+            }
+        }
+        entries.sort(new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+
+        int n = entries.size();
+        store.firstDocnos = new int[n];
+        store.blockFiles = new int[n];
+        store.blockOffsets = new long[n];
+        store.compressedLengths = new int[n];
+        store.lengths = new int[n];
+        for (int i = 0; i < n; i++) {
+            long[] entry = entries.get(i);
+            store.firstDocnos[i] = (int) entry[0];
+            store.blockFiles[i] = (int) entry[1];
+            store.blockOffsets[i] = entry[2];
+            store.compressedLengths[i] = (int) entry[3];
+            store.lengths[i] = (int) entry[4];
+        }
+
+        return store;
+    }
+
+    /**
+     * Fetches a document.
+     *
+     * @param docno docno of the document
+     * @return the document, or {@code null} if it is not in the store
+     */
+    public String get(int docno) throws IOException {
+        int i = Arrays.binarySearch(firstDocnos, docno);
+        int block = i >= 0 ? i : -i - 2;
+        if (block < 0) {
+            return null;
+        }
+
+        Block decoded = cache.get(block);
+        if (decoded == null) {
+            decoded = readBlock(block);
+            cache.put(block, decoded);
+        }
+        int j = Arrays.binarySearch(decoded.docnos, docno);
+        return j < 0 ? null : decoded.docs[j];
+    }
+
+    public long getBlockReads() {
+        return blockReads;
+    }
+
+    private Block readBlock(int block) throws IOException {
+        byte[] compressed = new byte[compressedLengths[block]];
+        files.get(blockFiles[block]).readFully(blockOffsets[block], compressed);
+        blockReads++;
+
+        byte[] bytes = new byte[lengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            inflater.inflate(bytes);
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt document store block " + block, e);
+        } finally {
+            inflater.end();
+        }
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        List<String> docs = new ArrayList<>();
+        int[] docnos = new int[16];
+        int docno = firstDocnos[block];
+        Text doc = new Text();
+        while (in.getPosition() < bytes.length) {
+            docno += WritableUtils.readVInt(in);
+            doc.readFields(in);
+            if (docs.size() == docnos.length) {
+                docnos = Arrays.copyOf(docnos, docnos.length * 2);
+            }
+            docnos[docs.size()] = docno;
+            docs.add(doc.toString());
+        }
+
+        return new Block(Arrays.copyOf(docnos, docs.size()), docs.toArray(new String[0]));
+    }
+
+    public void close() throws IOException {
+        for (FSDataInputStream in : files) {
+            in.close();
+        }
+    }
+}
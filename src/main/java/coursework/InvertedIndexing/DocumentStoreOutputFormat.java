@@ -0,0 +1,21 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import java.io.IOException;
+
+/**
+ * Writes (docno, document) records as a {@link DocumentStore} file.
+ */
+public class DocumentStoreOutputFormat extends FileOutputFormat<IntWritable, Text> {
+    @Override
+    public RecordWriter<IntWritable, Text> getRecordWriter(TaskAttemptContext context) throws IOException {
+        Path file = getDefaultWorkFile(context, "");
+        return new DocumentStore.Writer(file.getFileSystem(context.getConfiguration()).create(file, false));
+    }
+}
@@ -0,0 +1,384 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import tl.lin.data.array.ArrayListWritable;
+import tl.lin.data.pair.PairOfInts;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One segment of the inverted index: the {@code part-r-*} MapFiles written by one run of
+ * {@link BuildInvertedIndexCompressed}, with its term dictionary, document lengths and document store.
+ *
+ * An index is either a single segment (the index directory itself) or a directory of
+ * {@code segment-NNNNN} subdirectories built with {@code -segment}. Every segment covers the docno
+ * range [docno offset, docno end) recorded in its {@code segment.info} file; ranges are disjoint and
+ * increase with the segment number, so a term's postings over the whole index are the concatenation
+ * of its postings in each segment.
+ *
+ * {@link MergeIndexSegments} names a merged segment after its first source with a generation suffix,
+ * {@code segment-NNNNN.GGGGG}, which sorts in the same place. It is renamed into the index before its
+ * sources are deleted, so a segment whose docno range lies within another's has been merged into it
+ * and is skipped.
+ *
+ * A positional segment (built with {@code -positional}) also has a {@code positions} directory of
+ * MapFiles partitioned like the postings. Its values are read only by phrase queries.
+ */
+public class IndexSegment {
+    public static final String PREFIX = "segment-";
+    public static final String INFO_FILE = "segment.info";
+    public static final String POSITIONS_DIRECTORY = "positions";
+
+    private final Path path;
+    private int docnoOffset = 0;
+    private int docnoEnd = Integer.MAX_VALUE;
+    // Set when the segment has a term dictionary: postings are then read directly from the data files.
+    private TermDictionary dictionary;
+    private final List<SequenceFile.Reader> partitions = new ArrayList<>();
+    private final List<MapFile.Reader> indices = new ArrayList<>();
+    private int numReducers;
+    // positions MapFiles, in the same partition order as the postings; empty if not positional. A
+    // reducer that got no terms writes no positions file, so its partition has a null reader.
+    private final List<MapFile.Reader> positions = new ArrayList<>();
+    private DocumentStore documentStore;
+
+    private IndexSegment(Path path) {
+        this.path = path;
+    }
+
+    public static IndexSegment open(FileSystem fs, Path path, int cacheBlocks) throws IOException {
+        IndexSegment segment = new IndexSegment(path);
+
+        Path infoPath = new Path(path, INFO_FILE);
+        if (fs.exists(infoPath)) {
+            int[] info = readInfo(fs, path);
+            segment.docnoOffset = info[0];
+            segment.docnoEnd = info[1];
+        }
+        if (DocumentStore.exists(fs, path)) {
+            segment.documentStore = DocumentStore.open(fs, path, cacheBlocks);
+        }
+
+        Path dictionaryPath = new Path(path, TermDictionary.FILE_NAME);
+        if (fs.exists(dictionaryPath)) {
+            segment.dictionary = TermDictionary.read(fs, dictionaryPath);
+            for (String partition : segment.dictionary.getPartitions()) {
+                Path dataPath = new Path(new Path(path, partition), MapFile.DATA_FILE_NAME);
+                segment.partitions.add(new SequenceFile.Reader(fs.getConf(), SequenceFile.Reader.file(dataPath)));
+            }
+            segment.openPositions(fs, Arrays.asList(segment.dictionary.getPartitions()));
+            System.out.println("Loaded term dictionary of " + path + " with " + segment.dictionary.size()
+                    + " terms over " + segment.partitions.size() + " partitions");
+            return segment;
+        }
+
+        PathFilter pathFilter = new PathFilter() {
+            @Override
+            public boolean accept (Path path) {
+                return !path.getName().contains("SUCCESS") && path.getName().startsWith("part-r-");
+            }
+        };
+        // Need to sort files by pathname in lexicographical order
+        FileStatus[] statuses = fs.listStatus(path, pathFilter);
+        Arrays.sort(statuses, new Comparator<FileStatus>() {
+            @Override
+            public int compare(FileStatus o1, FileStatus o2) {
+                return o1.getPath().toString().compareTo(o2.getPath().toString());
+            }
+        });
+        List<String> names = new ArrayList<>();
+        for (FileStatus status: statuses){
+            MapFile.Reader index = new MapFile.Reader(status.getPath(), fs.getConf());
+            segment.indices.add(index);
+            names.add(status.getPath().getName());
+            System.out.println("Add index " + status.getPath());
+        }
+        segment.numReducers = segment.indices.size();
+        System.out.println("The number of reducers detected: " + segment.numReducers);
+        segment.openPositions(fs, names);
+
+        return segment;
+    }
+
+    private void openPositions(FileSystem fs, List<String> names) throws IOException {
+        Path positionsPath = new Path(path, POSITIONS_DIRECTORY);
+        if (!fs.exists(positionsPath)) {
+            return;
+        }
+        for (String name : names) {
+            Path partitionPath = new Path(positionsPath, name);
+            positions.add(fs.exists(partitionPath) ? new MapFile.Reader(partitionPath, fs.getConf()) : null);
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public int getDocnoOffset() {
+        return docnoOffset;
+    }
+
+    public int getDocnoEnd() {
+        return docnoEnd;
+    }
+
+    public boolean hasDictionary() {
+        return dictionary != null;
+    }
+
+    public TermDictionary.Entry getEntry(String term) throws IOException {
+        return dictionary == null ? null : dictionary.get(term);
+    }
+
+    public DocumentStore getDocumentStore() {
+        return documentStore;
+    }
+
+    public boolean hasPositions() {
+        return !positions.isEmpty();
+    }
+
+    /**
+     * Fetches and decodes the posting list of a term in this segment. Safe to call from several
+     * threads: each partition reader is locked only for its seek and read.
+     *
+     * @param term the term
+     * @return the postings, empty if the term does not occur in this segment
+     */
+    public ArrayListWritable<PairOfInts> fetchPostings(String term) throws IOException {
+        Text key = new Text();
+        key.set(term);
+        BytesWritable value = new BytesWritable();
+        if (dictionary != null) {
+            TermDictionary.Entry entry = dictionary.get(term);
+            if (entry == null) {
+                return new ArrayListWritable<>();
+            }
+            read(entry, key, value);
+        } else {
+            MapFile.Reader index = indices.get((term.hashCode() & Integer.MAX_VALUE) % numReducers);
+            Writable found;
+            synchronized (index) {
+                found = index.get(key, value);
+            }
+            if (found == null) {
+                return new ArrayListWritable<>();
+            }
+        }
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(value.getBytes(), 0, value.getLength());
+        DataInputStream dataStream = new DataInputStream(byteStream);
+
+        if(dataStream.available() <= 0) {
+            System.out.println("Expected data not present in stream for term: " + term);
+//            throw new IOException("Expected data not present in stream for term: " + term);
+        }
+
+        ArrayListWritable<PairOfInts> postings = new ArrayListWritable<>();
+        int df = WritableUtils.readVInt(dataStream);
+        int docno = 0;
+        for (int i = 0; i < df; i++){
+            int gap = WritableUtils.readVInt(dataStream);
+            int termFrequency = WritableUtils.readVInt(dataStream);
+            docno += gap;
+            postings.add(new PairOfInts(docno, termFrequency));
+        }
+        assert byteStream.available() == 0: "df not consistent with len(postings)";
+
+        // return the posting list
+        return postings;
+    }
+
+    /**
+     * Fetches the posting list a dictionary entry of this segment points to, still compressed:
+     * {@code VInt df} followed by {@code (VInt gap, VInt tf)} pairs whose first gap is the docno itself.
+     * Ranked retrieval decodes it only as far as it needs.
+     */
+    public byte[] fetchCompressedPostings(TermDictionary.Entry entry) throws IOException {
+        BytesWritable value = new BytesWritable();
+        read(entry, new Text(), value);
+        return Arrays.copyOf(value.getBytes(), value.getLength());
+    }
+
+    // One positioned read: jump straight to the record instead of searching the MapFile index.
+    private void read(TermDictionary.Entry entry, Text key, BytesWritable value) throws IOException {
+        SequenceFile.Reader reader = partitions.get(entry.getPartition());
+        synchronized (reader) {
+            reader.seek(entry.getOffset());
+            reader.next(key, value);
+        }
+    }
+
+    /**
+     * Fetches the raw positions stream of a term in this segment: for each posting, in posting order,
+     * {@code VInt byteLength} followed by the gap-encoded positions. Left undecoded so that callers
+     * can skip the blocks of postings they do not need.
+     *
+     * @param term the term
+     * @return the stream, empty if the term does not occur in this segment
+     */
+    public byte[] fetchPositions(String term) throws IOException {
+        if (positions.isEmpty()) {
+            throw new IOException("No positions in " + path + ": rebuild the index with -positional");
+        }
+        int partition;
+        if (dictionary != null) {
+            TermDictionary.Entry entry = dictionary.get(term);
+            if (entry == null) {
+                return new byte[0];
+            }
+            partition = entry.getPartition();
+        } else {
+            partition = (term.hashCode() & Integer.MAX_VALUE) % numReducers;
+        }
+
+        MapFile.Reader reader = positions.get(partition);
+        if (reader == null) {
+            return new byte[0];
+        }
+        BytesWritable value = new BytesWritable();
+        Writable found;
+        synchronized (reader) {
+            found = reader.get(new Text(term), value);
+        }
+        return found == null ? new byte[0] : Arrays.copyOf(value.getBytes(), value.getLength());
+    }
+
+    /**
+     * Lists the segments of an index in docno order, without those already merged into another.
+     *
+     * @param fs file system
+     * @param indexPath index directory
+     * @return the {@code segment-NNNNN} directories, empty if the index is not segmented
+     */
+    public static List<Path> segments(FileSystem fs, Path indexPath) throws IOException {
+        List<Path> segments = allSegments(fs, indexPath);
+        segments.removeAll(mergedSegments(fs, segments));
+        return segments;
+    }
+
+    /**
+     * Lists the segments of an index that were merged into another segment but not yet deleted, which
+     * happens only if a merge stopped between renaming the merged segment and deleting its sources.
+     */
+    public static List<Path> mergedSegments(FileSystem fs, Path indexPath) throws IOException {
+        return mergedSegments(fs, allSegments(fs, indexPath));
+    }
+
+    // A segment is merged if another covers its docno range, and on equal ranges the later name wins.
+    private static List<Path> mergedSegments(FileSystem fs, List<Path> segments) throws IOException {
+        List<int[]> ranges = new ArrayList<>();
+        for (Path segment : segments) {
+            ranges.add(readInfo(fs, segment));
+        }
+        List<Path> merged = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            int[] range = ranges.get(i);
+            for (int j = 0; j < segments.size(); j++) {
+                int[] other = ranges.get(j);
+                boolean covers = other[0] <= range[0] && range[1] <= other[1];
+                boolean equal = other[0] == range[0] && other[1] == range[1];
+                if (j != i && covers && (!equal || j > i)) {
+                    merged.add(segments.get(i));
+                    break;
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static List<Path> allSegments(FileSystem fs, Path indexPath) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!fs.exists(indexPath)) {
+            return segments;
+        }
+        FileStatus[] statuses = fs.listStatus(indexPath, new PathFilter() {
+            @Override
+            public boolean accept(Path path) {
+                return path.getName().matches(PREFIX + "\\d+(\\.\\d+)?");
+            }
+        });
+        Arrays.sort(statuses, new Comparator<FileStatus>() {
+            @Override
+            public int compare(FileStatus o1, FileStatus o2) {
+                return o1.getPath().getName().compareTo(o2.getPath().getName());
+            }
+        });
+        for (FileStatus status : statuses) {
+            segments.add(status.getPath());
+        }
+        return segments;
+    }
+
+    /**
+     * Returns the path of the segment the next incremental build should write.
+     */
+    public static Path nextSegment(FileSystem fs, Path indexPath) throws IOException {
+        List<Path> segments = segments(fs, indexPath);
+        int number = 0;
+        if (!segments.isEmpty()) {
+            number = number(segments.get(segments.size() - 1)) + 1;
+        }
+        return new Path(indexPath, String.format("%s%05d", PREFIX, number));
+    }
+
+    /**
+     * Returns the name a merge of segments starting with {@code first} gives the merged segment: the
+     * number of {@code first} with the next generation, so that it sorts right after {@code first}.
+     */
+    public static Path mergedSegment(Path indexPath, Path first) {
+        String name = first.getName();
+        int dot = name.indexOf('.');
+        int generation = dot < 0 ? 0 : Integer.parseInt(name.substring(dot + 1));
+        return new Path(indexPath, String.format("%s%05d.%05d", PREFIX, number(first), generation + 1));
+    }
+
+    private static int number(Path segment) {
+        String name = segment.getName();
+        int dot = name.indexOf('.');
+        return Integer.parseInt(name.substring(PREFIX.length(), dot < 0 ? name.length() : dot));
+    }
+
+    /**
+     * Returns the first docno not covered by any existing segment.
+     */
+    public static int nextDocnoOffset(FileSystem fs, Path indexPath) throws IOException {
+        List<Path> segments = segments(fs, indexPath);
+        return segments.isEmpty() ? 0 : readInfo(fs, segments.get(segments.size() - 1))[1];
+    }
+
+    /**
+     * Reads the docno range of a segment.
+     *
+     * @return {docno offset, docno end}
+     */
+    public static int[] readInfo(FileSystem fs, Path segmentPath) throws IOException {
+        try (FSDataInputStream in = fs.open(new Path(segmentPath, INFO_FILE))) {
+            return new int[] { in.readInt(), in.readInt() };
+        }
+    }
+
+    public static void writeInfo(FileSystem fs, Path segmentPath, int docnoOffset, int docnoEnd) throws IOException {
+        try (FSDataOutputStream out = fs.create(new Path(segmentPath, INFO_FILE), true)) {
+            out.writeInt(docnoOffset);
+            out.writeInt(docnoEnd);
+        }
+    }
+}
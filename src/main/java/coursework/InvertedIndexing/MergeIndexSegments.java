@@ -0,0 +1,366 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.log4j.Logger;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.ParserProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges a run of small consecutive segments of an index built with
+ * {@code BuildInvertedIndexCompressed -segment} into one segment.
+ *
+ * Posting lists are merged k-way by term. Segments cover increasing docno ranges, so a merged list is
+ * the concatenation of the source lists: only the first gap of each later source is rewritten against
+ * the last docno of the sources before it, which the source dictionaries record, and all other
+ * (gap, tf) bytes are copied as they are. The dictionary entry of a merged list is built from those of
+ * its sources at the same time, so no list is decoded. Positions streams hold no docnos and are
+ * concatenated outright. Positions, document lengths and document stores are kept only if every source
+ * segment has them.
+ *
+ * The merged segment is written beside the index, renamed into it under the name
+ * {@link IndexSegment#mergedSegment} gives it, and only then are the sources deleted: until they are,
+ * readers skip them because the merged segment covers their docno range, and the next merge deletes
+ * any left over by an interrupted one.
+ */
+public class MergeIndexSegments extends Configured implements Tool {
+    private static final Logger LOG = Logger.getLogger(MergeIndexSegments.class);
+
+    // Walks the data file of one partition of one segment.
+    private static final class SegmentCursor implements Comparable<SegmentCursor> {
+        private final int segment;
+        private final SequenceFile.Reader reader;
+        private final Text key = new Text();
+        private final BytesWritable value = new BytesWritable();
+
+        private SegmentCursor(int segment, SequenceFile.Reader reader) {
+            this.segment = segment;
+            this.reader = reader;
+        }
+
+        private boolean advance() throws IOException {
+            return reader.next(key, value);
+        }
+
+        // Equal terms come out in segment (docno) order.
+        @Override
+        public int compareTo(SegmentCursor other) {
+            int cmp = key.compareTo(other.key);
+            return cmp != 0 ? cmp : Integer.compare(segment, other.segment);
+        }
+    }
+
+    private MergeIndexSegments() {}
+
+    private static final class Args {
+        @Option(name = "-index", metaVar = "[path]", required = true, usage = "segmented index path")
+        String index;
+
+        @Option(name = "-mergeFactor", metaVar = "[num]", usage = "maximum number of segments to merge")
+        int mergeFactor = 10;
+
+        @Option(name = "-maxSegmentMB", metaVar = "[num]", usage = "segments larger than this are not merged")
+        long maxSegmentMB = 1024;
+
+        @Option(name = "-partitions", metaVar = "[num]", usage = "number of partitions of the merged segment")
+        int numPartitions = 1;
+    }
+
+    /**
+     * Runs this tool.
+     */
+    @Override
+    public int run(String[] argv) throws Exception {
+        final Args args = new Args();
+        CmdLineParser parser = new CmdLineParser(args, ParserProperties.defaults().withUsageWidth(100));
+
+        try {
+            parser.parseArgument(argv);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            return -1;
+        }
+
+        LOG.info("Tool: " + MergeIndexSegments.class.getSimpleName());
+        LOG.info(" - index path: " + args.index);
+        LOG.info(" - merge factor: " + args.mergeFactor);
+        LOG.info(" - max segment size: " + args.maxSegmentMB + "MB");
+        LOG.info(" - num partitions: " + args.numPartitions);
+
+        FileSystem fs = FileSystem.get(getConf());
+        Path indexPath = new Path(args.index);
+
+        for (Path leftover : IndexSegment.mergedSegments(fs, indexPath)) {
+            LOG.info("Deleting " + leftover + ", left over by an interrupted merge");
+            fs.delete(leftover, true);
+        }
+
+        // Pick the first run of consecutive small segments; merging non-adjacent segments would
+        // interleave docno ranges.
+        List<Path> sources = new ArrayList<>();
+        for (Path segment : IndexSegment.segments(fs, indexPath)) {
+            if (sources.size() == args.mergeFactor) {
+                break;
+            }
+            if (fs.getContentSummary(segment).getLength() < args.maxSegmentMB * 1024 * 1024) {
+                sources.add(segment);
+            } else if (sources.size() < 2) {
+                sources.clear();
+            } else {
+                break;
+            }
+        }
+        if (sources.size() < 2) {
+            LOG.info("No run of small segments to merge");
+            return 0;
+        }
+        LOG.info("Merging segments " + sources);
+
+        long startTime = System.currentTimeMillis();
+        Path target = IndexSegment.mergedSegment(indexPath, sources.get(0));
+        Path merged = new Path(indexPath, target.getName() + ".merging");
+        fs.delete(merged, true);
+        fs.mkdirs(merged);
+
+        TermDictionary dictionary = mergePostings(fs, sources, merged, args.numPartitions);
+        dictionary.write(fs, new Path(merged, TermDictionary.FILE_NAME));
+        if (allHave(fs, sources, IndexSegment.POSITIONS_DIRECTORY)) {
+            mergePositions(fs, sources, merged, args.numPartitions);
+        }
+        if (allHave(fs, sources, DocumentLengths.DIRECTORY)) {
+            copySideFiles(fs, sources, merged, DocumentLengths.DIRECTORY);
+        }
+        if (allHave(fs, sources, DocumentStore.DIRECTORY)) {
+            copySideFiles(fs, sources, merged, DocumentStore.DIRECTORY);
+        }
+
+        int[] first = IndexSegment.readInfo(fs, sources.get(0));
+        int[] last = IndexSegment.readInfo(fs, sources.get(sources.size() - 1));
+        IndexSegment.writeInfo(fs, merged, first[0], last[1]);
+
+        // Complete before it is renamed in, and the sources stay whole until it is.
+        if (!fs.rename(merged, target)) {
+            throw new IOException("Cannot rename " + merged + " to " + target);
+        }
+        for (Path source : sources) {
+            fs.delete(source, true);
+        }
+
+        System.out.println("Merged " + sources.size() + " segments (" + dictionary.size() + " terms) in "
+                + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
+
+        return 0;
+    }
+
+    /**
+     * Merges the posting lists of the sources into {@code numPartitions} partitions and builds the
+     * dictionary of the merged segment from the entries of the source dictionaries.
+     */
+    private static TermDictionary mergePostings(FileSystem fs, List<Path> sources, Path merged,
+                                                int numPartitions) throws IOException {
+        TermDictionary[] dictionaries = new TermDictionary[sources.size()];
+        for (int i = 0; i < sources.size(); i++) {
+            dictionaries[i] = TermDictionary.read(fs, new Path(sources.get(i), TermDictionary.FILE_NAME));
+        }
+        String[] partitions = new String[numPartitions];
+        for (int p = 0; p < numPartitions; p++) {
+            partitions[p] = String.format("part-r-%05d", p);
+        }
+
+        PriorityQueue<SegmentCursor> queue = new PriorityQueue<>();
+        List<SegmentCursor> cursors = new ArrayList<>();
+        PartitionWriter[] writers = new PartitionWriter[numPartitions];
+        TermDictionary.Builder builder = new TermDictionary.Builder();
+        try {
+            openCursors(fs, sources, null, queue, cursors);
+            for (int p = 0; p < numPartitions; p++) {
+                writers[p] = new PartitionWriter(fs.getConf(), new Path(merged, partitions[p]));
+            }
+
+            Text term = new Text();
+            BytesWritable value = new BytesWritable();
+            DataOutputBuffer payload = new DataOutputBuffer();
+            DataOutputBuffer output = new DataOutputBuffer();
+            DataInputBuffer in = new DataInputBuffer();
+            while (!queue.isEmpty()) {
+                SegmentCursor cursor = queue.poll();
+                term.set(cursor.key);
+
+                payload.reset();
+                int df = 0;
+                int maxTf = 0;
+                int minLength = Integer.MAX_VALUE;
+                int lastDocno = 0;
+                boolean first = true;
+                while (true) {
+                    TermDictionary.Entry entry = dictionaries[cursor.segment].get(term.toString());
+                    if (entry == null) {
+                        throw new IOException("Term " + term + " is missing from the dictionary of "
+                                + sources.get(cursor.segment));
+                    }
+                    in.reset(cursor.value.getBytes(), cursor.value.getLength());
+                    df += WritableUtils.readVInt(in);
+                    int firstGap = WritableUtils.readVInt(in);
+                    int rest = in.getPosition();
+                    // The first gap of a source is its absolute first docno: re-gap it against the
+                    // previous source and copy the remaining bytes verbatim.
+                    WritableUtils.writeVInt(payload, first ? firstGap : firstGap - lastDocno);
+                    payload.write(cursor.value.getBytes(), rest, cursor.value.getLength() - rest);
+                    maxTf = Math.max(maxTf, entry.getMaxTf());
+                    minLength = Math.min(minLength, entry.getMinLength());
+                    lastDocno = entry.getLastDocno();
+                    first = false;
+
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                    if (queue.isEmpty() || !queue.peek().key.equals(term)) {
+                        break;
+                    }
+                    cursor = queue.poll();
+                }
+
+                output.reset();
+                WritableUtils.writeVInt(output, df);
+                output.write(payload.getData(), 0, payload.getLength());
+                value.set(output.getData(), 0, output.getLength());
+                int partition = (term.toString().hashCode() & Integer.MAX_VALUE) % numPartitions;
+                long offset = writers[partition].append(term, value);
+                builder.add(term, partition, offset, df, maxTf, minLength, lastDocno);
+            }
+        } finally {
+            close(cursors, writers);
+        }
+        return builder.build(partitions);
+    }
+
+    private static void mergePositions(FileSystem fs, List<Path> sources, Path merged, int numPartitions)
+            throws IOException {
+        PriorityQueue<SegmentCursor> queue = new PriorityQueue<>();
+        List<SegmentCursor> cursors = new ArrayList<>();
+        PartitionWriter[] writers = new PartitionWriter[numPartitions];
+        try {
+            openCursors(fs, sources, IndexSegment.POSITIONS_DIRECTORY, queue, cursors);
+            Path mergedDir = new Path(merged, IndexSegment.POSITIONS_DIRECTORY);
+            for (int p = 0; p < numPartitions; p++) {
+                writers[p] = new PartitionWriter(fs.getConf(), new Path(mergedDir, String.format("part-r-%05d", p)));
+            }
+
+            Text term = new Text();
+            BytesWritable value = new BytesWritable();
+            DataOutputBuffer payload = new DataOutputBuffer();
+            while (!queue.isEmpty()) {
+                SegmentCursor cursor = queue.poll();
+                term.set(cursor.key);
+
+                payload.reset();
+                while (true) {
+                    payload.write(cursor.value.getBytes(), 0, cursor.value.getLength());
+                    if (cursor.advance()) {
+                        queue.add(cursor);
+                    }
+                    if (queue.isEmpty() || !queue.peek().key.equals(term)) {
+                        break;
+                    }
+                    cursor = queue.poll();
+                }
+
+                value.set(payload.getData(), 0, payload.getLength());
+                writers[(term.toString().hashCode() & Integer.MAX_VALUE) % numPartitions].append(term, value);
+            }
+        } finally {
+            close(cursors, writers);
+        }
+    }
+
+    // Opens a cursor on every partition of every source, under the given subdirectory if not null.
+    private static void openCursors(FileSystem fs, List<Path> sources, String directory,
+                                    PriorityQueue<SegmentCursor> queue, List<SegmentCursor> cursors)
+            throws IOException {
+        for (int i = 0; i < sources.size(); i++) {
+            Path sourceDir = directory == null ? sources.get(i) : new Path(sources.get(i), directory);
+            FileStatus[] partitions = fs.listStatus(sourceDir, new PathFilter() {
+                @Override
+                public boolean accept(Path path) {
+                    return path.getName().startsWith("part-r-");
+                }
+            });
+            for (FileStatus partition : partitions) {
+                SegmentCursor cursor = new SegmentCursor(i, new SequenceFile.Reader(fs.getConf(),
+                        SequenceFile.Reader.file(new Path(partition.getPath(), MapFile.DATA_FILE_NAME))));
+                cursors.add(cursor);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+        }
+    }
+
+    private static void close(List<SegmentCursor> cursors, PartitionWriter[] writers) throws IOException {
+        for (SegmentCursor cursor : cursors) {
+            cursor.reader.close();
+        }
+        for (PartitionWriter writer : writers) {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static boolean allHave(FileSystem fs, List<Path> sources, String directory) throws IOException {
+        for (Path source : sources) {
+            if (!fs.exists(new Path(source, directory))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Copied rather than moved, so that the sources are still complete if the merge stops before the swap.
+    // Every source must have the directory.
+    private static void copySideFiles(FileSystem fs, List<Path> sources, Path merged, String directory)
+            throws IOException {
+        Path targetDir = new Path(merged, directory);
+        fs.mkdirs(targetDir);
+        int n = 0;
+        for (Path source : sources) {
+            for (FileStatus status : fs.listStatus(new Path(source, directory))) {
+                if (status.getPath().getName().startsWith("part-")) {
+                    FileUtil.copy(fs, status.getPath(), fs, new Path(targetDir, String.format("part-%05d", n++)),
+                            false, fs.getConf());
+                }
+            }
+        }
+    }
+
+    /**
+     * Dispatches command-line arguments to the tool via the {@code ToolRunner}.
+     *
+     * @param args command-line arguments
+     * @throws Exception if tool encounters an exception
+     */
+    public static void main(String[] args) throws Exception {
+        ToolRunner.run(new MergeIndexSegments(), args);
+    }
+}
@@ -0,0 +1,59 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes one {@code part-r-*} partition of the index as a MapFile, like {@link MapFile.Writer}, but
+ * returns where each record starts in the {@code data} file, so that the term dictionary entry of a
+ * posting list can be written together with the list.
+ */
+public class PartitionWriter implements Closeable {
+    // Same as the MapFile default: every 128th key goes into the index file
+    private static final int INDEX_INTERVAL = 128;
+
+    private final SequenceFile.Writer data;
+    private final SequenceFile.Writer index;
+    private final LongWritable position = new LongWritable();
+    private long size = 0;
+
+    public PartitionWriter(Configuration conf, Path partitionPath) throws IOException {
+        partitionPath.getFileSystem(conf).mkdirs(partitionPath);
+        data = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(partitionPath, MapFile.DATA_FILE_NAME)),
+                SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(BytesWritable.class));
+        index = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(partitionPath, MapFile.INDEX_FILE_NAME)),
+                SequenceFile.Writer.keyClass(Text.class), SequenceFile.Writer.valueClass(LongWritable.class),
+                SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK));
+    }
+
+    /**
+     * Appends a record; keys must be added in increasing order.
+     *
+     * @return the offset of the record in the data file, for a positioned read
+     */
+    public long append(Text key, BytesWritable value) throws IOException {
+        // A sync marker the append may write first is skipped by a reader that seeks here.
+        long offset = data.getLength();
+        if (size % INDEX_INTERVAL == 0) {
+            position.set(offset);
+            index.append(key, position);
+        }
+        data.append(key, value);
+        size++;
+        return offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        index.close();
+    }
+}
@@ -0,0 +1,160 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import tl.lin.data.array.ArrayListOfInts;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A compressed partial posting list of one term, built in the mapper over many documents.
+ *
+ * The payload holds the postings in the index format, {@code [gap, tf]}, except that the gap of the
+ * first posting is left out: the reducer writes it when splicing the chunk after the previous one,
+ * using {@link #getFirstDocno()} and the previous chunk's {@link #getLastDocno()}. The chunk also keeps
+ * the largest tf and the shortest document length of its postings, from which the reducer writes the
+ * term's score bound into the dictionary without decoding the payload.
+ *
+ * For a positional index, the chunk also carries the positions stream of its postings: per posting,
+ * {@code VInt byteLength} followed by the gap-encoded token positions. Blocks are self-contained, so
+ * positions streams of consecutive chunks are spliced by plain concatenation.
+ */
+public class PostingsChunk implements Writable {
+    private int firstDocno;
+    private int lastDocno;
+    private int df;
+    private int maxTf = 0;
+    private int minLength = Integer.MAX_VALUE;
+    private final DataOutputBuffer payload = new DataOutputBuffer();
+    private final DataOutputBuffer positions = new DataOutputBuffer();
+
+    public PostingsChunk() {}
+
+    /**
+     * Appends a posting; docnos must be added in increasing order.
+     *
+     * @param documentLength length of the document in tokens
+     */
+    public void add(int docno, int tf, int documentLength) throws IOException {
+        if (df == 0) {
+            firstDocno = docno;
+        } else {
+            WritableUtils.writeVInt(payload, docno - lastDocno);
+        }
+        WritableUtils.writeVInt(payload, tf);
+        lastDocno = docno;
+        df++;
+        maxTf = Math.max(maxTf, tf);
+        minLength = Math.min(minLength, documentLength);
+    }
+
+    /**
+     * Appends a posting together with its token positions; the tf is the number of positions.
+     */
+    public void add(int docno, ArrayListOfInts termPositions, int documentLength) throws IOException {
+        add(docno, termPositions.size(), documentLength);
+
+        // Length prefix first, so readers can skip the block without decoding it.
+        int length = 0;
+        int prev = 0;
+        for (int i = 0; i < termPositions.size(); i++) {
+            length += WritableUtils.getVIntSize(termPositions.get(i) - prev);
+            prev = termPositions.get(i);
+        }
+        WritableUtils.writeVInt(positions, length);
+        prev = 0;
+        for (int i = 0; i < termPositions.size(); i++) {
+            WritableUtils.writeVInt(positions, termPositions.get(i) - prev);
+            prev = termPositions.get(i);
+        }
+    }
+
+    public int getFirstDocno() {
+        return firstDocno;
+    }
+
+    public int getLastDocno() {
+        return lastDocno;
+    }
+
+    public int getDf() {
+        return df;
+    }
+
+    public int getMaxTf() {
+        return maxTf;
+    }
+
+    public int getMinLength() {
+        return minLength;
+    }
+
+    public byte[] getPayload() {
+        return payload.getData();
+    }
+
+    public int getPayloadLength() {
+        return payload.getLength();
+    }
+
+    public byte[] getPositions() {
+        return positions.getData();
+    }
+
+    public int getPositionsLength() {
+        return positions.getLength();
+    }
+
+    public PostingsChunk copy() throws IOException {
+        PostingsChunk chunk = new PostingsChunk();
+        chunk.firstDocno = firstDocno;
+        chunk.lastDocno = lastDocno;
+        chunk.df = df;
+        chunk.maxTf = maxTf;
+        chunk.minLength = minLength;
+        chunk.payload.write(payload.getData(), 0, payload.getLength());
+        chunk.positions.write(positions.getData(), 0, positions.getLength());
+        return chunk;
+    }
+
+    /**
+     * Deserializes this object.
+     *
+     * @param in source for raw byte representation
+     * @throws IOException if any exception is encountered during object deserialization
+     */
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        df = WritableUtils.readVInt(in);
+        firstDocno = WritableUtils.readVInt(in);
+        lastDocno = firstDocno + WritableUtils.readVInt(in);
+        maxTf = WritableUtils.readVInt(in);
+        minLength = WritableUtils.readVInt(in);
+        payload.reset();
+        payload.write(in, WritableUtils.readVInt(in));
+        positions.reset();
+        positions.write(in, WritableUtils.readVInt(in));
+    }
+
+    /**
+     * Serializes this object.
+     *
+     * @param out where to write the raw byte representation
+     * @throws IOException if any exception is encountered during object serialization
+     */
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, df);
+        WritableUtils.writeVInt(out, firstDocno);
+        WritableUtils.writeVInt(out, lastDocno - firstDocno);
+        WritableUtils.writeVInt(out, maxTf);
+        WritableUtils.writeVInt(out, minLength);
+        WritableUtils.writeVInt(out, payload.getLength());
+        out.write(payload.getData(), 0, payload.getLength());
+        WritableUtils.writeVInt(out, positions.getLength());
+        out.write(positions.getData(), 0, positions.getLength());
+    }
+}
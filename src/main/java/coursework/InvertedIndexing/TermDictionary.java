@@ -0,0 +1,370 @@
+package coursework.InvertedIndexing;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * In-memory dictionary of the compressed inverted index: term -> (partition, byte offset, df, score
+ * bounds, last docno).
+ * The offset is the position of the term's record in the {@code data} file of its
+ * {@code part-r-*} MapFile, so a lookup is one memory probe per section plus one positioned read.
+ *
+ * The dictionary is made of sections, each a run of terms sorted in {@link Text} byte order and front
+ * coded in blocks of {@link #BLOCK_SIZE}: the first term of a block is stored in full, every other term
+ * as (shared prefix length, suffix). Each entry is laid out as
+ * {@code VInt shared, VInt suffixLength, suffix, VInt partition, VLong offset, VInt df, VInt maxTf,
+ * VInt minLength, VInt lastDocno}.
+ *
+ * Every reducer of {@link BuildInvertedIndexCompressed} writes the section of its own partition to
+ * {@link #BLOCKS_DIRECTORY} while it writes the postings, and the driver only concatenates them with
+ * {@link #concatenate}. {@link MergeIndexSegments} writes its terms in one sorted run, so a merged
+ * segment has a single section.
+ *
+ * The largest tf and the shortest document length of a term's postings bound its {@link BM25}
+ * contribution to any document under any collection statistics, which ranked retrieval uses for
+ * dynamic pruning. The last docno lets {@link MergeIndexSegments} re-gap a list without decoding it.
+ */
+public class TermDictionary {
+    public static final String FILE_NAME = "dictionary";
+    public static final String BLOCKS_DIRECTORY = "dictionary-blocks";
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * Location of a term's posting list in the index.
+     */
+    public static final class Entry {
+        private final int partition;
+        private final long offset;
+        private final int df;
+        private final int maxTf;
+        private final int minLength;
+        private final int lastDocno;
+
+        private Entry(int partition, long offset, int df, int maxTf, int minLength, int lastDocno) {
+            this.partition = partition;
+            this.offset = offset;
+            this.df = df;
+            this.maxTf = maxTf;
+            this.minLength = minLength;
+            this.lastDocno = lastDocno;
+        }
+
+        public int getPartition() {
+            return partition;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getDf() {
+            return df;
+        }
+
+        public int getMaxTf() {
+            return maxTf;
+        }
+
+        public int getMinLength() {
+            return minLength;
+        }
+
+        public int getLastDocno() {
+            return lastDocno;
+        }
+
+        /**
+         * An upper bound on the {@link BM25} contribution of the term to any document of this segment,
+         * under the collection statistics of the whole index.
+         */
+        public float upperBound(float avgDocLength, float idf) {
+            return BM25.score(maxTf, minLength, avgDocLength, idf);
+        }
+    }
+
+    // A sorted, front-coded run of terms.
+    private static final class Section {
+        private int numTerms;
+        private int[] blockOffsets;
+        private byte[] data;
+
+        private Entry get(byte[] target, int targetLength) throws IOException {
+            // Binary search for the last block whose first term is <= the target.
+            int lo = 0;
+            int hi = blockOffsets.length - 1;
+            int block = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int pos = blockOffsets[mid];
+                // The block head has no shared prefix: skip the 0 and read the full length.
+                pos += WritableUtils.decodeVIntSize(data[pos]);
+                int length = (int) readVLong(data, pos);
+                pos += WritableUtils.decodeVIntSize(data[pos]);
+                int cmp = WritableComparator.compareBytes(data, pos, length, target, 0, targetLength);
+                if (cmp <= 0) {
+                    block = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            if (block < 0) {
+                return null;
+            }
+
+            // Decode the block sequentially until the target is found or passed.
+            DataInputBuffer in = new DataInputBuffer();
+            in.reset(data, blockOffsets[block], data.length - blockOffsets[block]);
+            byte[] current = new byte[64];
+            int remaining = Math.min(BLOCK_SIZE, numTerms - block * BLOCK_SIZE);
+            for (int i = 0; i < remaining; i++) {
+                int shared = WritableUtils.readVInt(in);
+                int suffixLength = WritableUtils.readVInt(in);
+                if (shared + suffixLength > current.length) {
+                    current = Arrays.copyOf(current, Math.max(current.length * 2, shared + suffixLength));
+                }
+                in.readFully(current, shared, suffixLength);
+                int partition = WritableUtils.readVInt(in);
+                long offset = WritableUtils.readVLong(in);
+                int df = WritableUtils.readVInt(in);
+                int maxTf = WritableUtils.readVInt(in);
+                int minLength = WritableUtils.readVInt(in);
+                int lastDocno = WritableUtils.readVInt(in);
+
+                int cmp = WritableComparator.compareBytes(current, 0, shared + suffixLength, target, 0, targetLength);
+                if (cmp == 0) {
+                    return new Entry(partition, offset, df, maxTf, minLength, lastDocno);
+                }
+                if (cmp > 0) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        private void write(DataOutput out) throws IOException {
+            out.writeInt(numTerms);
+            out.writeInt(blockOffsets.length);
+            for (int offset : blockOffsets) {
+                out.writeInt(offset);
+            }
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        private static Section read(DataInput in) throws IOException {
+            Section section = new Section();
+            section.numTerms = in.readInt();
+            section.blockOffsets = new int[in.readInt()];
+            for (int i = 0; i < section.blockOffsets.length; i++) {
+                section.blockOffsets[i] = in.readInt();
+            }
+            section.data = new byte[in.readInt()];
+            in.readFully(section.data);
+            return section;
+        }
+    }
+
+    // partition directory names (part-r-00000, ...) in the order referenced by the entries
+    private String[] partitions;
+    private Section[] sections;
+
+    private TermDictionary() {}
+
+    public String[] getPartitions() {
+        return partitions;
+    }
+
+    public int size() {
+        int numTerms = 0;
+        for (Section section : sections) {
+            numTerms += section.numTerms;
+        }
+        return numTerms;
+    }
+
+    /**
+     * Looks up a term.
+     *
+     * @param term the term
+     * @return location of the posting list, or {@code null} if the term is not in the index
+     */
+    public Entry get(String term) throws IOException {
+        Text key = new Text(term);
+        for (Section section : sections) {
+            Entry entry = section.get(key.getBytes(), key.getLength());
+            if (entry != null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static long readVLong(byte[] bytes, int pos) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, pos, WritableUtils.decodeVIntSize(bytes[pos]));
+        return WritableUtils.readVLong(in);
+    }
+
+    /**
+     * Front codes entries added in term order, for writers that know each term's location and
+     * statistics as they write its postings.
+     */
+    public static final class Builder {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final List<Integer> blockOffsets = new ArrayList<>();
+        private byte[] previous = new byte[64];
+        private int previousLength = 0;
+        private int numTerms = 0;
+
+        /**
+         * Adds the entry of a term, which must follow the previous term in {@link Text} byte order.
+         */
+        public void add(Text term, int partition, long offset, int df, int maxTf, int minLength,
+                        int lastDocno) throws IOException {
+            byte[] termBytes = term.getBytes();
+            int length = term.getLength();
+
+            int shared = 0;
+            if (numTerms % BLOCK_SIZE == 0) {
+                out.flush();
+                blockOffsets.add(bytes.size());
+            } else {
+                int max = Math.min(previousLength, length);
+                while (shared < max && previous[shared] == termBytes[shared]) {
+                    shared++;
+                }
+            }
+            WritableUtils.writeVInt(out, shared);
+            WritableUtils.writeVInt(out, length - shared);
+            out.write(termBytes, shared, length - shared);
+            WritableUtils.writeVInt(out, partition);
+            WritableUtils.writeVLong(out, offset);
+            WritableUtils.writeVInt(out, df);
+            WritableUtils.writeVInt(out, maxTf);
+            WritableUtils.writeVInt(out, minLength);
+            WritableUtils.writeVInt(out, lastDocno);
+
+            if (length > previous.length) {
+                previous = new byte[Math.max(previous.length * 2, length)];
+            }
+            System.arraycopy(termBytes, 0, previous, 0, length);
+            previousLength = length;
+            numTerms++;
+        }
+
+        private Section section() throws IOException {
+            out.flush();
+            Section section = new Section();
+            section.numTerms = numTerms;
+            section.data = bytes.toByteArray();
+            section.blockOffsets = new int[blockOffsets.size()];
+            for (int i = 0; i < blockOffsets.size(); i++) {
+                section.blockOffsets[i] = blockOffsets.get(i);
+            }
+            return section;
+        }
+
+        /**
+         * Returns the dictionary of the entries added so far, as a single section.
+         *
+         * @param partitions partition directory names, indexed by the partitions of the entries
+         */
+        public TermDictionary build(String[] partitions) throws IOException {
+            TermDictionary dictionary = new TermDictionary();
+            dictionary.partitions = partitions;
+            dictionary.sections = new Section[] { section() };
+            return dictionary;
+        }
+
+        /**
+         * Writes the entries added so far as the section of one partition, for {@link #concatenate}.
+         */
+        public void writeSection(FileSystem fs, Path path) throws IOException {
+            try (FSDataOutputStream out = fs.create(path, true)) {
+                section().write(out);
+            }
+        }
+    }
+
+    /**
+     * Concatenates the sections the reducers wrote to {@link #BLOCKS_DIRECTORY} into the dictionary of
+     * an index. Each section file is named after its partition, which its entries refer to by number.
+     *
+     * @param fs file system
+     * @param indexPath index directory written by {@link BuildInvertedIndexCompressed}
+     * @return the dictionary
+     */
+    public static TermDictionary concatenate(FileSystem fs, Path indexPath) throws IOException {
+        FileStatus[] statuses = fs.listStatus(new Path(indexPath, BLOCKS_DIRECTORY), new PathFilter() {
+            @Override
+            public boolean accept(Path path) {
+                return path.getName().startsWith("part-r-");
+            }
+        });
+        Arrays.sort(statuses, new Comparator<FileStatus>() {
+            @Override
+            public int compare(FileStatus o1, FileStatus o2) {
+                return o1.getPath().getName().compareTo(o2.getPath().getName());
+            }
+        });
+
+        TermDictionary dictionary = new TermDictionary();
+        dictionary.partitions = new String[statuses.length];
+        dictionary.sections = new Section[statuses.length];
+        for (int i = 0; i < statuses.length; i++) {
+            dictionary.partitions[i] = statuses[i].getPath().getName();
+            try (FSDataInputStream in = fs.open(statuses[i].getPath())) {
+                dictionary.sections[i] = Section.read(in);
+            }
+        }
+        return dictionary;
+    }
+
+    public void write(FileSystem fs, Path path) throws IOException {
+        try (FSDataOutputStream out = fs.create(path, true)) {
+            out.writeInt(partitions.length);
+            for (String partition : partitions) {
+                out.writeUTF(partition);
+            }
+            out.writeInt(sections.length);
+            for (Section section : sections) {
+                section.write(out);
+            }
+        }
+    }
+
+    public static TermDictionary read(FileSystem fs, Path path) throws IOException {
+        TermDictionary dictionary = new TermDictionary();
+        try (FSDataInputStream in = fs.open(path)) {
+            dictionary.partitions = new String[in.readInt()];
+            for (int i = 0; i < dictionary.partitions.length; i++) {
+                dictionary.partitions[i] = in.readUTF();
+            }
+            dictionary.sections = new Section[in.readInt()];
+            for (int i = 0; i < dictionary.sections.length; i++) {
+                dictionary.sections[i] = Section.read(in);
+            }
+        }
+        return dictionary;
+    }
+}
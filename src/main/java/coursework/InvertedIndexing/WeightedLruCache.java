@@ -0,0 +1,91 @@
+package coursework.InvertedIndexing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache bounded by the total weight of its values rather than their number, so that one long
+ * posting list can push out many short ones. Counts hits and misses. Thread-safe.
+ *
+ * @param <K> key type
+ * @param <V> value type; cached values are shared and must not be modified
+ */
+public class WeightedLruCache<K, V> {
+    private static final class Entry<V> {
+        private final V value;
+        private final long weight;
+
+        private Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long capacity;
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param capacity maximum total weight; 0 disables the cache
+     */
+    public WeightedLruCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Adds a value, evicting the least recently used entries until the weight fits. Values heavier
+     * than the whole cache are not cached.
+     */
+    public synchronized void put(K key, V value, long valueWeight) {
+        if (valueWeight > capacity) {
+            return;
+        }
+        Entry<V> previous = map.put(key, new Entry<>(value, valueWeight));
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+        weight += valueWeight;
+
+        Iterator<Map.Entry<K, Entry<V>>> eldest = map.entrySet().iterator();
+        while (weight > capacity) {
+            weight -= eldest.next().getValue().weight;
+            eldest.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("%d hits, %d misses (%.1f%% hit rate), %d entries, weight %d",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, map.size(), weight);
+    }
+}
@@ -0,0 +1,293 @@
+package coursework.LanguageModel;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Read-only bigram/trigram relative frequencies, memory-mapped from a file written by
+ * {@link NGramModelWriter}. Nothing is loaded onto the heap but a 256 KB table to dequantize
+ * probabilities; lookups are binary searches over the mapped sections.
+ *
+ * The file is a header followed by 8-byte aligned, big-endian sections:
+ * <pre>
+ * int magic, int version, int numTerms, int numBigrams, int numTrigrams,
+ * 8 x (long offset, long length) of:
+ *   term index     int[numTerms + 1]     start of each term in the term chars
+ *   term chars     char[]                the terms in String order; a term's id is its rank
+ *   bigram index   int[numTerms + 1]     start of the successors of each w1
+ *   bigram ids     int[numBigrams]       successor ids w2, sorted within each w1
+ *   bigram probs   short[numBigrams]     quantized P(w2 | w1)
+ *   trigram index  int[numBigrams + 1]   start of the successors of each bigram, by bigram position
+ *   trigram ids    int[numTrigrams]      successor ids w3, sorted within each bigram
+ *   trigram probs  short[numTrigrams]    quantized P(w3 | w1 w2)
+ * </pre>
+ * Probabilities are stored as {@code round(-log2(p) * 2048)} in an unsigned short, a relative error
+ * below 0.04% down to p = 2^-32. Each section is mapped on its own and must stay under 2 GB.
+ */
+public class NGramModel implements Closeable {
+    static final int MAGIC = 0x4E47524D;   // "NGRM"
+    static final int VERSION = 1;
+
+    static final int TERM_INDEX = 0;
+    static final int TERM_CHARS = 1;
+    static final int BIGRAM_INDEX = 2;
+    static final int BIGRAM_IDS = 3;
+    static final int BIGRAM_PROBS = 4;
+    static final int TRIGRAM_INDEX = 5;
+    static final int TRIGRAM_IDS = 6;
+    static final int TRIGRAM_PROBS = 7;
+    static final int NUM_SECTIONS = 8;
+    static final int HEADER_BYTES = 5 * 4 + NUM_SECTIONS * 16;
+
+    private static final double SCALE = 2048.0;
+    private static final float[] PROBABILITIES = new float[1 << 16];
+
+    static {
+        for (int q = 0; q < PROBABILITIES.length; q++) {
+            PROBABILITIES[q] = (float) Math.pow(2, -q / SCALE);
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final int numTerms;
+    private final int numBigrams;
+    private final int numTrigrams;
+    private final IntBuffer termIndex;
+    private final CharBuffer termChars;
+    private final IntBuffer bigramIndex;
+    private final IntBuffer bigramIds;
+    private final ShortBuffer bigramProbs;
+    private final IntBuffer trigramIndex;
+    private final IntBuffer trigramIds;
+    private final ShortBuffer trigramProbs;
+
+    static short quantize(float probability) {
+        if (!(probability > 0)) {
+            throw new IllegalArgumentException("probability must be positive: " + probability);
+        }
+        long q = Math.round(-Math.log(Math.min(probability, 1.0)) / Math.log(2) * SCALE);
+        return (short) Math.min(q, 0xFFFF);
+    }
+
+    public NGramModel(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        if (file.readInt() != MAGIC) {
+            file.close();
+            throw new IOException(path + " is not an n-gram model");
+        }
+        int version = file.readInt();
+        if (version != VERSION) {
+            file.close();
+            throw new IOException(path + " has version " + version + ", expected " + VERSION);
+        }
+        numTerms = file.readInt();
+        numBigrams = file.readInt();
+        numTrigrams = file.readInt();
+
+        ByteBuffer[] sections = new ByteBuffer[NUM_SECTIONS];
+        FileChannel channel = file.getChannel();
+        for (int i = 0; i < NUM_SECTIONS; i++) {
+            long offset = file.readLong();
+            long length = file.readLong();
+            sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        termIndex = sections[TERM_INDEX].asIntBuffer();
+        termChars = sections[TERM_CHARS].asCharBuffer();
+        bigramIndex = sections[BIGRAM_INDEX].asIntBuffer();
+        bigramIds = sections[BIGRAM_IDS].asIntBuffer();
+        bigramProbs = sections[BIGRAM_PROBS].asShortBuffer();
+        trigramIndex = sections[TRIGRAM_INDEX].asIntBuffer();
+        trigramIds = sections[TRIGRAM_IDS].asIntBuffer();
+        trigramProbs = sections[TRIGRAM_PROBS].asShortBuffer();
+    }
+
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    public int getNumBigrams() {
+        return numBigrams;
+    }
+
+    public int getNumTrigrams() {
+        return numTrigrams;
+    }
+
+    public String getTerm(int id) {
+        int start = termIndex.get(id);
+        int end = termIndex.get(id + 1);
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = termChars.get(i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the id of the term, or -1 if it is not in the model
+     */
+    public int getId(String term) {
+        int lo = 0;
+        int hi = numTerms - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareTerm(mid, term);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Same order as String.compareTo, without decoding the stored term.
+    private int compareTerm(int id, String term) {
+        int start = termIndex.get(id);
+        int length = termIndex.get(id + 1) - start;
+        int n = Math.min(length, term.length());
+        for (int i = 0; i < n; i++) {
+            int cmp = termChars.get(start + i) - term.charAt(i);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - term.length();
+    }
+
+    // Position of id in ids[from, to), or -1.
+    private static int search(IntBuffer ids, int from, int to, int id) {
+        int lo = from;
+        int hi = to - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int value = ids.get(mid);
+            if (value < id) {
+                lo = mid + 1;
+            } else if (value > id) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int bigram(int id1, int id2) {
+        if (id1 < 0 || id2 < 0) {
+            return -1;
+        }
+        return search(bigramIds, bigramIndex.get(id1), bigramIndex.get(id1 + 1), id2);
+    }
+
+    /**
+     * @return P(w2 | w1), or 0 if the bigram is not in the model
+     */
+    public float probability(int id1, int id2) {
+        int pos = bigram(id1, id2);
+        return pos < 0 ? 0.0f : PROBABILITIES[bigramProbs.get(pos) & 0xFFFF];
+    }
+
+    /**
+     * @return P(w3 | w1 w2), or 0 if the trigram is not in the model
+     */
+    public float probability(int id1, int id2, int id3) {
+        int prefix = bigram(id1, id2);
+        if (prefix < 0 || id3 < 0) {
+            return 0.0f;
+        }
+        int pos = search(trigramIds, trigramIndex.get(prefix), trigramIndex.get(prefix + 1), id3);
+        return pos < 0 ? 0.0f : PROBABILITIES[trigramProbs.get(pos) & 0xFFFF];
+    }
+
+    public float probability(String w1, String w2) {
+        return probability(getId(w1), getId(w2));
+    }
+
+    public float probability(String w1, String w2, String w3) {
+        return probability(getId(w1), getId(w2), getId(w3));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Looks up P(w2 | w1) or P(w3 | w1 w2), or with {@code -benchmark}, times random bigram lookups.
+     *
+     * <pre>
+     * java -cp target/assignments-1.0.jar coursework.LanguageModel.NGramModel model.bin of the
+     * java -cp target/assignments-1.0.jar coursework.LanguageModel.NGramModel model.bin -benchmark
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        boolean benchmark = args.length == 2 && args[1].equals("-benchmark");
+        if (!benchmark && (args.length < 3 || args.length > 4)) {
+            System.err.println("usage: NGramModel [model] (w1 w2 [w3] | -benchmark)");
+            System.exit(-1);
+        }
+        try (NGramModel model = new NGramModel(new File(args[0]))) {
+            System.out.println(model.getNumTerms() + " terms, " + model.getNumBigrams() + " bigrams, "
+                    + model.getNumTrigrams() + " trigrams");
+            if (benchmark) {
+                benchmark(model);
+            } else if (args.length == 3) {
+                System.out.println("P(" + args[2] + " | " + args[1] + ") = " + model.probability(args[1], args[2]));
+            } else {
+                System.out.println("P(" + args[3] + " | " + args[1] + " " + args[2] + ") = "
+                        + model.probability(args[1], args[2], args[3]));
+            }
+        }
+    }
+
+    // Lookups by string, of bigrams that are in the model.
+    private static void benchmark(NGramModel model) {
+        if (model.numBigrams == 0) {
+            return;
+        }
+        int n = 1 << 16;
+        String[] w1 = new String[n];
+        String[] w2 = new String[n];
+        Random random = new Random(0);
+        for (int i = 0; i < n; i++) {
+            int pos = random.nextInt(model.numBigrams);
+            int id1 = 0;
+            int lo = 0;
+            int hi = model.numTerms - 1;
+            // the prefix whose successors contain pos
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (model.bigramIndex.get(mid) <= pos) {
+                    id1 = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            w1[i] = model.getTerm(id1);
+            w2[i] = model.getTerm(model.bigramIds.get(pos));
+        }
+
+        float sum = 0;
+        for (int round = 0; round < 5; round++) {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                sum += model.probability(w1[i], w2[i]);
+            }
+            long nanos = System.nanoTime() - startTime;
+            System.out.println(String.format("round %d: %.0f ns per lookup", round, (double) nanos / n));
+        }
+        System.out.println("checksum " + sum);
+    }
+}
@@ -0,0 +1,202 @@
+package coursework.LanguageModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Writes an {@link NGramModel} file from sorted input, streaming: terms in increasing
+ * {@link String#compareTo} order, then bigrams in (w1, w2) id order, then trigrams in (w1, w2, w3) id
+ * order. Each section is spooled to a temp file next to the output and the sections are concatenated
+ * behind the header on {@link #close()}.
+ *
+ * <pre>
+ * int id = writer.addTerm(term); ...
+ * writer.addBigram(id1, id2, p); ...
+ * writer.addTrigram(id1, id2, id3, p); ...
+ * writer.close();
+ * </pre>
+ */
+public class NGramModelWriter implements Closeable {
+    private final File output;
+    private final File[] sectionFiles = new File[NGramModel.NUM_SECTIONS];
+    private final DataOutputStream[] sections = new DataOutputStream[NGramModel.NUM_SECTIONS];
+    // (w1, w2) of every bigram, for matching trigrams to their prefixes; not part of the model
+    private final File bigramKeysFile;
+    private final DataOutputStream bigramKeysOut;
+
+    private int numTerms = 0;
+    private String lastTerm = null;
+    private int termChars = 0;
+
+    private int numBigrams = 0;
+    private int bigramPrefix = 0;   // w1 whose successors are being written
+    private long lastBigram = -1;
+    private boolean bigramsDone = false;
+
+    // Trigrams are matched to their bigram prefix by walking the spooled bigram keys in step.
+    private DataInputStream bigramKeys;
+    private int trigramPrefix = 0;  // index of the bigram whose successors are being written
+    private long trigramPrefixKey;
+    private int numTrigrams = 0;
+    private int lastTrigramId = -1;
+
+    public NGramModelWriter(File output) throws IOException {
+        this.output = output;
+        File dir = output.getAbsoluteFile().getParentFile();
+        for (int i = 0; i < NGramModel.NUM_SECTIONS; i++) {
+            sectionFiles[i] = File.createTempFile(output.getName() + "-", ".section" + i, dir);
+            sections[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sectionFiles[i])));
+        }
+        bigramKeysFile = File.createTempFile(output.getName() + "-", ".keys", dir);
+        bigramKeysOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bigramKeysFile)));
+        sections[NGramModel.TERM_INDEX].writeInt(0);
+        sections[NGramModel.BIGRAM_INDEX].writeInt(0);
+        sections[NGramModel.TRIGRAM_INDEX].writeInt(0);
+    }
+
+    /**
+     * Adds the next term.
+     *
+     * @return its id
+     */
+    public int addTerm(String term) throws IOException {
+        if (numBigrams > 0) {
+            throw new IllegalStateException("terms must be added before bigrams");
+        }
+        if (lastTerm != null && lastTerm.compareTo(term) >= 0) {
+            throw new IllegalArgumentException("terms out of order: \"" + lastTerm + "\" before \"" + term + "\"");
+        }
+        sections[NGramModel.TERM_CHARS].writeChars(term);
+        termChars += term.length();
+        sections[NGramModel.TERM_INDEX].writeInt(termChars);
+        lastTerm = term;
+        return numTerms++;
+    }
+
+    public void addBigram(int id1, int id2, float probability) throws IOException {
+        if (bigramsDone) {
+            throw new IllegalStateException("bigrams must be added before trigrams");
+        }
+        long key = key(id1, id2);
+        if (key <= lastBigram || id1 >= numTerms || id2 >= numTerms) {
+            throw new IllegalArgumentException("bigram (" + id1 + ", " + id2 + ") out of order or unknown");
+        }
+        // Close the successor lists of the prefixes before id1, including those without bigrams.
+        while (bigramPrefix < id1) {
+            sections[NGramModel.BIGRAM_INDEX].writeInt(numBigrams);
+            bigramPrefix++;
+        }
+        sections[NGramModel.BIGRAM_IDS].writeInt(id2);
+        sections[NGramModel.BIGRAM_PROBS].writeShort(NGramModel.quantize(probability));
+        bigramKeysOut.writeLong(key);
+        numBigrams++;
+        lastBigram = key;
+    }
+
+    private void finishBigrams() throws IOException {
+        if (bigramsDone) {
+            return;
+        }
+        while (bigramPrefix < numTerms) {
+            sections[NGramModel.BIGRAM_INDEX].writeInt(numBigrams);
+            bigramPrefix++;
+        }
+        bigramKeysOut.close();
+        bigramKeys = new DataInputStream(new BufferedInputStream(new FileInputStream(bigramKeysFile)));
+        trigramPrefixKey = numBigrams > 0 ? bigramKeys.readLong() : Long.MAX_VALUE;
+        bigramsDone = true;
+    }
+
+    /**
+     * Adds P(w3 | w1 w2); (w1, w2) must have been added as a bigram.
+     */
+    public void addTrigram(int id1, int id2, int id3, float probability) throws IOException {
+        finishBigrams();
+        long key = key(id1, id2);
+        if (key < trigramPrefixKey || (key == trigramPrefixKey && id3 <= lastTrigramId)) {
+            throw new IllegalArgumentException("trigram (" + id1 + ", " + id2 + ", " + id3 + ") out of order");
+        }
+        while (trigramPrefixKey < key) {
+            sections[NGramModel.TRIGRAM_INDEX].writeInt(numTrigrams);
+            trigramPrefix++;
+            lastTrigramId = -1;
+            try {
+                trigramPrefixKey = bigramKeys.readLong();
+            } catch (EOFException e) {
+                trigramPrefixKey = Long.MAX_VALUE;
+            }
+        }
+        if (trigramPrefixKey != key) {
+            throw new IllegalArgumentException("trigram prefix (" + id1 + ", " + id2 + ") is not a bigram");
+        }
+        sections[NGramModel.TRIGRAM_IDS].writeInt(id3);
+        sections[NGramModel.TRIGRAM_PROBS].writeShort(NGramModel.quantize(probability));
+        numTrigrams++;
+        lastTrigramId = id3;
+    }
+
+    private static long key(int id1, int id2) {
+        return ((long) id1 << 32) | (id2 & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishBigrams();
+        while (trigramPrefix < numBigrams) {
+            sections[NGramModel.TRIGRAM_INDEX].writeInt(numTrigrams);
+            trigramPrefix++;
+        }
+        bigramKeys.close();
+        for (DataOutputStream section : sections) {
+            section.close();
+        }
+
+        try (RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+            out.setLength(0);
+            out.writeInt(NGramModel.MAGIC);
+            out.writeInt(NGramModel.VERSION);
+            out.writeInt(numTerms);
+            out.writeInt(numBigrams);
+            out.writeInt(numTrigrams);
+            long offset = align(NGramModel.HEADER_BYTES);
+            for (int i = 0; i < NGramModel.NUM_SECTIONS; i++) {
+                long length = sectionFiles[i].length();
+                out.writeLong(offset);
+                out.writeLong(length);
+                offset = align(offset + length);
+            }
+
+            byte[] buffer = new byte[1 << 16];
+            for (int i = 0; i < NGramModel.NUM_SECTIONS; i++) {
+                while (out.getFilePointer() % 8 != 0) {
+                    out.write(0);
+                }
+                try (FileInputStream in = new FileInputStream(sectionFiles[i])) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+        } finally {
+            for (File file : sectionFiles) {
+                file.delete();
+            }
+            bigramKeysFile.delete();
+        }
+    }
+
+    // Sections start on 8-byte boundaries.
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+}
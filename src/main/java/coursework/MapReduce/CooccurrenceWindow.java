@@ -0,0 +1,134 @@
+package coursework.MapReduce;
+
+import org.apache.hadoop.io.Text;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Sliding-window co-occurrence over a stream of term ids: a term co-occurs with each of the last W
+ * distinct terms before it. The window is a ring buffer, so a line of n tokens costs O(n W) however
+ * long it is, instead of truncating it and pairing up its distinct words in O(k^2).
+ *
+ * <pre>
+ * window.reset();
+ * for each token id:
+ *     int n = window.add(id);
+ *     for (int i = 0; i < n; i++) emit(id, window.partner(i));
+ * </pre>
+ *
+ * Each pair of occurrences is reported once, from the later term, so callers that want both
+ * orientations emit (partner, id) as well. Used by the MapReduce and Spark PMI jobs with {@code -window}.
+ */
+public class CooccurrenceWindow {
+    private final int width;
+    // Holds width + 1 terms: the term being added may be one of them, leaving width others.
+    private final int[] ring;
+    private int head = 0;   // slot of the most recent term
+    private int size = 0;
+    private final int[] partners;
+
+    /**
+     * Dense ids for the words a task sees, for jobs without a {@link PMIDictionary}.
+     */
+    public static final class Vocabulary {
+        private final HashMap<Text, Integer> ids = new HashMap<>();
+        private final HashMap<String, Integer> stringIds = new HashMap<>();
+        private final ArrayList<String> words = new ArrayList<>();
+
+        /**
+         * The Text is only read on lookups and copied for new words, so a reused buffer can be passed.
+         */
+        public int id(Text word) {
+            Integer id = ids.get(word);
+            if (id == null) {
+                id = id(word.toString());
+                ids.put(new Text(word), id);
+            }
+            return id;
+        }
+
+        public int id(String word) {
+            Integer id = stringIds.get(word);
+            if (id == null) {
+                id = words.size();
+                stringIds.put(word, id);
+                words.add(word);
+            }
+            return id;
+        }
+
+        public String word(int id) {
+            return words.get(id);
+        }
+    }
+
+    /**
+     * @param width number of distinct terms a term is paired with, looking back
+     */
+    public CooccurrenceWindow(int width) {
+        if (width < 1) {
+            throw new IllegalArgumentException("window width must be positive: " + width);
+        }
+        this.width = width;
+        ring = new int[width + 1];
+        partners = new int[width + 1];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Empties the window, at the start of a line.
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * Slides the window over the next term.
+     *
+     * @return the number of distinct other terms in the window before it, read with {@link #partner}
+     */
+    public int add(int id) {
+        int n = 0;
+        int found = -1;
+        for (int i = 0; i < size; i++) {
+            int term = ring[slot(i)];
+            if (term == id) {
+                found = i;
+            } else {
+                partners[n++] = term;
+            }
+        }
+
+        if (found >= 0) {
+            // Move the term to the front: close the gap it leaves, newer terms shifting back by one.
+            for (int i = found; i > 0; i--) {
+                ring[slot(i)] = ring[slot(i - 1)];
+            }
+            ring[head] = id;
+        } else {
+            head = (head + 1) % ring.length;
+            ring[head] = id;
+            if (size < ring.length) {
+                size++;
+            }
+        }
+        return Math.min(n, width);
+    }
+
+    /**
+     * The i-th partner of the last term added, most recent first.
+     */
+    public int partner(int i) {
+        return partners[i];
+    }
+
+    // Slot of the i-th most recent term.
+    private int slot(int i) {
+        int slot = head - i;
+        return slot < 0 ? slot + ring.length : slot;
+    }
+}
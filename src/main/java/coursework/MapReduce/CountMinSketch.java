@@ -0,0 +1,173 @@
+package coursework.MapReduce;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A count-min sketch of word-pair counts: {@code depth} rows of {@code width} counters, one counter
+ * per row for each pair. Estimates never undercount; with width w and depth d, the overcount is at
+ * most {@code e / w} times the total count with probability {@code 1 - e^-d}.
+ *
+ * With conservative update, an add only raises the counters that are below the new estimate, which
+ * tightens the overcount considerably on skewed data. Sketches of disjoint inputs with the same
+ * dimensions are merged by summing them, in either mode.
+ *
+ * Pairs are unordered: {@code pairKey(a, b) == pairKey(b, a)}. Words hash over their UTF-8 bytes, so
+ * {@link Text} and {@link String} words agree. The sketch is also {@link Serializable} for Spark.
+ */
+public class CountMinSketch implements Writable, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private int depth;
+    private int width;
+    private boolean conservative;
+    private int[][] counts;
+    private long total = 0;
+
+    public CountMinSketch() {}
+
+    public CountMinSketch(int depth, int width, boolean conservative) {
+        if (depth < 1 || width < 1) {
+            throw new IllegalArgumentException("sketch dimensions must be positive: " + depth + " x " + width);
+        }
+        this.depth = depth;
+        this.width = width;
+        this.conservative = conservative;
+        this.counts = new int[depth][width];
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Total count added; the overcount of an estimate is bounded relative to it.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    // Row i uses h1 + i * h2 (Kirsch-Mitzenmacher): two halves of one 64-bit hash give d indexes.
+    private int index(long key, int row) {
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32);
+        return ((h1 + row * h2) & Integer.MAX_VALUE) % width;
+    }
+
+    public void add(long key, int count) {
+        total += count;
+        if (!conservative) {
+            for (int i = 0; i < depth; i++) {
+                counts[i][index(key, i)] += count;
+            }
+            return;
+        }
+        int target = estimate(key) + count;
+        for (int i = 0; i < depth; i++) {
+            int j = index(key, i);
+            if (counts[i][j] < target) {
+                counts[i][j] = target;
+            }
+        }
+    }
+
+    public int estimate(long key) {
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counts[i][index(key, i)]);
+        }
+        return min;
+    }
+
+    /**
+     * Adds the counts of another sketch with the same dimensions.
+     */
+    public void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("cannot merge a " + other.depth + " x " + other.width
+                    + " sketch into a " + depth + " x " + width + " sketch");
+        }
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < width; j++) {
+                counts[i][j] += other.counts[i][j];
+            }
+        }
+        total += other.total;
+    }
+
+    public static long hash(byte[] bytes, int length) {
+        // 64-bit FNV-1a, then a final mix so that both halves are usable as row hashes
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static long hash(Text word) {
+        return hash(word.getBytes(), word.getLength());
+    }
+
+    public static long hash(String word) {
+        byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        return hash(bytes, bytes.length);
+    }
+
+    /**
+     * Combines two word hashes into the key of their unordered pair.
+     */
+    public static long pairKey(long hash1, long hash2) {
+        long lo = Math.min(hash1, hash2);
+        long hi = Math.max(hash1, hash2);
+        long h = lo * 0x9E3779B97F4A7C15L + hi;
+        h ^= h >>> 29;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    public static long pairKey(String word1, String word2) {
+        return pairKey(hash(word1), hash(word2));
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(depth);
+        out.writeInt(width);
+        out.writeBoolean(conservative);
+        out.writeLong(total);
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < width; j++) {
+                out.writeInt(counts[i][j]);
+            }
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        depth = in.readInt();
+        width = in.readInt();
+        conservative = in.readBoolean();
+        total = in.readLong();
+        counts = new int[depth][width];
+        for (int i = 0; i < depth; i++) {
+            for (int j = 0; j < width; j++) {
+                counts[i][j] = in.readInt();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package coursework.MapReduce;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dense int ids for the words of a PMI run, with their line counts. Ids are assigned in order of
+ * decreasing count, so frequent words get small ids. With ids, the co-occurrence job shuffles and
+ * sorts fixed-size int keys instead of words, and words are decoded only when PMI is written out.
+ *
+ * The file holds {@code int numLines, int numWords}, then {@code UTF word, int count} in id order.
+ */
+public class PMIDictionary {
+    public static final String FILE_NAME = "dictionary";
+
+    private int numLines;
+    private String[] words;
+    private int[] counts;
+    // Built on demand; keyed by Text so that mappers can look up reused token buffers.
+    private Map<Text, Integer> ids;
+
+    private PMIDictionary() {}
+
+    public int getNumLines() {
+        return numLines;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    public String getWord(int id) {
+        return words[id];
+    }
+
+    public int getCount(int id) {
+        return counts[id];
+    }
+
+    /**
+     * Looks up the id of a word; the Text is only read, so a reused buffer can be passed.
+     *
+     * @return the id, or -1 if the word is unknown
+     */
+    public int getId(Text word) {
+        if (ids == null) {
+            ids = new HashMap<>(words.length * 2);
+            for (int i = 0; i < words.length; i++) {
+                ids.put(new Text(words[i]), i);
+            }
+        }
+        Integer id = ids.get(word);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Assigns ids to the output of the word-count job ({@code word \t count} lines, with the line
+     * count under "*") and writes the dictionary.
+     */
+    public static void build(FileSystem fs, Path wordCountPath, Path dictionaryPath) throws IOException {
+        final List<String> words = new ArrayList<>();
+        final Map<String, Integer> counts = new HashMap<>();
+        int numLines = 0;
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                fs.open(new Path(wordCountPath, "part-r-00000"))))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split("\\s+");
+                if (parts.length != 2) {
+                    continue;
+                }
+                if (parts[0].equals("*")) {
+                    numLines = Integer.parseInt(parts[1]);
+                } else {
+                    words.add(parts[0]);
+                    counts.put(parts[0], Integer.parseInt(parts[1]));
+                }
+            }
+        }
+        Collections.sort(words, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                int cmp = Integer.compare(counts.get(o2), counts.get(o1));
+                return cmp != 0 ? cmp : o1.compareTo(o2);
+            }
+        });
+
+        try (FSDataOutputStream out = fs.create(dictionaryPath, true)) {
+            out.writeInt(numLines);
+            out.writeInt(words.size());
+            for (String word : words) {
+                out.writeUTF(word);
+                out.writeInt(counts.get(word));
+            }
+        }
+    }
+
+    public static PMIDictionary read(FileSystem fs, Path dictionaryPath) throws IOException {
+        PMIDictionary dictionary = new PMIDictionary();
+        try (FSDataInputStream in = fs.open(dictionaryPath)) {
+            dictionary.numLines = in.readInt();
+            int n = in.readInt();
+            dictionary.words = new String[n];
+            dictionary.counts = new int[n];
+            for (int i = 0; i < n; i++) {
+                dictionary.words[i] = in.readUTF();
+                dictionary.counts[i] = in.readInt();
+            }
+        }
+        return dictionary;
+    }
+}
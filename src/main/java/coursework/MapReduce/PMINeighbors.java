@@ -0,0 +1,88 @@
+package coursework.MapReduce;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The top partners of a word by PMI, in decreasing PMI order. Serialized compactly as
+ * {@code VInt n}, then n times {@code (Text partner, float pmi, VInt count)}, in place of a
+ * {@code HashMapWritable<Text, PairOfFloatInt>} that writes class names and boxed pairs.
+ */
+public class PMINeighbors implements Writable {
+    private String[] words = new String[8];
+    private float[] pmis = new float[8];
+    private int[] counts = new int[8];
+    private int size = 0;
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends a partner; callers add partners in decreasing PMI order.
+     */
+    public void add(String word, float pmi, int count) {
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+            pmis = Arrays.copyOf(pmis, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        words[size] = word;
+        pmis[size] = pmi;
+        counts[size] = count;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getWord(int i) {
+        return words[i];
+    }
+
+    public float getPMI(int i) {
+        return pmis[i];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, size);
+        for (int i = 0; i < size; i++) {
+            Text.writeString(out, words[i]);
+            out.writeFloat(pmis[i]);
+            WritableUtils.writeVInt(out, counts[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        clear();
+        int n = WritableUtils.readVInt(in);
+        for (int i = 0; i < n; i++) {
+            add(Text.readString(in), in.readFloat(), WritableUtils.readVInt(in));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(words[i]).append("=(").append(pmis[i]).append(", ").append(counts[i]).append(")");
+        }
+        return sb.append("}").toString();
+    }
+}
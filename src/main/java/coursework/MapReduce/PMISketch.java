@@ -0,0 +1,213 @@
+package coursework.MapReduce;
+
+import io.bespin.java.util.ByteTokenizer;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Sketch mode of the PMI jobs ({@code -sketch}). The word-count job also builds a
+ * {@link CountMinSketch} of pair counts in every mapper; the driver sums them with {@link #merge}.
+ * The PMI job then emits only candidate pairs, those whose estimate clears the threshold, and counts
+ * them exactly. Estimates never undercount, so no pair above the threshold is lost and the output
+ * equals the exact output; the sketch only cuts what is shuffled.
+ *
+ * The reducers compare each candidate's estimate with its exact count and report the error of the
+ * sketch in the {@link Report} counters, which {@link #writeReport} writes out.
+ */
+public class PMISketch {
+    private static final Logger LOG = Logger.getLogger(PMISketch.class);
+    private static final int WORD_LIMIT = 40;
+
+    public static final String DEPTH_FIELD = "sketch.depth";
+    public static final String WIDTH_FIELD = "sketch.width";
+    public static final String CONSERVATIVE_FIELD = "sketch.conservative";
+    public static final String PATH_FIELD = "sketchPath";
+    public static final String SKETCH_OUTPUT = "sketch";
+    public static final String FILE_NAME = "sketch.bin";
+
+    public static enum Report {
+        candidates, falsePositives, verified, countOverestimate, pmiErrorMicros
+    }
+
+    private final CountMinSketch sketch;
+    private final int threshold;
+
+    private PMISketch(CountMinSketch sketch, int threshold) {
+        this.sketch = sketch;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Word counts as in the plain word-count mappers, plus a sketch of the counts of the unordered
+     * pairs of distinct words on each line, written to the {@code sketch} side output at the end.
+     */
+    public static final class WordCountMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final long[] hashes = new long[WORD_LIMIT];
+        private CountMinSketch sketch;
+        private MultipleOutputs<Text, IntWritable> mos;
+
+        @Override
+        public void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            sketch = new CountMinSketch(conf.getInt(DEPTH_FIELD, 4), conf.getInt(WIDTH_FIELD, 1 << 20),
+                    conf.getBoolean(CONSERVATIVE_FIELD, false));
+            mos = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            WORD.set("*");
+            context.write(WORD, ONE);
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                context.write(WORDS[i], ONE);
+                hashes[i] = CountMinSketch.hash(WORDS[i]);
+                for (int j = 0; j < i; j++) {
+                    sketch.add(CountMinSketch.pairKey(hashes[j], hashes[i]), 1);
+                }
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            mos.write(SKETCH_OUTPUT, NullWritable.get(), sketch, SKETCH_OUTPUT + "/part");
+            mos.close();
+        }
+    }
+
+    /**
+     * Sets up the sketch dimensions and side output of the word-count job.
+     */
+    public static void configure(Job job, int depth, int width, boolean conservative) {
+        Configuration conf = job.getConfiguration();
+        conf.setInt(DEPTH_FIELD, depth);
+        conf.setInt(WIDTH_FIELD, width);
+        conf.setBoolean(CONSERVATIVE_FIELD, conservative);
+        MultipleOutputs.addNamedOutput(job, SKETCH_OUTPUT, SequenceFileOutputFormat.class,
+                NullWritable.class, CountMinSketch.class);
+    }
+
+    /**
+     * Sums the per-mapper sketches under {@code <wordCountPath>/sketch} into {@code <wordCountPath>/sketch.bin}.
+     *
+     * @return the path of the merged sketch
+     */
+    public static Path merge(FileSystem fs, Path wordCountPath) throws IOException {
+        CountMinSketch total = null;
+        CountMinSketch sketch = new CountMinSketch();
+        for (FileStatus status : fs.listStatus(new Path(wordCountPath, SKETCH_OUTPUT))) {
+            if (!status.getPath().getName().startsWith("part-")) {
+                continue;
+            }
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(fs.getConf(),
+                    SequenceFile.Reader.file(status.getPath()))) {
+                while (reader.next(NullWritable.get(), sketch)) {
+                    if (total == null) {
+                        total = sketch;
+                        sketch = new CountMinSketch();
+                    } else {
+                        total.merge(sketch);
+                    }
+                }
+            }
+        }
+        if (total == null) {
+            throw new IOException("no sketches found under " + new Path(wordCountPath, SKETCH_OUTPUT));
+        }
+
+        Path path = new Path(wordCountPath, FILE_NAME);
+        try (FSDataOutputStream out = fs.create(path, true)) {
+            total.write(out);
+        }
+        LOG.info("Merged sketch: " + total.getDepth() + " x " + total.getWidth() + ", " + total.getTotal() + " pairs");
+        return path;
+    }
+
+    public static CountMinSketch read(Configuration conf) throws IOException {
+        CountMinSketch sketch = new CountMinSketch();
+        try (FSDataInputStream in = FileSystem.get(conf).open(new Path(conf.get(PATH_FIELD)))) {
+            sketch.readFields(in);
+        }
+        return sketch;
+    }
+
+    /**
+     * Loads the sketch for the reducers of the PMI job.
+     *
+     * @return null when the job does not run in sketch mode
+     */
+    public static PMISketch forReducer(Configuration conf) throws IOException {
+        if (conf.get(PATH_FIELD) == null) {
+            return null;
+        }
+        return new PMISketch(read(conf), conf.getInt("threshold", 10));
+    }
+
+    /**
+     * Records a candidate pair and its exact count. The PMI of the estimate exceeds the exact PMI by
+     * {@code log10(estimate / count)}, since the marginals are exact.
+     */
+    public void record(String word1, String word2, int count, TaskAttemptContext context) {
+        context.getCounter(Report.candidates).increment(1);
+        if (count < threshold) {
+            context.getCounter(Report.falsePositives).increment(1);
+            return;
+        }
+        int estimate = sketch.estimate(CountMinSketch.pairKey(word1, word2));
+        context.getCounter(Report.verified).increment(1);
+        context.getCounter(Report.countOverestimate).increment(estimate - count);
+        context.getCounter(Report.pmiErrorMicros).increment(Math.round(1e6 * Math.log10((double) estimate / count)));
+    }
+
+    /**
+     * Logs the error report of a finished PMI job and writes it to {@code <output>/sketch-report.txt}.
+     */
+    public static void writeReport(Job job, FileSystem fs, Path outputPath) throws IOException {
+        Counters counters = job.getCounters();
+        long candidates = counters.findCounter(Report.candidates).getValue();
+        long falsePositives = counters.findCounter(Report.falsePositives).getValue();
+        long verified = counters.findCounter(Report.verified).getValue();
+        long overestimate = counters.findCounter(Report.countOverestimate).getValue();
+        long pmiErrorMicros = counters.findCounter(Report.pmiErrorMicros).getValue();
+
+        String[] lines = {
+                "candidate pairs\t" + candidates,
+                "false positives\t" + falsePositives + String.format(" (%.2f%%)", 100.0 * falsePositives / Math.max(1, candidates)),
+                "pairs above threshold\t" + verified,
+                String.format("mean count overestimate\t%.3f", (double) overestimate / Math.max(1, verified)),
+                String.format("mean PMI error\t%.6f", pmiErrorMicros / 1e6 / Math.max(1, verified)),
+        };
+        try (FSDataOutputStream out = fs.create(new Path(outputPath, "sketch-report.txt"), true);
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"))) {
+            for (String line : lines) {
+                writer.println(line);
+                LOG.info("Sketch: " + line.replace('\t', ' '));
+            }
+        }
+    }
+}
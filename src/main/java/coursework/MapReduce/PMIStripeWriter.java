@@ -0,0 +1,175 @@
+package coursework.MapReduce;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import tl.lin.data.map.HashMapWritable;
+import tl.lin.data.pair.PairOfFloatInt;
+import tl.lin.data.pair.PairOfStrings;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Writes the PMI stripe of each word for the stripes reducers.
+ *
+ * By default every partner above the threshold is written in a {@code HashMapWritable<Text, PairOfFloatInt>}.
+ * With a top k, a bounded min-heap keeps only the k partners with the highest PMI, written as
+ * {@link PMINeighbors}. With a top N, each reducer also keeps the N best pairs it has seen and writes
+ * them to the {@code topn} side output, which the driver merges with {@link #mergeTopN}.
+ */
+public class PMIStripeWriter {
+    public static final String TOP_K_FIELD = "pmi.topk";
+    public static final String TOP_N_FIELD = "pmi.topn";
+    public static final String TOP_N_OUTPUT = "topn";
+
+    private static final class ScoredPair implements Comparable<ScoredPair> {
+        private final String word1;
+        private final String word2;
+        private final float pmi;
+        private final int count;
+
+        private ScoredPair(String word1, String word2, float pmi, int count) {
+            this.word1 = word1;
+            this.word2 = word2;
+            this.pmi = pmi;
+            this.count = count;
+        }
+
+        // Lower PMI first, so the heap head is the entry to evict.
+        @Override
+        public int compareTo(ScoredPair other) {
+            int cmp = Float.compare(pmi, other.pmi);
+            return cmp != 0 ? cmp : Integer.compare(count, other.count);
+        }
+    }
+
+    private final int topK;
+    private final int topN;
+    private final HashMapWritable<Text, PairOfFloatInt> stripe = new HashMapWritable<>();
+    private final PMINeighbors neighbors = new PMINeighbors();
+    private final PriorityQueue<ScoredPair> wordHeap = new PriorityQueue<>();
+    private final PriorityQueue<ScoredPair> globalHeap = new PriorityQueue<>();
+    private final List<ScoredPair> sorted = new ArrayList<>();
+    private MultipleOutputs<Text, Writable> mos;
+
+    public PMIStripeWriter(TaskInputOutputContext<?, ?, Text, Writable> context) {
+        Configuration conf = context.getConfiguration();
+        topK = conf.getInt(TOP_K_FIELD, 0);
+        topN = conf.getInt(TOP_N_FIELD, 0);
+        if (topN > 0) {
+            mos = new MultipleOutputs<>(context);
+        }
+    }
+
+    /**
+     * Adds a partner of the current word; the partner must pass the threshold already.
+     */
+    public void add(String word1, String word2, float pmi, int count) {
+        if (topK > 0) {
+            offer(wordHeap, topK, word1, word2, pmi, count);
+        } else {
+            stripe.put(new Text(word2), new PairOfFloatInt(pmi, count));
+        }
+        // Every pair comes up in both words' stripes; count it once.
+        if (topN > 0 && word1.compareTo(word2) < 0) {
+            offer(globalHeap, topN, word1, word2, pmi, count);
+        }
+    }
+
+    private static void offer(PriorityQueue<ScoredPair> heap, int limit, String word1, String word2,
+                              float pmi, int count) {
+        if (heap.size() < limit) {
+            heap.add(new ScoredPair(word1, word2, pmi, count));
+        } else if (pmi > heap.peek().pmi) {
+            heap.poll();
+            heap.add(new ScoredPair(word1, word2, pmi, count));
+        }
+    }
+
+    /**
+     * Writes the stripe of the current word, if it has partners, and starts the next word.
+     */
+    public void write(Text word, TaskInputOutputContext<?, ?, Text, Writable> context)
+            throws IOException, InterruptedException {
+        if (topK > 0) {
+            if (!wordHeap.isEmpty()) {
+                sorted.clear();
+                sorted.addAll(wordHeap);
+                sorted.sort(null);
+                neighbors.clear();
+                for (int i = sorted.size() - 1; i >= 0; i--) {
+                    ScoredPair pair = sorted.get(i);
+                    neighbors.add(pair.word2, pair.pmi, pair.count);
+                }
+                context.write(word, neighbors);
+            }
+            wordHeap.clear();
+        } else {
+            if (!stripe.isEmpty()) {
+                context.write(word, stripe);
+            }
+            stripe.clear();
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        if (mos == null) {
+            return;
+        }
+        PairOfStrings key = new PairOfStrings();
+        PairOfFloatInt value = new PairOfFloatInt();
+        for (ScoredPair pair : globalHeap) {
+            key.set(pair.word1, pair.word2);
+            value.set(pair.pmi, pair.count);
+            mos.write(TOP_N_OUTPUT, key, value, TOP_N_OUTPUT + "/part");
+        }
+        mos.close();
+    }
+
+    /**
+     * Merges the per-reducer top N lists into {@code <output>/topn.txt}, one
+     * {@code word1 \t word2 \t pmi \t count} line per pair, by decreasing PMI.
+     */
+    public static void mergeTopN(FileSystem fs, Path outputPath, int n) throws IOException {
+        PriorityQueue<ScoredPair> heap = new PriorityQueue<>();
+        Path topDir = new Path(outputPath, TOP_N_OUTPUT);
+        if (fs.exists(topDir)) {
+            for (FileStatus status : fs.listStatus(topDir)) {
+                if (!status.getPath().getName().startsWith("part-")) {
+                    continue;
+                }
+                try (SequenceFile.Reader reader = new SequenceFile.Reader(fs.getConf(),
+                        SequenceFile.Reader.file(status.getPath()))) {
+                    PairOfStrings key = new PairOfStrings();
+                    PairOfFloatInt value = new PairOfFloatInt();
+                    while (reader.next(key, value)) {
+                        offer(heap, n, key.getLeftElement(), key.getRightElement(),
+                                value.getLeftElement(), value.getRightElement());
+                    }
+                }
+            }
+        }
+
+        List<ScoredPair> top = new ArrayList<>(heap);
+        top.sort(null);
+        try (FSDataOutputStream out = fs.create(new Path(outputPath, TOP_N_OUTPUT + ".txt"), true);
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"))) {
+            for (int i = top.size() - 1; i >= 0; i--) {
+                ScoredPair pair = top.get(i);
+                writer.println(pair.word1 + "\t" + pair.word2 + "\t" + pair.pmi + "\t" + pair.count);
+            }
+        }
+    }
+}
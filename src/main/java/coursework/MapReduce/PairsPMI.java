@@ -1,6 +1,6 @@
 package coursework.MapReduce;
 
-import io.bespin.java.util.Tokenizer;
+import io.bespin.java.util.ByteTokenizer;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
@@ -9,11 +9,13 @@ import org.apache.hadoop.io.FloatWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
@@ -24,6 +26,9 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
+import tl.lin.data.map.HMapStIW;
+import tl.lin.data.map.MapKI;
+import tl.lin.data.pair.PairOfInts;
 import tl.lin.data.pair.PairOfStrings;
 import tl.lin.data.pair.PairOfFloatInt;
 
@@ -31,9 +36,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 
 public class PairsPMI extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(PairsPMI.class);
@@ -43,27 +46,51 @@ public class PairsPMI extends Configured implements Tool {
         // Reuse objects to save overhead of object creation.
         private static final IntWritable ONE = new IntWritable(1);
         private static final Text WORD = new Text();
+        // Tokens are scanned from the line's bytes into reused Text objects; no Strings per token.
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            List<String> tokens = Tokenizer.tokenize(value.toString());
-            HashSet<String> uniqueWords = new HashSet<>();
             // Count the total number of lines of the file
             WORD.set("*");
             context.write(WORD, ONE);
             // Count the number of lines in which the word occur
-            for (int i = 0; i < Math.min(tokens.size(), WORD_LIMIT); i++){
-                uniqueWords.add(tokens.get(i));
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                context.write(WORDS[i], ONE);
             }
-            for (String word : uniqueWords) {
-                WORD.set(word);
+        }
+    }
+
+
+    /*
+        Window mode (-window W): words co-occur when at most W distinct words apart on a line, and whole
+        lines are read. PMI then counts token occurrences: "*" holds the number of tokens.
+     */
+    public static final class WindowWordCountMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final IntWritable COUNT = new IntWritable();
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            int numTokens = 0;
+            TOKENIZER.reset(value);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
                 context.write(WORD, ONE);
+                numTokens++;
             }
+            WORD.set("*");
+            COUNT.set(numTokens);
+            context.write(WORD, COUNT);
         }
     }
 
-
     // Reducer: sums up all the counts.
     public static final class WordCountReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         // Reuse objects.
@@ -86,21 +113,67 @@ public class PairsPMI extends Configured implements Tool {
     private static final class MyMapper extends Mapper<LongWritable, Text, PairOfStrings, FloatWritable> {
         private static final FloatWritable ONE = new FloatWritable(1);
         private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final String[] strings = new String[WORD_LIMIT];
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            // Get the unique words on the same line, each decoded once for the pair keys
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            if (numWords < 2) return;
+            for (int i = 0; i < numWords; i++) {
+                strings[i] = WORDS[i].toString();
+            }
+            for (int i = 0; i < numWords; i++) {
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j) {
+                        PAIR.set(strings[i], strings[j]);
+                        context.write(PAIR, ONE);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+        Sketch mode (-sketch): only pairs whose estimated count clears the threshold are shuffled.
+     */
+    private static final class SketchMapper extends Mapper<LongWritable, Text, PairOfStrings, FloatWritable> {
+        private static final FloatWritable ONE = new FloatWritable(1);
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final long[] hashes = new long[WORD_LIMIT];
+        private final String[] strings = new String[WORD_LIMIT];
+        private int threshold;
+        private CountMinSketch sketch;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            threshold = conf.getInt("threshold", 10);
+            sketch = PMISketch.read(conf);
+        }
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            List<String> tokens = Tokenizer.tokenize(value.toString());
-            if (tokens.size() < 2) return;
-            HashSet<String> uniqueWords = new HashSet<>();
-            // Get the unique words on the same line
-            for (int i = 0; i < Math.min(tokens.size(), WORD_LIMIT); i++){
-                uniqueWords.add(tokens.get(i));
-            }
-            for (String word1 : uniqueWords) {
-                for (String word2: uniqueWords){
-                    if (!word1.equals(word2)){
-                        PAIR.set(word1, word2);
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                hashes[i] = CountMinSketch.hash(WORDS[i]);
+                strings[i] = null;
+            }
+            for (int i = 0; i < numWords; i++) {
+                for (int j = 0; j < i; j++) {
+                    if (sketch.estimate(CountMinSketch.pairKey(hashes[j], hashes[i])) >= threshold) {
+                        // Words are decoded only for candidates.
+                        if (strings[i] == null) strings[i] = WORDS[i].toString();
+                        if (strings[j] == null) strings[j] = WORDS[j].toString();
+                        PAIR.set(strings[i], strings[j]);
+                        context.write(PAIR, ONE);
+                        PAIR.set(strings[j], strings[i]);
                         context.write(PAIR, ONE);
                     }
                 }
@@ -108,6 +181,40 @@ public class PairsPMI extends Configured implements Tool {
         }
     }
 
+    private static final class WindowMapper extends Mapper<LongWritable, Text, PairOfStrings, FloatWritable> {
+        private static final FloatWritable ONE = new FloatWritable(1);
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private final CooccurrenceWindow.Vocabulary vocabulary = new CooccurrenceWindow.Vocabulary();
+        private CooccurrenceWindow window;
+
+        @Override
+        public void setup(Context context) {
+            window = new CooccurrenceWindow(context.getConfiguration().getInt("window", 1));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            window.reset();
+            TOKENIZER.reset(value);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
+                int id = vocabulary.id(WORD);
+                String word = vocabulary.word(id);
+                int n = window.add(id);
+                for (int i = 0; i < n; i++) {
+                    String partner = vocabulary.word(window.partner(i));
+                    PAIR.set(word, partner);
+                    context.write(PAIR, ONE);
+                    PAIR.set(partner, word);
+                    context.write(PAIR, ONE);
+                }
+            }
+        }
+    }
+
     private static final class MyCombiner extends
             Reducer<PairOfStrings, FloatWritable, PairOfStrings, FloatWritable> {
         private static final FloatWritable SUM = new FloatWritable();
@@ -130,11 +237,13 @@ public class PairsPMI extends Configured implements Tool {
         private static final PairOfFloatInt VALUE = new PairOfFloatInt();
         private static int threshold;
         private static HashMap<String, Integer> wordCount = new HashMap<>();
+        private PMISketch sketch;
 
         @Override
         public void setup(Context context) throws IOException {
             Configuration conf = context.getConfiguration();
             threshold = conf.getInt("threshold", 10);
+            sketch = PMISketch.forReducer(conf);
             Path input_path = new Path(conf.get("wordCountPath") + "/part-r-00000");
             FileSystem fileSystem = FileSystem.get(conf);
             try (BufferedReader br = new BufferedReader(new InputStreamReader(fileSystem.open(input_path)))){
@@ -165,6 +274,9 @@ public class PairsPMI extends Configured implements Tool {
             while (iter.hasNext()) {
                 sum += iter.next().get();
             }
+            if (sketch != null) {
+                sketch.record(key.getLeftElement(), key.getRightElement(), sum, context);
+            }
             if (sum >= threshold){
                 int word1Occurrence = wordCount.get(key.getLeftElement());
                 int word2Occurrence = wordCount.get(key.getRightElement());
@@ -182,6 +294,265 @@ public class PairsPMI extends Configured implements Tool {
         }
     }
 
+    /*
+        Single-pass mode (-singlePass): there is no word-count job, and the input is scanned once. Each
+        mapper also counts the lines each word occurs in, and at the end sends the count of word a once
+        under (a, "*"), partitioned like the pairs of a. Words start with a letter, so (a, "*") sorts
+        before (a, b): the reducer learns the marginal of a first (order inversion). The line count goes
+        through a counter.
+
+        Only the marginal of a reaches that reducer, so it passes each pair above the threshold on,
+        turned around, as (b, a) -> (count, marginal of a), along with (a, "*") -> (marginal of a, 0).
+        A second job, over these pairs only, delivers the marginal of b first in the same way and writes
+        PMI(b, a), which equals PMI(a, b): every pair comes out once, from its mirror image.
+     */
+    private static final class SinglePassMapper extends Mapper<LongWritable, Text, PairOfStrings, IntWritable> {
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final IntWritable COUNT = new IntWritable();
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final String[] strings = new String[WORD_LIMIT];
+        private final HMapStIW marginals = new HMapStIW();
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            context.getCounter("PairsPMI", "lines").increment(1);
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                strings[i] = WORDS[i].toString();
+                marginals.increment(strings[i]);
+            }
+            for (int i = 0; i < numWords; i++) {
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j) {
+                        PAIR.set(strings[i], strings[j]);
+                        context.write(PAIR, ONE);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            for (MapKI.Entry<String> entry : marginals.entrySet()) {
+                PAIR.set(entry.getKey(), "*");
+                COUNT.set(entry.getValue());
+                context.write(PAIR, COUNT);
+            }
+        }
+    }
+
+    private static final class SinglePassCombiner extends
+            Reducer<PairOfStrings, IntWritable, PairOfStrings, IntWritable> {
+        private static final IntWritable SUM = new IntWritable();
+
+        @Override
+        public void reduce(PairOfStrings key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+            SUM.set(sum);
+            context.write(key, SUM);
+        }
+    }
+
+    private static final class SinglePassReducer extends
+            Reducer<PairOfStrings, IntWritable, PairOfStrings, PairOfInts> {
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final PairOfInts VALUE = new PairOfInts();
+        private int marginal;
+        private int threshold;
+
+        @Override
+        public void setup(Context context) {
+            threshold = context.getConfiguration().getInt("threshold", 10);
+        }
+
+        @Override
+        public void reduce(PairOfStrings key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+            // The marginal of the left word arrives before its pairs.
+            if (key.getRightElement().equals("*")) {
+                marginal = sum;
+                VALUE.set(sum, 0);
+                context.write(key, VALUE);
+                return;
+            }
+            if (sum >= threshold){
+                PAIR.set(key.getRightElement(), key.getLeftElement());
+                VALUE.set(sum, marginal);
+                context.write(PAIR, VALUE);
+            }
+        }
+    }
+
+    // Reads the (b, a) -> (count, marginal of a) pairs of the first job, after (b, "*").
+    private static final class SinglePassPMIReducer extends
+            Reducer<PairOfStrings, PairOfInts, PairOfStrings, PairOfFloatInt> {
+        private static final PairOfFloatInt VALUE = new PairOfFloatInt();
+        private long numLines;
+        private int marginal;
+
+        @Override
+        public void setup(Context context) {
+            numLines = context.getConfiguration().getLong("numLines", 0);
+        }
+
+        @Override
+        public void reduce(PairOfStrings key, Iterable<PairOfInts> values, Context context)
+                throws IOException, InterruptedException {
+            // Each key comes from one reducer of the first job, so it has one value.
+            PairOfInts value = values.iterator().next();
+            if (key.getRightElement().equals("*")) {
+                marginal = value.getLeftElement();
+                return;
+            }
+            int cooccurrence = value.getLeftElement();
+            float PMI = (float) Math.log10(cooccurrence * 1.0 * numLines / ((double) marginal * value.getRightElement()));
+            VALUE.set(PMI, cooccurrence);
+            context.write(key, VALUE);
+        }
+    }
+
+    // Both single-pass jobs partition by the left word, so (a, "*") meets the pairs of a.
+    private static final class SinglePassPartitioner extends Partitioner<PairOfStrings, Writable> {
+        @Override
+        public int getPartition(PairOfStrings key, Writable value, int numReduceTasks) {
+            return (key.getLeftElement().hashCode() & Integer.MAX_VALUE) % numReduceTasks;
+        }
+    }
+
+    /*
+        Dictionary-encoded mode (-dictionary): pairs of word ids are shuffled instead of pairs of words.
+     */
+    private static final class IdMapper extends Mapper<LongWritable, Text, PairOfInts, IntWritable> {
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final PairOfInts PAIR = new PairOfInts();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final int[] ids = new int[WORD_LIMIT];
+        private PMIDictionary dictionary;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            dictionary = PMIDictionary.read(FileSystem.get(conf), new Path(conf.get("dictionaryPath")));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                ids[i] = dictionary.getId(WORDS[i]);
+            }
+            for (int i = 0; i < numWords; i++) {
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j) {
+                        PAIR.set(ids[i], ids[j]);
+                        context.write(PAIR, ONE);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class WindowIdMapper extends Mapper<LongWritable, Text, PairOfInts, IntWritable> {
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final PairOfInts PAIR = new PairOfInts();
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private PMIDictionary dictionary;
+        private CooccurrenceWindow window;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            dictionary = PMIDictionary.read(FileSystem.get(conf), new Path(conf.get("dictionaryPath")));
+            window = new CooccurrenceWindow(conf.getInt("window", 1));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            window.reset();
+            TOKENIZER.reset(value);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
+                int id = dictionary.getId(WORD);
+                int n = window.add(id);
+                for (int i = 0; i < n; i++) {
+                    PAIR.set(id, window.partner(i));
+                    context.write(PAIR, ONE);
+                    PAIR.set(window.partner(i), id);
+                    context.write(PAIR, ONE);
+                }
+            }
+        }
+    }
+
+    private static final class IdCombiner extends Reducer<PairOfInts, IntWritable, PairOfInts, IntWritable> {
+        private static final IntWritable SUM = new IntWritable();
+
+        @Override
+        public void reduce(PairOfInts key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+            SUM.set(sum);
+            context.write(key, SUM);
+        }
+    }
+
+    // Counts are looked up by id in arrays; words are decoded only for pairs above the threshold.
+    private static final class IdReducer extends Reducer<PairOfInts, IntWritable, PairOfStrings, PairOfFloatInt> {
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final PairOfFloatInt VALUE = new PairOfFloatInt();
+        private int threshold;
+        private PMIDictionary dictionary;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            threshold = conf.getInt("threshold", 10);
+            dictionary = PMIDictionary.read(FileSystem.get(conf), new Path(conf.get("dictionaryPath")));
+        }
+
+        @Override
+        public void reduce(PairOfInts key, Iterable<IntWritable> values, Context context)
+                throws IOException, InterruptedException {
+            int sum = 0;
+            for (IntWritable value : values) {
+                sum += value.get();
+            }
+            if (sum >= threshold) {
+                int word1Occurrence = dictionary.getCount(key.getLeftElement());
+                int word2Occurrence = dictionary.getCount(key.getRightElement());
+                float PMI = (float) Math.log10(sum * 1.0f * dictionary.getNumLines() / (word1Occurrence * word2Occurrence));
+                PAIR.set(dictionary.getWord(key.getLeftElement()), dictionary.getWord(key.getRightElement()));
+                VALUE.set(PMI, sum);
+                context.write(PAIR, VALUE);
+            }
+        }
+    }
+
+    private static final class IdPartitioner extends Partitioner<PairOfInts, IntWritable> {
+        @Override
+        public int getPartition(PairOfInts key, IntWritable value, int numReduceTasks) {
+            return (key.getLeftElement() & Integer.MAX_VALUE) % numReduceTasks;
+        }
+    }
+
     /**
      * Creates an instance of this tool.
      */
@@ -202,6 +573,27 @@ public class PairsPMI extends Configured implements Tool {
 
         @Option(name = "-textOutput", usage = "use TextOutputFormat (otherwise, SequenceFileOutputFormat)")
         boolean textOutput = true;
+
+        @Option(name = "-dictionary", usage = "shuffle dense word ids instead of words")
+        boolean dictionary = false;
+
+        @Option(name = "-singlePass", usage = "compute the word counts in the PMI job itself (one input scan)")
+        boolean singlePass = false;
+
+        @Option(name = "-window", metaVar = "[num]", usage = "pair each word with the last num distinct words of its line (0: all of the first 40 words)")
+        int window = 0;
+
+        @Option(name = "-sketch", usage = "shuffle only the pairs whose count-min estimate clears the threshold")
+        boolean sketch = false;
+
+        @Option(name = "-sketchDepth", metaVar = "[num]", usage = "rows of the count-min sketch")
+        int sketchDepth = 4;
+
+        @Option(name = "-sketchWidth", metaVar = "[num]", usage = "counters per row of the count-min sketch")
+        int sketchWidth = 1 << 20;
+
+        @Option(name = "-conservative", usage = "use conservative update in the sketch")
+        boolean conservative = false;
     }
 
     /**
@@ -220,6 +612,19 @@ public class PairsPMI extends Configured implements Tool {
             return -1;
         }
 
+        if (args.singlePass && args.dictionary) {
+            System.err.println("-singlePass and -dictionary cannot be combined: word ids need the word-count job");
+            return -1;
+        }
+        if (args.sketch && (args.singlePass || args.dictionary)) {
+            System.err.println("-sketch cannot be combined with -singlePass or -dictionary");
+            return -1;
+        }
+        if (args.window > 0 && (args.singlePass || args.sketch)) {
+            System.err.println("-window cannot be combined with -singlePass or -sketch");
+            return -1;
+        }
+
         /*
             The first job: compute the word count
                 - the number of lines that contain a word
@@ -234,46 +639,102 @@ public class PairsPMI extends Configured implements Tool {
         LOG.info(" - threshold: " + args.threshold);
         LOG.info(" - num reducers: " + args.numReducers);
         LOG.info(" - text output: " + args.textOutput);
+        LOG.info(" - dictionary encoding: " + args.dictionary);
+        LOG.info(" - single pass: " + args.singlePass);
+        LOG.info(" - window: " + (args.window > 0 ? args.window : "line"));
+        LOG.info(" - sketch: " + (args.sketch ? args.sketchDepth + " x " + args.sketchWidth
+                + (args.conservative ? ", conservative update" : "") : "none"));
 
 
         Configuration conf = getConf();
         conf.setInt("threshold", args.threshold);
         conf.set("wordCountPath", wordCountTempPath);
+        conf.setInt("window", args.window);
 
-        Job job1 = Job.getInstance(conf);
-        job1.setJobName(PairsPMI.class.getSimpleName() + "-Part1");
-        job1.setJarByClass(PairsPMI.class);
+        long startTime = System.currentTimeMillis();
+        if (args.singlePass) {
+            // The only job over the input: it counts pairs and marginals, and passes the pairs above the threshold on.
+            Job job1 = Job.getInstance(conf);
+            job1.setJobName(PairsPMI.class.getSimpleName() + "-Part1");
+            job1.setJarByClass(PairsPMI.class);
 
-        // Setting these MapReduce job parameters for running on the Datasci cluster
-        job1.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
-        job1.getConfiguration().set("mapreduce.map.memory.mb", "3072");
-        job1.getConfiguration().set("mapreduce.map.java.opts", "-Xmx3072m");
-        job1.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
-        job1.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
+            job1.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
 
-        job1.setNumReduceTasks(1); // no partition for this job
+            job1.setNumReduceTasks(args.numReducers);
 
-        FileInputFormat.setInputPaths(job1, new Path(args.input));
-        FileOutputFormat.setOutputPath(job1, new Path(wordCountTempPath));
+            FileInputFormat.setInputPaths(job1, new Path(args.input));
+            FileOutputFormat.setOutputPath(job1, new Path(wordCountTempPath));
 
-        job1.setMapOutputKeyClass(Text.class);
-        job1.setMapOutputValueClass(IntWritable.class);
-        job1.setOutputKeyClass(Text.class);
-        job1.setOutputValueClass(IntWritable.class);
-        job1.setOutputFormatClass(TextOutputFormat.class);
+            job1.setMapOutputKeyClass(PairOfStrings.class);
+            job1.setMapOutputValueClass(IntWritable.class);
+            job1.setOutputKeyClass(PairOfStrings.class);
+            job1.setOutputValueClass(PairOfInts.class);
+            job1.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job1.setMapperClass(WordCountMapper.class);
-        job1.setCombinerClass(WordCountReducer.class);
-        job1.setReducerClass(WordCountReducer.class);
+            job1.setMapperClass(SinglePassMapper.class);
+            job1.setCombinerClass(SinglePassCombiner.class);
+            job1.setReducerClass(SinglePassReducer.class);
+            job1.setPartitionerClass(SinglePassPartitioner.class);
 
-        // Delete the output directory if it exists already.
-        Path tempDir = new Path(wordCountTempPath);
-        FileSystem.get(getConf()).delete(tempDir, true);
+            // Delete the output directory if it exists already.
+            FileSystem.get(getConf()).delete(new Path(wordCountTempPath), true);
 
-        long startTime = System.currentTimeMillis();
-        job1.waitForCompletion(true);
-        LOG.info("The first job finished");
+            job1.waitForCompletion(true);
+            long numLines = job1.getCounters().findCounter("PairsPMI", "lines").getValue();
+            conf.setLong("numLines", numLines);
+            LOG.info("The first job finished: " + numLines + " lines");
+        } else {
+            Job job1 = Job.getInstance(conf);
+            job1.setJobName(PairsPMI.class.getSimpleName() + "-Part1");
+            job1.setJarByClass(PairsPMI.class);
+
+            // Setting these MapReduce job parameters for running on the Datasci cluster
+            job1.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
+            job1.getConfiguration().set("mapreduce.map.memory.mb", "3072");
+            job1.getConfiguration().set("mapreduce.map.java.opts", "-Xmx3072m");
+            job1.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
+            job1.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
+
+            job1.setNumReduceTasks(1); // no partition for this job
+
+            FileInputFormat.setInputPaths(job1, new Path(args.input));
+            FileOutputFormat.setOutputPath(job1, new Path(wordCountTempPath));
+
+            job1.setMapOutputKeyClass(Text.class);
+            job1.setMapOutputValueClass(IntWritable.class);
+            job1.setOutputKeyClass(Text.class);
+            job1.setOutputValueClass(IntWritable.class);
+            job1.setOutputFormatClass(TextOutputFormat.class);
+
+            if (args.window > 0) {
+                job1.setMapperClass(WindowWordCountMapper.class);
+            } else {
+                job1.setMapperClass(args.sketch ? PMISketch.WordCountMapper.class : WordCountMapper.class);
+            }
+            job1.setCombinerClass(WordCountReducer.class);
+            job1.setReducerClass(WordCountReducer.class);
+            if (args.sketch) {
+                PMISketch.configure(job1, args.sketchDepth, args.sketchWidth, args.conservative);
+            }
 
+            // Delete the output directory if it exists already.
+            Path tempDir = new Path(wordCountTempPath);
+            FileSystem.get(getConf()).delete(tempDir, true);
+
+            job1.waitForCompletion(true);
+            LOG.info("The first job finished");
+
+            if (args.dictionary) {
+                Path dictionaryPath = new Path(tempDir, PMIDictionary.FILE_NAME);
+                PMIDictionary.build(FileSystem.get(getConf()), tempDir, dictionaryPath);
+                conf.set("dictionaryPath", dictionaryPath.toString());
+                LOG.info("Word ids assigned in " + dictionaryPath);
+            }
+            if (args.sketch) {
+                Path sketchPath = PMISketch.merge(FileSystem.get(getConf()), tempDir);
+                conf.set(PMISketch.PATH_FIELD, sketchPath.toString());
+            }
+        }
 
         /*
             The second Job: Compute pointwise mutual information
@@ -298,11 +759,25 @@ public class PairsPMI extends Configured implements Tool {
 
         job2.setNumReduceTasks(args.numReducers);
 
-        FileInputFormat.setInputPaths(job2, new Path(args.input));
+        if (args.singlePass) {
+            // The second job reads only the pairs above the threshold, not the input.
+            FileInputFormat.setInputPaths(job2, new Path(wordCountTempPath));
+            job2.setInputFormatClass(SequenceFileInputFormat.class);
+        } else {
+            FileInputFormat.setInputPaths(job2, new Path(args.input));
+        }
         FileOutputFormat.setOutputPath(job2, new Path(args.output));
 
-        job2.setMapOutputKeyClass(PairOfStrings.class);
-        job2.setMapOutputValueClass(FloatWritable.class);
+        if (args.dictionary) {
+            job2.setMapOutputKeyClass(PairOfInts.class);
+            job2.setMapOutputValueClass(IntWritable.class);
+        } else if (args.singlePass) {
+            job2.setMapOutputKeyClass(PairOfStrings.class);
+            job2.setMapOutputValueClass(PairOfInts.class);
+        } else {
+            job2.setMapOutputKeyClass(PairOfStrings.class);
+            job2.setMapOutputValueClass(FloatWritable.class);
+        }
         job2.setOutputKeyClass(PairOfStrings.class);
         job2.setOutputValueClass(PairOfFloatInt.class);
         if (args.textOutput) {
@@ -311,10 +786,25 @@ public class PairsPMI extends Configured implements Tool {
             job2.setOutputFormatClass(SequenceFileOutputFormat.class);
         }
 
-        job2.setMapperClass(MyMapper.class);
-        job2.setCombinerClass(MyCombiner.class);
-        job2.setReducerClass(MyReducer.class);
-        job2.setPartitionerClass(MyPartitioner.class);
+        if (args.dictionary) {
+            job2.setMapperClass(args.window > 0 ? WindowIdMapper.class : IdMapper.class);
+            job2.setCombinerClass(IdCombiner.class);
+            job2.setReducerClass(IdReducer.class);
+            job2.setPartitionerClass(IdPartitioner.class);
+        } else if (args.singlePass) {
+            job2.setMapperClass(Mapper.class);
+            job2.setReducerClass(SinglePassPMIReducer.class);
+            job2.setPartitionerClass(SinglePassPartitioner.class);
+        } else {
+            if (args.window > 0) {
+                job2.setMapperClass(WindowMapper.class);
+            } else {
+                job2.setMapperClass(args.sketch ? SketchMapper.class : MyMapper.class);
+            }
+            job2.setCombinerClass(MyCombiner.class);
+            job2.setReducerClass(MyReducer.class);
+            job2.setPartitionerClass(MyPartitioner.class);
+        }
 
 
         // Delete the output directory if it exists already.
@@ -322,6 +812,9 @@ public class PairsPMI extends Configured implements Tool {
         FileSystem.get(getConf()).delete(outputDir, true);
 
         job2.waitForCompletion(true);
+        if (args.sketch) {
+            PMISketch.writeReport(job2, FileSystem.get(getConf()), outputDir);
+        }
 
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
@@ -0,0 +1,243 @@
+package coursework.MapReduce;
+
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A stripe of term id -> count with a memory bound, for reducers that see the stripes of head terms
+ * such as "the", which span the whole vocabulary.
+ *
+ * Counts live in an open-addressing table of primitive ints (linear probing). When the table holds
+ * more than {@code maxEntries} ids, it is sorted by id and spilled as a run to a local temp file.
+ * The runs and the final in-memory table are then merged k-way in id order:
+ *
+ * <pre>
+ * stripe.increment(id, count); ...
+ * stripe.startMerge();
+ * while (stripe.next()) { stripe.key(); stripe.value(); }
+ * </pre>
+ *
+ * The merge leaves the stripe empty and ready for the next key.
+ */
+public class SpillableStripe {
+    private static final int EMPTY = -1;
+
+    private final int maxEntries;
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+    private final List<File> runs = new ArrayList<>();
+    private long spills = 0;
+
+    // merge state
+    private long[] memoryRun;
+    private int memoryPos;
+    private final PriorityQueue<RunReader> queue = new PriorityQueue<>();
+    private final List<RunReader> readers = new ArrayList<>();
+    private int key;
+    private int value;
+
+    // Reads one spilled run: VInt count, then (VInt key gap, VInt value) pairs.
+    private static final class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private int remaining;
+        private int key = 0;
+        private int value;
+
+        private RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            remaining = WritableUtils.readVInt(in);
+        }
+
+        private boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            key += WritableUtils.readVInt(in);
+            value = WritableUtils.readVInt(in);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return Integer.compare(key, other.key);
+        }
+    }
+
+    /**
+     * @param maxEntries ids held in memory before the stripe spills
+     */
+    public SpillableStripe(int maxEntries) {
+        this.maxEntries = Math.max(16, maxEntries);
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    // Multiplicative hashing spreads the dense, frequency-ordered ids over the table.
+    private int slot(int id) {
+        return (id * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length));
+    }
+
+    /**
+     * Adds {@code count} to the count of a term id; ids are non-negative.
+     */
+    public void increment(int id, int count) throws IOException {
+        int i = slot(id);
+        while (keys[i] != EMPTY && keys[i] != id) {
+            i = (i + 1) & (keys.length - 1);
+        }
+        if (keys[i] == id) {
+            values[i] += count;
+            return;
+        }
+        keys[i] = id;
+        values[i] = count;
+        size++;
+
+        if (size > maxEntries) {
+            spill();
+        } else if (size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = slot(oldKeys[i]);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & (keys.length - 1);
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    // Entries packed as (id << 32 | count) sort by id, since ids are non-negative.
+    private long[] sortedEntries() {
+        long[] entries = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                entries[n++] = ((long) keys[i] << 32) | (values[i] & 0xFFFFFFFFL);
+            }
+        }
+        Arrays.sort(entries);
+        return entries;
+    }
+
+    private void spill() throws IOException {
+        long[] entries = sortedEntries();
+        File file = File.createTempFile("stripe-", ".run");
+        file.deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            WritableUtils.writeVInt(out, entries.length);
+            int prev = 0;
+            for (long entry : entries) {
+                int id = (int) (entry >>> 32);
+                WritableUtils.writeVInt(out, id - prev);
+                WritableUtils.writeVInt(out, (int) entry);
+                prev = id;
+            }
+        }
+        runs.add(file);
+        spills++;
+        // Keep the table at its grown size: the next head term will likely need it again.
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    public void startMerge() throws IOException {
+        memoryRun = sortedEntries();
+        memoryPos = 0;
+        for (File run : runs) {
+            RunReader reader = new RunReader(run);
+            readers.add(reader);
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+    }
+
+    /**
+     * Advances to the next id in increasing order, summing its counts over all runs.
+     *
+     * @return false when the stripe is exhausted; the stripe is then empty
+     */
+    public boolean next() throws IOException {
+        int memoryKey = memoryPos < memoryRun.length ? (int) (memoryRun[memoryPos] >>> 32) : Integer.MAX_VALUE;
+        int runKey = queue.isEmpty() ? Integer.MAX_VALUE : queue.peek().key;
+        if (memoryKey == Integer.MAX_VALUE && runKey == Integer.MAX_VALUE) {
+            finishMerge();
+            return false;
+        }
+
+        key = Math.min(memoryKey, runKey);
+        value = 0;
+        if (memoryKey == key) {
+            value += (int) memoryRun[memoryPos++];
+        }
+        while (!queue.isEmpty() && queue.peek().key == key) {
+            RunReader reader = queue.poll();
+            value += reader.value;
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+        return true;
+    }
+
+    public int key() {
+        return key;
+    }
+
+    public int value() {
+        return value;
+    }
+
+    private void finishMerge() throws IOException {
+        for (RunReader reader : readers) {
+            reader.in.close();
+        }
+        readers.clear();
+        queue.clear();
+        for (File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        memoryRun = null;
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Number of runs spilled to disk so far, over all keys.
+     */
+    public long getSpills() {
+        return spills;
+    }
+}
@@ -1,6 +1,6 @@
 package coursework.MapReduce;
 
-import io.bespin.java.util.Tokenizer;
+import io.bespin.java.util.ByteTokenizer;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.FileSystem;
@@ -8,11 +8,15 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -23,47 +27,150 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.ParserProperties;
 import tl.lin.data.pair.PairOfFloatInt;
+import tl.lin.data.pair.PairOfInts;
+import tl.lin.data.pair.PairOfStrings;
+import tl.lin.data.map.HMapIIW;
 import tl.lin.data.map.HMapStIW;
+import tl.lin.data.map.MapII;
 import tl.lin.data.map.MapKI;
 import tl.lin.data.map.HashMapWritable;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 
 public class StripesPMI extends Configured implements Tool {
     private static final Logger LOG = Logger.getLogger(StripesPMI.class);
     private static final int WORD_LIMIT = 40;
+    // Stripe entries a combiner or reducer holds in memory; about 16 bytes each
+    private static final String STRIPE_ENTRIES_FIELD = "stripe.max.entries";
+    private static final int DEFAULT_STRIPE_ENTRIES = 4 * 1024 * 1024;
+    // The table holds up to twice its entries in a power-of-two array, which must stay under 2^31 slots
+    private static final int MAX_STRIPE_ENTRIES = 1 << 29;
+    // A partner word held by WordIds (its String and slot) costs about as much as this many stripe entries
+    private static final int WORD_ENTRY_COST = 8;
+
+    /*
+        Per-task dense ids for the partner words of the string modes, so that their stripes can use the
+        primitive SpillableStripe. Words live in an open-addressing table of Strings and int ids, with
+        no boxing. The ids must outlive the spilled runs of the stripe being merged, so the table is
+        only cleared between keys, once it holds more words than its share of -stripeMB.
+     */
+    private static final class WordIds {
+        private String[] slots = new String[16];
+        private int[] slotIds = new int[16];
+        private String[] words = new String[16];
+        private int size = 0;
+
+        private int slot(String word) {
+            return (word.hashCode() * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(slots.length));
+        }
+
+        private int id(String word) {
+            int i = slot(word);
+            while (slots[i] != null) {
+                if (slots[i].equals(word)) {
+                    return slotIds[i];
+                }
+                i = (i + 1) & (slots.length - 1);
+            }
+            slots[i] = word;
+            slotIds[i] = size;
+            if (size == words.length) {
+                words = Arrays.copyOf(words, size * 2);
+            }
+            words[size] = word;
+            size++;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        private void rehash() {
+            String[] oldSlots = slots;
+            int[] oldIds = slotIds;
+            slots = new String[oldSlots.length * 2];
+            slotIds = new int[oldSlots.length * 2];
+            for (int i = 0; i < oldSlots.length; i++) {
+                if (oldSlots[i] != null) {
+                    int j = slot(oldSlots[i]);
+                    while (slots[j] != null) {
+                        j = (j + 1) & (slots.length - 1);
+                    }
+                    slots[j] = oldSlots[i];
+                    slotIds[j] = oldIds[i];
+                }
+            }
+        }
+
+        private String word(int id) {
+            return words[id];
+        }
+
+        // Drops the words once more than maxWords are held; the arrays keep their grown size.
+        private void trim(int maxWords) {
+            if (size > maxWords) {
+                Arrays.fill(slots, null);
+                Arrays.fill(words, 0, size, null);
+                size = 0;
+            }
+        }
+    }
 
     public static final class WordCountMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
         // Reuse objects to save overhead of object creation.
         private static final IntWritable ONE = new IntWritable(1);
         private static final Text WORD = new Text();
+        // Tokens are scanned from the line's bytes into reused Text objects; no Strings per token.
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            List<String> tokens = Tokenizer.tokenize(value.toString());
-            HashSet<String> uniqueWords = new HashSet<>();
             // Count the total number of lines of the file
             WORD.set("*");
             context.write(WORD, ONE);
             // Count the number of lines in which the word occur
-            for (int i = 0; i < Math.min(tokens.size(), WORD_LIMIT); i++){
-                uniqueWords.add(tokens.get(i));
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                context.write(WORDS[i], ONE);
             }
-            for (String word : uniqueWords) {
-                WORD.set(word);
+        }
+    }
+
+
+    /*
+        Window mode (-window W): words co-occur when at most W distinct words apart on a line, and whole
+        lines are read. PMI then counts token occurrences: "*" holds the number of tokens.
+     */
+    public static final class WindowWordCountMapper extends Mapper<LongWritable, Text, Text, IntWritable> {
+        private static final IntWritable ONE = new IntWritable(1);
+        private static final IntWritable COUNT = new IntWritable();
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            int numTokens = 0;
+            TOKENIZER.reset(value);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
                 context.write(WORD, ONE);
+                numTokens++;
             }
+            WORD.set("*");
+            COUNT.set(numTokens);
+            context.write(WORD, COUNT);
         }
     }
 
-
     // Reducer: sums up all the counts.
     public static final class WordCountReducer extends Reducer<Text, IntWritable, Text, IntWritable> {
         // Reuse objects.
@@ -85,33 +192,131 @@ public class StripesPMI extends Configured implements Tool {
 
     private static final class MyMapper extends Mapper<LongWritable, Text, Text, HMapStIW> {
         private static final HMapStIW MAP = new HMapStIW();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final String[] strings = new String[WORD_LIMIT];
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            // Get the unique words on the same line, each decoded once for the stripe keys
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            if (numWords < 2) return;
+            for (int i = 0; i < numWords; i++) {
+                strings[i] = WORDS[i].toString();
+            }
+            for (int i = 0; i < numWords; i++) {
+                MAP.clear();
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j) {
+                        MAP.increment(strings[j]);
+                    }
+                }
+                context.write(WORDS[i], MAP);
+            }
+        }
+    }
+
+    // The stripes of a line are gathered per word before they are emitted.
+    private static final class WindowMapper extends Mapper<LongWritable, Text, Text, HMapStIW> {
         private static final Text KEY = new Text();
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private final CooccurrenceWindow.Vocabulary vocabulary = new CooccurrenceWindow.Vocabulary();
+        private final HashMap<Integer, HMapStIW> stripes = new HashMap<>();
+        private CooccurrenceWindow window;
+
+        @Override
+        public void setup(Context context) {
+            window = new CooccurrenceWindow(context.getConfiguration().getInt("window", 1));
+        }
+
+        private HMapStIW stripe(int id) {
+            HMapStIW stripe = stripes.get(id);
+            if (stripe == null) {
+                stripe = new HMapStIW();
+                stripes.put(id, stripe);
+            }
+            return stripe;
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            stripes.clear();
+            window.reset();
+            TOKENIZER.reset(value);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
+                int id = vocabulary.id(WORD);
+                int n = window.add(id);
+                for (int i = 0; i < n; i++) {
+                    int partner = window.partner(i);
+                    stripe(id).increment(vocabulary.word(partner));
+                    stripe(partner).increment(vocabulary.word(id));
+                }
+            }
+            for (Map.Entry<Integer, HMapStIW> entry : stripes.entrySet()) {
+                KEY.set(vocabulary.word(entry.getKey()));
+                context.write(KEY, entry.getValue());
+            }
+        }
+    }
+
+    /*
+        Sketch mode (-sketch): stripes carry only the partners whose estimated count clears the threshold.
+     */
+    private static final class SketchMapper extends Mapper<LongWritable, Text, Text, HMapStIW> {
+        private static final HMapStIW MAP = new HMapStIW();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final long[] hashes = new long[WORD_LIMIT];
+        private final boolean[][] candidates = new boolean[WORD_LIMIT][WORD_LIMIT];
+        private int threshold;
+        private CountMinSketch sketch;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            threshold = conf.getInt("threshold", 10);
+            sketch = PMISketch.read(conf);
+        }
 
         @Override
         public void map(LongWritable key, Text value, Context context)
                 throws IOException, InterruptedException {
-            List<String> tokens = Tokenizer.tokenize(value.toString());
-            if (tokens.size() < 2) return;
-            HashSet<String> uniqueWords = new HashSet<>();
-            // Get the unique words on the same line
-            for (int i = 0; i < Math.min(tokens.size(), WORD_LIMIT); i++){
-                uniqueWords.add(tokens.get(i));
-            }
-            for (String word1 : uniqueWords) {
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                hashes[i] = CountMinSketch.hash(WORDS[i]);
+                for (int j = 0; j < i; j++) {
+                    boolean candidate = sketch.estimate(CountMinSketch.pairKey(hashes[j], hashes[i])) >= threshold;
+                    candidates[i][j] = candidate;
+                    candidates[j][i] = candidate;
+                }
+            }
+            for (int i = 0; i < numWords; i++) {
                 MAP.clear();
-                for (String word2: uniqueWords){
-                    if (!word1.equals(word2)){
-                        MAP.increment(word2);
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j && candidates[i][j]) {
+                        MAP.increment(WORDS[j].toString());
                     }
                 }
-                KEY.set(word1);
-                context.write(KEY, MAP);
+                if (!MAP.isEmpty()) {
+                    context.write(WORDS[i], MAP);
+                }
             }
         }
     }
 
+    // A partial stripe that outgrows the budget is passed on as is; the reducer merges it later.
     private static final class MyCombiner extends
             Reducer<Text, HMapStIW, Text, HMapStIW> {
+        private int maxEntries;
+
+        @Override
+        public void setup(Context context) {
+            maxEntries = context.getConfiguration().getInt(STRIPE_ENTRIES_FIELD, DEFAULT_STRIPE_ENTRIES);
+        }
 
         @Override
         public void reduce(Text key, Iterable<HMapStIW> values, Context context)
@@ -120,21 +325,37 @@ public class StripesPMI extends Configured implements Tool {
             Iterator<HMapStIW> iter = values.iterator();
             while (iter.hasNext()) {
                 map.plus(iter.next());
+                if (map.size() > maxEntries) {
+                    context.write(key, map);
+                    map.clear();
+                }
+            }
+            if (!map.isEmpty()) {
+                context.write(key, map);
             }
-            context.write(key, map);
         }
     }
 
     private static final class MyReducer extends
-            Reducer<Text, HMapStIW, Text, HashMapWritable> {
-        private static final HashMapWritable<Text, PairOfFloatInt> VALUE = new HashMapWritable<>();
+            Reducer<Text, HMapStIW, Text, Writable> {
         private static int threshold;
         private static HashMap<String, Integer> wordCount = new HashMap<>();
+        private PMIStripeWriter writer;
+        private final WordIds wordIds = new WordIds();
+        private SpillableStripe stripe;
+        private int maxWords;
+        private PMISketch sketch;
 
         @Override
         public void setup(Context context) throws IOException {
             Configuration conf = context.getConfiguration();
             threshold = conf.getInt("threshold", 10);
+            writer = new PMIStripeWriter(context);
+            // Half of the budget for the stripe, half for the words its ids stand for
+            int maxEntries = conf.getInt(STRIPE_ENTRIES_FIELD, DEFAULT_STRIPE_ENTRIES);
+            stripe = new SpillableStripe(maxEntries / 2);
+            maxWords = maxEntries / 2 / WORD_ENTRY_COST;
+            sketch = PMISketch.forReducer(conf);
             Path input_path = new Path(conf.get("wordCountPath") + "/part-r-00000");
             FileSystem fileSystem = FileSystem.get(conf);
             try (BufferedReader br = new BufferedReader(new InputStreamReader(fileSystem.open(input_path)))){
@@ -160,30 +381,348 @@ public class StripesPMI extends Configured implements Tool {
                 throws IOException, InterruptedException {
 
             int numLine = wordCount.get("*");
-            HMapStIW map = new HMapStIW();
             Iterator<HMapStIW> iter = values.iterator();
             while (iter.hasNext()) {
-                map.plus(iter.next());
+                for (MapKI.Entry<String> entry : iter.next().entrySet()) {
+                    stripe.increment(wordIds.id(entry.getKey()), entry.getValue());
+                }
             }
-            VALUE.clear();
             String word1 = key.toString();
-            for (MapKI.Entry<String> entry : map.entrySet()) {
-                String word2 = entry.getKey();
-                int cooccurence = entry.getValue();
+            stripe.startMerge();
+            while (stripe.next()) {
+                int cooccurence = stripe.value();
+                if (sketch != null) {
+                    sketch.record(word1, wordIds.word(stripe.key()), cooccurence, context);
+                }
                 if (cooccurence >= threshold){
+                    String word2 = wordIds.word(stripe.key());
                     int word1Occurrence = wordCount.get(word1);
                     int word2Occurrence = wordCount.get(word2);
                     float PMI = (float) Math.log10(cooccurence * 1.0f * numLine / (word1Occurrence * word2Occurrence));
-                    PairOfFloatInt res = new PairOfFloatInt(PMI, cooccurence);
-                    VALUE.put(new Text(word2), res);
+                    writer.add(word1, word2, PMI, cooccurence);
+                }
+            }
+            writer.write(key, context);
+            wordIds.trim(maxWords);
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            context.getCounter("StripesPMI", "stripe spills").increment(stripe.getSpills());
+            writer.close();
+        }
+    }
+
+    /*
+        Single-pass mode (-singlePass): there is no word-count job, and the input is scanned once. Each
+        mapper also counts the lines each word occurs in, and at the end sends the count of word a once,
+        as the "*" entry of a stripe for a, so it reaches the reducer of a's stripes. The line count goes
+        through a counter.
+
+        Only the marginal of a reaches that reducer, so it passes each partner b above the threshold on,
+        turned around, as (b, a) -> (count, marginal of a), along with (a, "*") -> (marginal of a, 0).
+        A second job, over these pairs only, partitions them by b, and "*" sorts before every word, so
+        the marginal of b arrives first (order inversion). It writes the stripe of b from the pairs
+        (b, a): PMI and counts are symmetric, so these are exactly the partners of b.
+     */
+    private static final class SinglePassMapper extends Mapper<LongWritable, Text, Text, HMapStIW> {
+        private static final HMapStIW MAP = new HMapStIW();
+        private static final Text KEY = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final String[] strings = new String[WORD_LIMIT];
+        private final HMapStIW marginals = new HMapStIW();
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            context.getCounter("StripesPMI", "lines").increment(1);
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            for (int i = 0; i < numWords; i++) {
+                strings[i] = WORDS[i].toString();
+                marginals.increment(strings[i]);
+            }
+            if (numWords < 2) return;
+            for (int i = 0; i < numWords; i++) {
+                MAP.clear();
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j) {
+                        MAP.increment(strings[j]);
+                    }
+                }
+                context.write(WORDS[i], MAP);
+            }
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            for (MapKI.Entry<String> entry : marginals.entrySet()) {
+                KEY.set(entry.getKey());
+                MAP.clear();
+                MAP.put("*", entry.getValue());
+                context.write(KEY, MAP);
+            }
+        }
+    }
+
+    private static final class SinglePassReducer extends
+            Reducer<Text, HMapStIW, PairOfStrings, PairOfInts> {
+        private static final PairOfStrings PAIR = new PairOfStrings();
+        private static final PairOfInts VALUE = new PairOfInts();
+        private int threshold;
+        private final WordIds wordIds = new WordIds();
+        private SpillableStripe stripe;
+        private int maxWords;
+
+        @Override
+        public void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            threshold = conf.getInt("threshold", 10);
+            // Half of the budget for the stripe, half for the words its ids stand for
+            int maxEntries = conf.getInt(STRIPE_ENTRIES_FIELD, DEFAULT_STRIPE_ENTRIES);
+            stripe = new SpillableStripe(maxEntries / 2);
+            maxWords = maxEntries / 2 / WORD_ENTRY_COST;
+        }
+
+        @Override
+        public void cleanup(Context context) {
+            context.getCounter("StripesPMI", "stripe spills").increment(stripe.getSpills());
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<HMapStIW> values, Context context)
+                throws IOException, InterruptedException {
+            int marginal = 0;
+            Iterator<HMapStIW> iter = values.iterator();
+            while (iter.hasNext()) {
+                for (MapKI.Entry<String> entry : iter.next().entrySet()) {
+                    if (entry.getKey().equals("*")) {
+                        marginal += entry.getValue();
+                    } else {
+                        stripe.increment(wordIds.id(entry.getKey()), entry.getValue());
+                    }
+                }
+            }
+
+            String word1 = key.toString();
+            PAIR.set(word1, "*");
+            VALUE.set(marginal, 0);
+            context.write(PAIR, VALUE);
+            stripe.startMerge();
+            while (stripe.next()) {
+                int cooccurence = stripe.value();
+                if (cooccurence >= threshold){
+                    PAIR.set(wordIds.word(stripe.key()), word1);
+                    VALUE.set(cooccurence, marginal);
+                    context.write(PAIR, VALUE);
+                }
+            }
+            wordIds.trim(maxWords);
+        }
+    }
+
+    // Reads the (b, a) -> (count, marginal of a) pairs of the first job, after (b, "*"), and writes the stripe of b.
+    private static final class SinglePassPMIReducer extends
+            Reducer<PairOfStrings, PairOfInts, Text, Writable> {
+        private final Text word = new Text();
+        private PMIStripeWriter writer;
+        private long numLines;
+        private int marginal;
+
+        @Override
+        public void setup(Context context) {
+            numLines = context.getConfiguration().getLong("numLines", 0);
+            writer = new PMIStripeWriter(context);
+        }
+
+        @Override
+        public void reduce(PairOfStrings key, Iterable<PairOfInts> values, Context context)
+                throws IOException, InterruptedException {
+            // Each key comes from one reducer of the first job, so it has one value.
+            PairOfInts value = values.iterator().next();
+            if (key.getRightElement().equals("*")) {
+                // The stripe of the previous word is complete.
+                writer.write(word, context);
+                word.set(key.getLeftElement());
+                marginal = value.getLeftElement();
+                return;
+            }
+            int cooccurence = value.getLeftElement();
+            float PMI = (float) Math.log10(cooccurence * 1.0 * numLines / ((double) marginal * value.getRightElement()));
+            writer.add(key.getLeftElement(), key.getRightElement(), PMI, cooccurence);
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            writer.write(word, context);
+            writer.close();
+        }
+    }
+
+    private static final class SinglePassPartitioner extends Partitioner<PairOfStrings, PairOfInts> {
+        @Override
+        public int getPartition(PairOfStrings key, PairOfInts value, int numReduceTasks) {
+            return (key.getLeftElement().hashCode() & Integer.MAX_VALUE) % numReduceTasks;
+        }
+    }
+
+    /*
+        Dictionary-encoded mode (-dictionary): stripes are keyed by word id and map ids to counts.
+     */
+    private static final class IdMapper extends Mapper<LongWritable, Text, IntWritable, HMapIIW> {
+        private static final HMapIIW MAP = new HMapIIW();
+        private static final IntWritable KEY = new IntWritable();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private static final Text[] WORDS = new Text[WORD_LIMIT];
+        private final int[] ids = new int[WORD_LIMIT];
+        private PMIDictionary dictionary;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            dictionary = PMIDictionary.read(FileSystem.get(conf), new Path(conf.get("dictionaryPath")));
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            int numWords = TOKENIZER.distinctTokens(value, WORDS, WORD_LIMIT);
+            if (numWords < 2) return;
+            for (int i = 0; i < numWords; i++) {
+                ids[i] = dictionary.getId(WORDS[i]);
+            }
+            for (int i = 0; i < numWords; i++) {
+                MAP.clear();
+                for (int j = 0; j < numWords; j++) {
+                    if (i != j) {
+                        MAP.increment(ids[j]);
+                    }
+                }
+                KEY.set(ids[i]);
+                context.write(KEY, MAP);
+            }
+        }
+    }
+
+    private static final class WindowIdMapper extends Mapper<LongWritable, Text, IntWritable, HMapIIW> {
+        private static final IntWritable KEY = new IntWritable();
+        private static final Text WORD = new Text();
+        private static final ByteTokenizer TOKENIZER = new ByteTokenizer();
+        private final HashMap<Integer, HMapIIW> stripes = new HashMap<>();
+        private PMIDictionary dictionary;
+        private CooccurrenceWindow window;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            dictionary = PMIDictionary.read(FileSystem.get(conf), new Path(conf.get("dictionaryPath")));
+            window = new CooccurrenceWindow(conf.getInt("window", 1));
+        }
+
+        private HMapIIW stripe(int id) {
+            HMapIIW stripe = stripes.get(id);
+            if (stripe == null) {
+                stripe = new HMapIIW();
+                stripes.put(id, stripe);
+            }
+            return stripe;
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context)
+                throws IOException, InterruptedException {
+            stripes.clear();
+            window.reset();
+            TOKENIZER.reset(value);
+            while (TOKENIZER.next()) {
+                TOKENIZER.get(WORD);
+                int id = dictionary.getId(WORD);
+                int n = window.add(id);
+                for (int i = 0; i < n; i++) {
+                    int partner = window.partner(i);
+                    stripe(id).increment(partner);
+                    stripe(partner).increment(id);
+                }
+            }
+            for (Map.Entry<Integer, HMapIIW> entry : stripes.entrySet()) {
+                KEY.set(entry.getKey());
+                context.write(KEY, entry.getValue());
+            }
+        }
+    }
+
+    private static final class IdCombiner extends Reducer<IntWritable, HMapIIW, IntWritable, HMapIIW> {
+        private int maxEntries;
+
+        @Override
+        public void setup(Context context) {
+            maxEntries = context.getConfiguration().getInt(STRIPE_ENTRIES_FIELD, DEFAULT_STRIPE_ENTRIES);
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<HMapIIW> values, Context context)
+                throws IOException, InterruptedException {
+            HMapIIW map = new HMapIIW();
+            for (HMapIIW value : values) {
+                map.plus(value);
+                if (map.size() > maxEntries) {
+                    context.write(key, map);
+                    map.clear();
                 }
             }
-            if (!VALUE.isEmpty()){
-                context.write(key, VALUE);
+            if (!map.isEmpty()) {
+                context.write(key, map);
             }
         }
     }
 
+    // Counts are looked up by id in arrays; words are decoded only for pairs above the threshold.
+    private static final class IdReducer extends Reducer<IntWritable, HMapIIW, Text, Writable> {
+        private static final Text KEY = new Text();
+        private int threshold;
+        private PMIDictionary dictionary;
+        private PMIStripeWriter writer;
+        private SpillableStripe stripe;
+
+        @Override
+        public void setup(Context context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            threshold = conf.getInt("threshold", 10);
+            dictionary = PMIDictionary.read(FileSystem.get(conf), new Path(conf.get("dictionaryPath")));
+            writer = new PMIStripeWriter(context);
+            stripe = new SpillableStripe(conf.getInt(STRIPE_ENTRIES_FIELD, DEFAULT_STRIPE_ENTRIES));
+        }
+
+        @Override
+        public void cleanup(Context context) throws IOException, InterruptedException {
+            context.getCounter("StripesPMI", "stripe spills").increment(stripe.getSpills());
+            writer.close();
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<HMapIIW> values, Context context)
+                throws IOException, InterruptedException {
+            for (HMapIIW value : values) {
+                for (MapII.Entry entry : value.entrySet()) {
+                    stripe.increment(entry.getKey(), entry.getValue());
+                }
+            }
+            String word1 = dictionary.getWord(key.get());
+            int word1Occurrence = dictionary.getCount(key.get());
+            stripe.startMerge();
+            while (stripe.next()) {
+                int cooccurence = stripe.value();
+                if (cooccurence >= threshold) {
+                    int word2Occurrence = dictionary.getCount(stripe.key());
+                    float PMI = (float) Math.log10(cooccurence * 1.0f * dictionary.getNumLines() / (word1Occurrence * word2Occurrence));
+                    writer.add(word1, dictionary.getWord(stripe.key()), PMI, cooccurence);
+                }
+            }
+            KEY.set(word1);
+            writer.write(KEY, context);
+        }
+    }
+
     /**
      * Creates an instance of this tool.
      */
@@ -204,6 +743,38 @@ public class StripesPMI extends Configured implements Tool {
 
         @Option(name = "-textOutput", usage = "use TextOutputFormat (otherwise, SequenceFileOutputFormat)")
         boolean textOutput = true;
+
+        @Option(name = "-dictionary", usage = "shuffle dense word ids instead of words")
+        boolean dictionary = false;
+
+        @Option(name = "-singlePass", usage = "compute the word counts in the PMI job itself (one input scan)")
+        boolean singlePass = false;
+
+        @Option(name = "-topK", metaVar = "[num]", usage = "keep only the k partners of each word with the highest PMI")
+        int topK = 0;
+
+        @Option(name = "-topN", metaVar = "[num]", usage = "also write the N pairs with the highest PMI to <output>/topn.txt")
+        int topN = 0;
+
+        @Option(name = "-stripeMB", metaVar = "[num]", usage = "memory for the stripe being merged before it spills to disk; "
+                + "the word counts the reducers load are not included; without -dictionary, half of it holds partner words, "
+                + "which are not spilled, so only -dictionary bounds the stripe of a single head word")
+        int stripeMB = 64;
+
+        @Option(name = "-window", metaVar = "[num]", usage = "pair each word with the last num distinct words of its line (0: all of the first 40 words)")
+        int window = 0;
+
+        @Option(name = "-sketch", usage = "shuffle only the pairs whose count-min estimate clears the threshold")
+        boolean sketch = false;
+
+        @Option(name = "-sketchDepth", metaVar = "[num]", usage = "rows of the count-min sketch")
+        int sketchDepth = 4;
+
+        @Option(name = "-sketchWidth", metaVar = "[num]", usage = "counters per row of the count-min sketch")
+        int sketchWidth = 1 << 20;
+
+        @Option(name = "-conservative", usage = "use conservative update in the sketch")
+        boolean conservative = false;
     }
 
     /**
@@ -222,6 +793,19 @@ public class StripesPMI extends Configured implements Tool {
             return -1;
         }
 
+        if (args.singlePass && args.dictionary) {
+            System.err.println("-singlePass and -dictionary cannot be combined: word ids need the word-count job");
+            return -1;
+        }
+        if (args.sketch && (args.singlePass || args.dictionary)) {
+            System.err.println("-sketch cannot be combined with -singlePass or -dictionary");
+            return -1;
+        }
+        if (args.window > 0 && (args.singlePass || args.sketch)) {
+            System.err.println("-window cannot be combined with -singlePass or -sketch");
+            return -1;
+        }
+
         /*
             The first job: compute the word count
                 - the number of lines that contain a word
@@ -236,45 +820,104 @@ public class StripesPMI extends Configured implements Tool {
         LOG.info(" - threshold: " + args.threshold);
         LOG.info(" - num reducers: " + args.numReducers);
         LOG.info(" - text output: " + args.textOutput);
+        LOG.info(" - dictionary encoding: " + args.dictionary);
+        LOG.info(" - single pass: " + args.singlePass);
+        LOG.info(" - window: " + (args.window > 0 ? args.window : "line"));
+        LOG.info(" - top k per word: " + args.topK);
+        LOG.info(" - top N overall: " + args.topN);
+        LOG.info(" - stripe memory (MB): " + args.stripeMB);
+        LOG.info(" - sketch: " + (args.sketch ? args.sketchDepth + " x " + args.sketchWidth
+                + (args.conservative ? ", conservative update" : "") : "none"));
 
 
         Configuration conf = getConf();
         conf.setInt("threshold", args.threshold);
         conf.set("wordCountPath", wordCountTempPath);
+        conf.setInt("window", args.window);
+        conf.setInt(PMIStripeWriter.TOP_K_FIELD, args.topK);
+        conf.setInt(PMIStripeWriter.TOP_N_FIELD, args.topN);
+        conf.setInt(STRIPE_ENTRIES_FIELD, (int) Math.max(16, Math.min(MAX_STRIPE_ENTRIES, args.stripeMB * 1024L * 1024L / 16)));
 
-        Job job1 = Job.getInstance(conf);
-        job1.setJobName(StripesPMI.class.getSimpleName() + "-Part1");
-        job1.setJarByClass(StripesPMI.class);
+        long startTime = System.currentTimeMillis();
+        if (args.singlePass) {
+            // The only job over the input: it counts stripes and marginals, and passes the pairs above the threshold on.
+            Job job1 = Job.getInstance(conf);
+            job1.setJobName(StripesPMI.class.getSimpleName() + "-Part1");
+            job1.setJarByClass(StripesPMI.class);
 
-        // Setting these MapReduce job parameters for running on the Datasci cluster
-        job1.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
-        job1.getConfiguration().set("mapreduce.map.memory.mb", "3072");
-        job1.getConfiguration().set("mapreduce.map.java.opts", "-Xmx3072m");
-        job1.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
-        job1.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
+            // Task memory is left to the job configuration (-D mapreduce.map.memory.mb=..., etc.)
+            job1.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
 
-        job1.setNumReduceTasks(1); // no partition for this job
+            job1.setNumReduceTasks(args.numReducers);
 
-        FileInputFormat.setInputPaths(job1, new Path(args.input));
-        FileOutputFormat.setOutputPath(job1, new Path(wordCountTempPath));
+            FileInputFormat.setInputPaths(job1, new Path(args.input));
+            FileOutputFormat.setOutputPath(job1, new Path(wordCountTempPath));
 
-        job1.setMapOutputKeyClass(Text.class);
-        job1.setMapOutputValueClass(IntWritable.class);
-        job1.setOutputKeyClass(Text.class);
-        job1.setOutputValueClass(IntWritable.class);
-        job1.setOutputFormatClass(TextOutputFormat.class);
+            job1.setMapOutputKeyClass(Text.class);
+            job1.setMapOutputValueClass(HMapStIW.class);
+            job1.setOutputKeyClass(PairOfStrings.class);
+            job1.setOutputValueClass(PairOfInts.class);
+            job1.setOutputFormatClass(SequenceFileOutputFormat.class);
 
-        job1.setMapperClass(WordCountMapper.class);
-        job1.setCombinerClass(WordCountReducer.class);
-        job1.setReducerClass(WordCountReducer.class);
+            job1.setMapperClass(SinglePassMapper.class);
+            job1.setCombinerClass(MyCombiner.class);
+            job1.setReducerClass(SinglePassReducer.class);
 
-        // Delete the output directory if it exists already.
-        Path tempDir = new Path(wordCountTempPath);
-        FileSystem.get(getConf()).delete(tempDir, true);
+            // Delete the output directory if it exists already.
+            FileSystem.get(getConf()).delete(new Path(wordCountTempPath), true);
 
-        long startTime = System.currentTimeMillis();
-        job1.waitForCompletion(true);
-        LOG.info("The first job finished");
+            job1.waitForCompletion(true);
+            long numLines = job1.getCounters().findCounter("StripesPMI", "lines").getValue();
+            conf.setLong("numLines", numLines);
+            LOG.info("The first job finished: " + numLines + " lines");
+        } else {
+            Job job1 = Job.getInstance(conf);
+            job1.setJobName(StripesPMI.class.getSimpleName() + "-Part1");
+            job1.setJarByClass(StripesPMI.class);
+
+            // Task memory is left to the job configuration (-D mapreduce.map.memory.mb=..., etc.)
+            job1.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
+
+            job1.setNumReduceTasks(1); // no partition for this job
+
+            FileInputFormat.setInputPaths(job1, new Path(args.input));
+            FileOutputFormat.setOutputPath(job1, new Path(wordCountTempPath));
+
+            job1.setMapOutputKeyClass(Text.class);
+            job1.setMapOutputValueClass(IntWritable.class);
+            job1.setOutputKeyClass(Text.class);
+            job1.setOutputValueClass(IntWritable.class);
+            job1.setOutputFormatClass(TextOutputFormat.class);
+
+            if (args.window > 0) {
+                job1.setMapperClass(WindowWordCountMapper.class);
+            } else {
+                job1.setMapperClass(args.sketch ? PMISketch.WordCountMapper.class : WordCountMapper.class);
+            }
+            job1.setCombinerClass(WordCountReducer.class);
+            job1.setReducerClass(WordCountReducer.class);
+            if (args.sketch) {
+                PMISketch.configure(job1, args.sketchDepth, args.sketchWidth, args.conservative);
+            }
+
+            // Delete the output directory if it exists already.
+            Path tempDir = new Path(wordCountTempPath);
+            FileSystem.get(getConf()).delete(tempDir, true);
+
+            job1.waitForCompletion(true);
+            LOG.info("The first job finished");
+
+            if (args.dictionary) {
+                Path dictionaryPath = new Path(tempDir, PMIDictionary.FILE_NAME);
+                PMIDictionary.build(FileSystem.get(getConf()), tempDir, dictionaryPath);
+                conf.set("dictionaryPath", dictionaryPath.toString());
+                LOG.info("Word ids assigned in " + dictionaryPath);
+            }
+            if (args.sketch) {
+                Path sketchPath = PMISketch.merge(FileSystem.get(getConf()), tempDir);
+                conf.set(PMISketch.PATH_FIELD, sketchPath.toString());
+            }
+        }
 
 
         /*
@@ -291,31 +934,64 @@ public class StripesPMI extends Configured implements Tool {
         job2.setJobName(StripesPMI.class.getSimpleName() + "-Part2");
         job2.setJarByClass(StripesPMI.class);
 
-        // Setting these MapReduce job parameters for running on the Datasci cluster
+        // Task memory is left to the job configuration (-D mapreduce.map.memory.mb=..., etc.): the stripes
+        // are bounded by -stripeMB, not by the heap.
         job2.getConfiguration().setInt("mapred.max.split.size", 1024 * 1024 * 32);
-        job2.getConfiguration().set("mapreduce.map.memory.mb", "3072");
-        job2.getConfiguration().set("mapreduce.map.java.opts", "-Xmx3072m");
-        job2.getConfiguration().set("mapreduce.reduce.memory.mb", "3072");
-        job2.getConfiguration().set("mapreduce.reduce.java.opts", "-Xmx3072m");
 
         job2.setNumReduceTasks(args.numReducers);
 
-        FileInputFormat.setInputPaths(job2, new Path(args.input));
+        if (args.singlePass) {
+            // The second job reads only the pairs above the threshold, not the input.
+            FileInputFormat.setInputPaths(job2, new Path(wordCountTempPath));
+            job2.setInputFormatClass(SequenceFileInputFormat.class);
+        } else {
+            FileInputFormat.setInputPaths(job2, new Path(args.input));
+        }
         FileOutputFormat.setOutputPath(job2, new Path(args.output));
 
-        job2.setMapOutputKeyClass(Text.class);
-        job2.setMapOutputValueClass(HMapStIW.class);
-        job2.setOutputKeyClass(Text.class);
-        job2.setOutputValueClass(HashMapWritable.class);
-        if (args.textOutput) {
-            job2.setOutputFormatClass(TextOutputFormat.class);
+        if (args.dictionary) {
+            job2.setMapOutputKeyClass(IntWritable.class);
+            job2.setMapOutputValueClass(HMapIIW.class);
+        } else if (args.singlePass) {
+            job2.setMapOutputKeyClass(PairOfStrings.class);
+            job2.setMapOutputValueClass(PairOfInts.class);
         } else {
+            job2.setMapOutputKeyClass(Text.class);
+            job2.setMapOutputValueClass(HMapStIW.class);
+        }
+        job2.setOutputKeyClass(Text.class);
+        if (args.topK > 0) {
+            // Top-k lists are written compactly in binary.
+            job2.setOutputValueClass(PMINeighbors.class);
             job2.setOutputFormatClass(SequenceFileOutputFormat.class);
+        } else {
+            job2.setOutputValueClass(HashMapWritable.class);
+            if (args.textOutput) {
+                job2.setOutputFormatClass(TextOutputFormat.class);
+            } else {
+                job2.setOutputFormatClass(SequenceFileOutputFormat.class);
+            }
         }
+        MultipleOutputs.addNamedOutput(job2, PMIStripeWriter.TOP_N_OUTPUT, SequenceFileOutputFormat.class,
+                PairOfStrings.class, PairOfFloatInt.class);
 
-        job2.setMapperClass(MyMapper.class);
-        job2.setCombinerClass(MyCombiner.class);
-        job2.setReducerClass(MyReducer.class);
+        if (args.dictionary) {
+            job2.setMapperClass(args.window > 0 ? WindowIdMapper.class : IdMapper.class);
+            job2.setCombinerClass(IdCombiner.class);
+            job2.setReducerClass(IdReducer.class);
+        } else if (args.singlePass) {
+            job2.setMapperClass(Mapper.class);
+            job2.setReducerClass(SinglePassPMIReducer.class);
+            job2.setPartitionerClass(SinglePassPartitioner.class);
+        } else {
+            if (args.window > 0) {
+                job2.setMapperClass(WindowMapper.class);
+            } else {
+                job2.setMapperClass(args.sketch ? SketchMapper.class : MyMapper.class);
+            }
+            job2.setCombinerClass(MyCombiner.class);
+            job2.setReducerClass(MyReducer.class);
+        }
 
 
         // Delete the output directory if it exists already.
@@ -324,6 +1000,14 @@ public class StripesPMI extends Configured implements Tool {
 
         job2.waitForCompletion(true);
 
+        if (args.topN > 0) {
+            PMIStripeWriter.mergeTopN(FileSystem.get(getConf()), outputDir, args.topN);
+            LOG.info("Top " + args.topN + " pairs written to " + new Path(outputDir, PMIStripeWriter.TOP_N_OUTPUT + ".txt"));
+        }
+        if (args.sketch) {
+            PMISketch.writeReport(job2, FileSystem.get(getConf()), outputDir);
+        }
+
         System.out.println("Job Finished in " + (System.currentTimeMillis() - startTime) / 1000.0 + " seconds");
 
         return 0;
@@ -0,0 +1,183 @@
+/**
+ * Bespin: reference implementations of "big data" algorithms
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.bespin.java.util;
+
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tokenizer over the UTF-8 bytes of a {@link Text} that produces the same tokens as
+ * {@link Tokenizer#tokenize(String)} without regexes or per-token objects: tokens are written
+ * to a reusable buffer and read before the next call to {@link #next()}.
+ *
+ * <pre>
+ * tokenizer.reset(value);
+ * while (tokenizer.next()) {
+ *   WORD.set(tokenizer.getBytes(), 0, tokenizer.getLength());
+ * }
+ * </pre>
+ *
+ * ASCII tokens are lowercased and stripped byte by byte. A token with any non-ASCII byte (rare in
+ * English text) is decoded and handled by {@link Tokenizer}, since Unicode lowercasing can change
+ * which characters are letters.
+ */
+public class ByteTokenizer {
+  private byte[] input;
+  private int pos;
+  private int end;
+  private byte[] token = new byte[64];
+  private int length;
+
+  public void reset(Text text) {
+    reset(text.getBytes(), 0, text.getLength());
+  }
+
+  public void reset(byte[] bytes, int start, int len) {
+    input = bytes;
+    pos = start;
+    end = start + len;
+    length = 0;
+  }
+
+  /**
+   * Advances to the next token.
+   *
+   * @return false if the input has no more tokens
+   */
+  public boolean next() {
+    while (pos < end) {
+      // Same delimiters as StringTokenizer; they never occur inside a multi-byte UTF-8 character.
+      while (pos < end && isDelimiter(input[pos])) {
+        pos++;
+      }
+      int start = pos;
+      boolean ascii = true;
+      while (pos < end && !isDelimiter(input[pos])) {
+        ascii &= input[pos] >= 0;
+        pos++;
+      }
+      if (start == pos) {
+        break;
+      }
+
+      if (!ascii) {
+        String w = Tokenizer.strip(new String(input, start, pos - start, StandardCharsets.UTF_8));
+        if (w.length() != 0) {
+          byte[] bytes = w.getBytes(StandardCharsets.UTF_8);
+          ensureCapacity(bytes.length);
+          System.arraycopy(bytes, 0, token, 0, bytes.length);
+          length = bytes.length;
+          return true;
+        }
+        continue;
+      }
+
+      int lo = start;
+      int hi = pos;
+      while (lo < hi && !isLetter(input[lo])) {
+        lo++;
+      }
+      while (hi > lo && !isLetter(input[hi - 1])) {
+        hi--;
+      }
+      if (lo < hi) {
+        ensureCapacity(hi - lo);
+        for (int i = lo; i < hi; i++) {
+          byte b = input[i];
+          token[i - lo] = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+        }
+        length = hi - lo;
+        return true;
+      }
+    }
+    length = 0;
+    return false;
+  }
+
+  /**
+   * Returns the buffer holding the current token in bytes [0, {@link #getLength()}). The buffer is
+   * overwritten by the next call to {@link #next()}.
+   */
+  public byte[] getBytes() {
+    return token;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Copies the current token into a {@link Text}.
+   */
+  public void get(Text text) {
+    text.set(token, 0, length);
+  }
+
+  /**
+   * Reads the distinct tokens among the first {@code limit} tokens of a line into reusable
+   * {@link Text} objects, which are created on first use.
+   *
+   * @return the number of distinct tokens, stored in {@code out[0..n)}
+   */
+  public int distinctTokens(Text text, Text[] out, int limit) {
+    reset(text);
+    int n = 0;
+    for (int i = 0; i < limit && next(); i++) {
+      boolean seen = false;
+      for (int j = 0; j < n && !seen; j++) {
+        seen = out[j].getLength() == length && equals(out[j].getBytes(), length);
+      }
+      if (!seen) {
+        if (out[n] == null) {
+          out[n] = new Text();
+        }
+        out[n++].set(token, 0, length);
+      }
+    }
+    return n;
+  }
+
+  private boolean equals(byte[] bytes, int len) {
+    for (int i = 0; i < len; i++) {
+      if (bytes[i] != token[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (token.length < capacity) {
+      token = new byte[Math.max(capacity, token.length * 2)];
+    }
+  }
+
+  private static boolean isDelimiter(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+
+  // A letter after lowercasing: A-Z or a-z.
+  private static boolean isLetter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+
+  @Override
+  public String toString() {
+    return new String(token, 0, length, StandardCharsets.UTF_8);
+  }
+}
@@ -23,6 +23,8 @@ import java.util.regex.Pattern;
 
 /**
  * Tokenizer so that we have a consistent definition of a "word".
+ * See {@link ByteTokenizer} for the same definition over the bytes of a {@code Text}, without
+ * creating Strings.
  */
 public class Tokenizer {
   private static final Pattern PATTERN = Pattern.compile("(^[^a-z]+|[^a-z]+$)");
@@ -33,7 +35,7 @@ public class Tokenizer {
     List<String> tokens = new ArrayList<>();
     StringTokenizer itr = new StringTokenizer(input); // tokenized based on spaces (or default delimiters)
     while (itr.hasMoreTokens()) {
-      String w = PATTERN.matcher(itr.nextToken().toLowerCase()).replaceAll("");
+      String w = strip(itr.nextToken());
       // stripped of any leading or trailing non-alphabetical characters
       if (w.length() != 0) {
         tokens.add(w);
@@ -42,5 +44,10 @@ public class Tokenizer {
 
     return tokens;
   }
+
+  // Lowercases a whitespace-delimited token and strips its non-letter prefix and suffix.
+  static String strip(String token) {
+    return PATTERN.matcher(token.toLowerCase()).replaceAll("");
+  }
 }
 
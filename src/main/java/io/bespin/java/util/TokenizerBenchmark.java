@@ -0,0 +1,116 @@
+/**
+ * Bespin: reference implementations of "big data" algorithms
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.bespin.java.util;
+
+import org.apache.hadoop.io.Text;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the throughput of {@link Tokenizer} and {@link ByteTokenizer} on a local text file, as
+ * mappers see it: one {@link Text} per line. Checks first that both produce the same tokens.
+ *
+ * <pre>
+ * java -cp target/assignments-1.0.jar io.bespin.java.util.TokenizerBenchmark data/Shakespeare.txt 10
+ * </pre>
+ */
+public class TokenizerBenchmark {
+  private static final int WARMUP_ROUNDS = 3;
+
+  private TokenizerBenchmark() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("usage: TokenizerBenchmark [file] [rounds]");
+      System.exit(-1);
+    }
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    List<Text> lines = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(args[0]), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(new Text(line));
+      }
+    }
+
+    ByteTokenizer tokenizer = new ByteTokenizer();
+    for (Text line : lines) {
+      List<String> expected = Tokenizer.tokenize(line.toString());
+      tokenizer.reset(line);
+      for (String token : expected) {
+        if (!tokenizer.next() || !token.equals(tokenizer.toString())) {
+          throw new IllegalStateException("tokenizers disagree on line: " + line);
+        }
+      }
+      if (tokenizer.next()) {
+        throw new IllegalStateException("tokenizers disagree on line: " + line);
+      }
+    }
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      runString(lines);
+      runBytes(lines, tokenizer);
+    }
+
+    long tokens = 0;
+    long startTime = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      tokens += runString(lines);
+    }
+    report("Tokenizer", tokens, System.nanoTime() - startTime);
+
+    tokens = 0;
+    startTime = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      tokens += runBytes(lines, tokenizer);
+    }
+    report("ByteTokenizer", tokens, System.nanoTime() - startTime);
+  }
+
+  // Mappers start from Text, so the String tokenizer pays for toString() as well.
+  private static long runString(List<Text> lines) {
+    long tokens = 0;
+    for (Text line : lines) {
+      tokens += Tokenizer.tokenize(line.toString()).size();
+    }
+    return tokens;
+  }
+
+  private static long runBytes(List<Text> lines, ByteTokenizer tokenizer) {
+    long tokens = 0;
+    for (Text line : lines) {
+      tokenizer.reset(line);
+      while (tokenizer.next()) {
+        tokens++;
+      }
+    }
+    return tokens;
+  }
+
+  private static void report(String name, long tokens, long nanos) {
+    System.out.println(String.format("%-14s %d tokens in %.3f s: %.0f tokens/s",
+        name, tokens, nanos / 1e9, tokens / (nanos / 1e9)));
+  }
+}
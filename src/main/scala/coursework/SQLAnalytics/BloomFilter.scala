@@ -0,0 +1,70 @@
+package coursework.SQLAnalytics
+
+/**
+  * A Bloom filter over int keys, sized for `expected` keys at false-positive rate `fpp`. Filters of
+  * the same size merge by OR-ing their bits, so each partition can build one and the driver reduces
+  * them. The k indexes come from two halves of one 64-bit hash (Kirsch–Mitzenmacher).
+  */
+final class BloomFilter(val numBits: Long, val numHashes: Int) extends Serializable {
+  private val bits = new Array[Long](((numBits + 63) / 64).toInt)
+
+  def add(key: Int): Unit = {
+    val h = BloomFilter.hash(key)
+    val h1 = h.toInt
+    val h2 = (h >>> 32).toInt
+    var i = 0
+    while (i < numHashes) {
+      val index = ((h1 + i * h2) & Int.MaxValue) % numBits
+      bits((index >>> 6).toInt) |= 1L << index
+      i += 1
+    }
+  }
+
+  def mightContain(key: Int): Boolean = {
+    val h = BloomFilter.hash(key)
+    val h1 = h.toInt
+    val h2 = (h >>> 32).toInt
+    var i = 0
+    while (i < numHashes) {
+      val index = ((h1 + i * h2) & Int.MaxValue) % numBits
+      if ((bits((index >>> 6).toInt) & (1L << index)) == 0) return false
+      i += 1
+    }
+    true
+  }
+
+  /** ORs the bits of `other`, a filter of the same size, into this one and returns it. */
+  def merge(other: BloomFilter): BloomFilter = {
+    require(numBits == other.numBits && numHashes == other.numHashes, "Bloom filters of different sizes")
+    var i = 0
+    while (i < bits.length) {
+      bits(i) |= other.bits(i)
+      i += 1
+    }
+    this
+  }
+
+  def sizeInBytes: Long = bits.length * 8L
+
+  /** Number of bits set. */
+  def cardinality: Long = bits.map(word => java.lang.Long.bitCount(word).toLong).sum
+
+  /** The false-positive rate implied by the bits set: the chance that k random bits are all set. */
+  def expectedFpp: Double = math.pow(cardinality.toDouble / numBits, numHashes)
+}
+
+object BloomFilter {
+  def apply(expected: Long, fpp: Double): BloomFilter = {
+    val n = math.max(expected, 1L)
+    val numBits = math.max(64L, math.ceil(-n * math.log(fpp) / (math.log(2) * math.log(2))).toLong)
+    val numHashes = math.max(1, math.round(numBits.toDouble / n * math.log(2)).toInt)
+    new BloomFilter(math.min(numBits, Int.MaxValue.toLong), numHashes)
+  }
+
+  private def hash(key: Int): Long = {
+    var h = key * 0x9E3779B97F4A7C15L
+    h ^= h >>> 32
+    h *= 0xC2B2AE3D27D4EB4FL
+    h ^ (h >>> 29)
+  }
+}
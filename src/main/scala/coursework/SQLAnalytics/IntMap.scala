@@ -0,0 +1,109 @@
+package coursework.SQLAnalytics
+
+import scala.reflect.ClassTag
+
+/**
+  * An Int-keyed hash multimap over primitive arrays, for broadcast dimension tables and hash join
+  * build sides: no boxed keys, no tuple per entry. The slots (open addressing) point to the newest entry
+  * of a key; the entries of a key are chained through `next`.
+  */
+final class IntMap[V: ClassTag](expected: Int) extends Serializable {
+  private var slots = IntMap.emptySlots(expected)
+  private var keys = new Array[Int](math.max(expected, 4))
+  private var values = new Array[V](math.max(expected, 4))
+  private var next = new Array[Int](math.max(expected, 4))
+  private var entries = 0
+  private var distinct = 0
+
+  def this() = this(16)
+
+  /** Number of entries, counting every value of a key. */
+  def size: Int = entries
+
+  def distinctKeys: Int = distinct
+
+  private def slot(key: Int): Int = {
+    var h = key * 0x9E3779B9
+    h ^= h >>> 16
+    var i = h & (slots.length - 1)
+    while (slots(i) >= 0 && keys(slots(i)) != key) {
+      i = (i + 1) & (slots.length - 1)
+    }
+    i
+  }
+
+  def put(key: Int, value: V): Unit = {
+    if (entries == keys.length) {
+      val capacity = keys.length * 2
+      keys = java.util.Arrays.copyOf(keys, capacity)
+      next = java.util.Arrays.copyOf(next, capacity)
+      val grown = new Array[V](capacity)
+      Array.copy(values, 0, grown, 0, entries)
+      values = grown
+    }
+    val i = slot(key)
+    keys(entries) = key
+    values(entries) = value
+    next(entries) = slots(i)
+    if (slots(i) < 0) distinct += 1
+    slots(i) = entries
+    entries += 1
+    if (distinct * 2 > slots.length) rehash()
+  }
+
+  private def rehash(): Unit = {
+    val old = slots
+    slots = IntMap.emptySlots(old.length)
+    for (head <- old if head >= 0) {
+      slots(slot(keys(head))) = head
+    }
+  }
+
+  def contains(key: Int): Boolean = slots(slot(key)) >= 0
+
+  /** The value of a key; the newest one if it has several. */
+  def apply(key: Int): V = {
+    val head = slots(slot(key))
+    if (head < 0) throw new NoSuchElementException("key not found: " + key)
+    values(head)
+  }
+
+  def getOrElse(key: Int, default: => V): V = {
+    val head = slots(slot(key))
+    if (head < 0) default else values(head)
+  }
+
+  def foreachValue(key: Int)(f: V => Unit): Unit = {
+    var entry = slots(slot(key))
+    while (entry >= 0) {
+      f(values(entry))
+      entry = next(entry)
+    }
+  }
+
+  def valuesOf(key: Int): Iterator[V] = new Iterator[V] {
+    private var entry = slots(slot(key))
+
+    def hasNext: Boolean = entry >= 0
+
+    def next(): V = {
+      val value = values(entry)
+      entry = IntMap.this.next(entry)
+      value
+    }
+  }
+}
+
+object IntMap {
+  private def emptySlots(expected: Int): Array[Int] = {
+    var capacity = 16
+    while (capacity < expected * 2) capacity *= 2
+    Array.fill(capacity)(-1)
+  }
+
+  def apply[V: ClassTag](pairs: TraversableOnce[(Int, V)], expected: Int = 16): IntMap[V] = {
+    val map = new IntMap[V](expected)
+    pairs.foreach { case (key, value) => map.put(key, value) }
+    map
+  }
+}
@@ -0,0 +1,151 @@
+package coursework.SQLAnalytics
+
+import org.apache.log4j._
+import org.apache.spark.HashPartitioner
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.rdd.RDD
+import org.apache.spark.util.LongAccumulator
+
+import scala.reflect.ClassTag
+
+/**
+  * Equi-joins on int keys for the queries, in place of `cogroup`, which shuffles both sides whole and
+  * buffers every group.
+  */
+object Joins {
+  val log = Logger.getLogger(getClass().getName())
+
+  /** Build sides up to this many rows are broadcast instead of shuffled. */
+  val DEFAULT_BROADCAST_ROWS = 1 << 20
+
+  /** False-positive rate of the Bloom filters that prune the probe side of a shuffled join. */
+  val BLOOM_FPP = 0.01
+
+  /** A dimension table as a broadcast IntMap, in place of a broadcast `collectAsMap`. */
+  def broadcastMap[V: ClassTag](table: RDD[(Int, V)]): Broadcast[IntMap[V]] = {
+    val rows = table.collect()
+    table.sparkContext.broadcast(IntMap(rows, rows.length))
+  }
+
+  /** The keys of `rdd` in a Bloom filter, built per partition and OR-ed together. */
+  def bloomFilter(keys: RDD[Int], expected: Long, fpp: Double): BloomFilter = {
+    val template = BloomFilter(expected, fpp)
+    val numBits = template.numBits
+    val numHashes = template.numHashes
+    keys.mapPartitions(partition => {
+      val filter = new BloomFilter(numBits, numHashes)
+      partition.foreach(filter.add)
+      Iterator(filter)
+    }).reduce(_ merge _)
+  }
+
+  /**
+    * Inner join of two RDDs with the same number of partitions whose partition i holds the same keys
+    * on both sides, each sorted by key, as the co-partitioned layout of LayoutTables loads them. Each
+    * pair of partitions is merged in one pass, without a shuffle; the rows of a key on the left are
+    * buffered while the right side streams past them.
+    */
+  def mergeJoin[V, W](left: RDD[(Int, V)], right: RDD[(Int, W)]): RDD[(Int, (V, W))] = {
+    require(left.getNumPartitions == right.getNumPartitions,
+      "merge join of " + left.getNumPartitions + " and " + right.getNumPartitions + " partitions")
+    left.zipPartitions(right)((leftRows, rightRows) => {
+      val lefts = leftRows.buffered
+      val run = new scala.collection.mutable.ArrayBuffer[V]
+      var runKey = 0
+      var started = false
+      rightRows.flatMap { case (key, w) =>
+        if (!started || key != runKey) {
+          while (lefts.hasNext && lefts.head._1 < key) lefts.next()
+          run.clear()
+          while (lefts.hasNext && lefts.head._1 == key) run += lefts.next()._2
+          runKey = key
+          started = true
+        }
+        run.iterator.map(v => (key, (v, w)))
+      }
+    })
+  }
+
+  /**
+    * A broadcast Bloom filter over the join keys that survive the filters of one side, for dropping
+    * rows of the other side in its scan, before anything is built from them or shuffled.
+    */
+  def semiJoin(keys: RDD[Int], name: String): SemiJoinFilter = {
+    val sc = keys.sparkContext
+    val expected = keys.count()
+    val filter = bloomFilter(keys, expected, BLOOM_FPP)
+    new SemiJoinFilter(name, expected, sc.broadcast(filter),
+      sc.longAccumulator(name + " semi-join rows scanned"), sc.longAccumulator(name + " semi-join rows kept"))
+  }
+
+  /**
+    * Inner join of `build`, the smaller side after its filters, with `probe`.
+    *
+    * If `build` has at most `broadcastRows` rows, it is collected into an IntMap and broadcast, and
+    * `probe` is joined where it lies, without a shuffle. Otherwise `probe` is first pruned with a
+    * broadcast Bloom filter of the build keys, then both sides are hash-partitioned alike and each
+    * partition of `build` is loaded into an IntMap that its `probe` partition streams past. Keys of
+    * `build` may repeat. A `probe` that was `prefiltered` by a semi-join is not pruned again.
+    */
+  def hashJoin[V: ClassTag, W: ClassTag](build: RDD[(Int, V)], probe: RDD[(Int, W)],
+                                         broadcastRows: Long = DEFAULT_BROADCAST_ROWS,
+                                         prefiltered: Boolean = false): RDD[(Int, (V, W))] = {
+    val sc = build.sparkContext
+    build.cache()
+    val buildRows = build.count()
+
+    if (buildRows <= broadcastRows) {
+      log.info("Broadcast hash join, build side of " + buildRows + " rows")
+      val table = broadcastMap(build)
+      build.unpersist(blocking = false)
+      probe.mapPartitions(rows => rows.flatMap { case (key, w) =>
+        table.value.valuesOf(key).map(v => (key, (v, w)))
+      })
+    } else {
+      log.info("Partitioned hash join, build side of " + buildRows + " rows")
+      val partitioner = new HashPartitioner(math.max(build.getNumPartitions, probe.getNumPartitions))
+      val pruned = if (prefiltered) probe else {
+        val filter = sc.broadcast(bloomFilter(build.keys, buildRows, BLOOM_FPP))
+        probe.filter { case (key, _) => filter.value.mightContain(key) }
+      }
+      build.partitionBy(partitioner).zipPartitions(pruned.partitionBy(partitioner))((left, right) => {
+        val table = IntMap(left)
+        right.flatMap { case (key, w) =>
+          table.valuesOf(key).map(v => (key, (v, w)))
+        }
+      })
+    }
+  }
+}
+
+/** See [[Joins.semiJoin]]. Counts the rows it scans and keeps; [[log]] reports them once a job has run. */
+final class SemiJoinFilter(name: String, keys: Long, filter: Broadcast[BloomFilter],
+                           scanned: LongAccumulator, kept: LongAccumulator) extends Serializable {
+
+  /** The rows among the first `size` of `column` whose key may be in the filter. */
+  def matching(column: Array[Int], size: Int): Iterator[Int] = {
+    val bloom = filter.value
+    val rows = new Array[Int](size)
+    var n = 0
+    var i = 0
+    while (i < size) {
+      if (bloom.mightContain(column(i))) {
+        rows(n) = i
+        n += 1
+      }
+      i += 1
+    }
+    scanned.add(size)
+    kept.add(n)
+    rows.iterator.take(n)
+  }
+
+  def log(): Unit = {
+    val bloom = filter.value
+    val eliminated = scanned.value - kept.value
+    Joins.log.info(f"Semi-join on $name: $keys%d keys, ${bloom.sizeInBytes}%d bytes, ${bloom.numHashes}%d hashes, " +
+      f"expected false-positive rate ${bloom.expectedFpp}%.4f")
+    Joins.log.info(f"Semi-join on $name: scanned ${scanned.value}%d rows, eliminated $eliminated%d " +
+      f"(${if (scanned.value > 0) 100.0 * eliminated / scanned.value else 0.0}%.1f%%), kept ${kept.value}%d")
+  }
+}
@@ -0,0 +1,68 @@
+package coursework.SQLAnalytics
+
+import org.apache.hadoop.fs._
+import org.apache.log4j._
+import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
+import org.apache.spark.rdd.RDD
+import org.apache.spark.rdd.RDD._
+import org.apache.spark.sql.SparkSession
+import org.rogach.scallop._
+
+class Conf8(args: Seq[String]) extends ScallopConf(args) {
+  mainOptions = Seq(input, output, buckets, text, parquet)
+  val input = opt[String](descr = "input path of data", required = true)
+  val output = opt[String](descr = "output path of the co-partitioned layout", required = true)
+  val buckets = opt[Int](descr = "number of buckets", required = false, default = Some(64))
+  val text = opt[Boolean](descr = "work with plaintext data", required = false, default = Some(false))
+  val parquet = opt[Boolean](descr = "work with Parquet data", required = false, default = Some(false))
+
+  verify()
+}
+
+/**
+  * Writes `orders` and `lineitem` once, hash-partitioned by orderkey into the same number of buckets and
+  * sorted by orderkey within each bucket: `<output>/<table>/part-NNNNN` is bucket NNNNN, as '|'-separated
+  * text, and `<output>/_BUCKETS` holds the bucket count. Queries given `--layout <output>` load both
+  * tables bucket by bucket and join them with a local sort-merge join, without a shuffle.
+  */
+object LayoutTables {
+  val log = Logger.getLogger(getClass().getName())
+
+  val TABLES = Seq(Tpch.Orders.name, Tpch.Lineitem.name)
+  val BUCKETS_FILE = "_BUCKETS"
+
+  def main(argv: Array[String]) {
+    val args = new Conf8(argv)
+
+    log.info("Input: " + args.input())
+    log.info("Output: " + args.output())
+    log.info("Buckets: " + args.buckets())
+    if (args.text()) log.info("Works with the plaintext data")
+    if (args.parquet()) log.info("Works with the Parquet data")
+
+    val conf = new SparkConf().setAppName("SQL LayoutTables")
+    val sc = new SparkContext(conf)
+
+    val fs = FileSystem.get(sc.hadoopConfiguration)
+    val output = new Path(args.output())
+    fs.delete(output, true)
+
+    val partitioner = new HashPartitioner(args.buckets())
+    for (table <- TABLES) {
+      val lines: RDD[String] = if (args.parquet()) {
+        SparkSession.builder.getOrCreate.read.parquet(args.input() + "/" + table).rdd.map(_.mkString("|"))
+      } else {
+        sc.textFile(args.input() + "/" + table + ".tbl")
+      }
+      // The orderkey is the first column of both tables.
+      lines.map(line => (Tpch.parseInt(line, 0, line.indexOf('|')), line))
+        .repartitionAndSortWithinPartitions(partitioner)
+        .values
+        .saveAsTextFile(args.output() + "/" + table)
+    }
+
+    val out = fs.create(new Path(output, BUCKETS_FILE))
+    out.writeBytes(args.buckets() + "\n")
+    out.close()
+  }
+}
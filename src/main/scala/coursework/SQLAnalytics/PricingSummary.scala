@@ -0,0 +1,80 @@
+package coursework.SQLAnalytics
+
+/**
+  * The sums and counts of the pricing summary report (Query6) per (l_returnflag, l_linestatus), in
+  * flat primitive arrays. There are only a handful of groups, so a group is found by a linear scan,
+  * each partition aggregates into one summary and the summaries are merged, without a shuffle.
+  */
+final class PricingSummary extends Serializable {
+  import PricingSummary._
+
+  private var returnflags = new Array[String](8)
+  private var linestatuses = new Array[String](8)
+  private var sums = new Array[Double](8 * FIELDS)
+  private var counts = new Array[Long](8)
+  private var groups = 0
+
+  private def group(returnflag: String, linestatus: String): Int = {
+    var g = 0
+    while (g < groups) {
+      if (returnflags(g) == returnflag && linestatuses(g) == linestatus) return g
+      g += 1
+    }
+    if (groups == counts.length) {
+      returnflags = java.util.Arrays.copyOf(returnflags, groups * 2)
+      linestatuses = java.util.Arrays.copyOf(linestatuses, groups * 2)
+      sums = java.util.Arrays.copyOf(sums, groups * 2 * FIELDS)
+      counts = java.util.Arrays.copyOf(counts, groups * 2)
+    }
+    returnflags(groups) = returnflag
+    linestatuses(groups) = linestatus
+    groups += 1
+    groups - 1
+  }
+
+  def add(returnflag: String, linestatus: String, quantity: Double, extendedprice: Double,
+          discount: Double, tax: Double): Unit = {
+    val base = group(returnflag, linestatus) * FIELDS
+    val discPrice = extendedprice * (1 - discount)
+    sums(base + QUANTITY) += quantity
+    sums(base + BASE_PRICE) += extendedprice
+    sums(base + DISC_PRICE) += discPrice
+    sums(base + CHARGE) += discPrice * (1 + tax)
+    sums(base + DISCOUNT) += discount
+    counts(base / FIELDS) += 1
+  }
+
+  /** Adds the groups of `other` to this summary and returns it. */
+  def merge(other: PricingSummary): PricingSummary = {
+    for (g <- 0 until other.groups) {
+      val base = group(other.returnflags(g), other.linestatuses(g)) * FIELDS
+      for (field <- 0 until FIELDS) {
+        sums(base + field) += other.sums(g * FIELDS + field)
+      }
+      counts(base / FIELDS) += other.counts(g)
+    }
+    this
+  }
+
+  /**
+    * (returnflag, linestatus, sum_qty, sum_base_price, sum_disc_price, sum_charge, avg_qty, avg_price,
+    * avg_disc, count_order), ordered by returnflag and linestatus.
+    */
+  def rows: Seq[(String, String, Double, Double, Double, Double, Double, Double, Double, Long)] =
+    (0 until groups).map(g => {
+      val base = g * FIELDS
+      val count = counts(g)
+      (returnflags(g), linestatuses(g), sums(base + QUANTITY), sums(base + BASE_PRICE), sums(base + DISC_PRICE),
+        sums(base + CHARGE), sums(base + QUANTITY) / count, sums(base + BASE_PRICE) / count,
+        sums(base + DISCOUNT) / count, count)
+    }).sortBy(row => (row._1, row._2))
+}
+
+object PricingSummary {
+  private val QUANTITY = 0
+  private val BASE_PRICE = 1
+  private val DISC_PRICE = 2
+  private val CHARGE = 3
+  private val DISCOUNT = 4
+  private val FIELDS = 5
+}
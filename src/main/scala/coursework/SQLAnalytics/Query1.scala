@@ -6,7 +6,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf1(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, date, text, parquet)
@@ -32,29 +32,14 @@ object Query1{
     val conf = new SparkConf().setAppName("SQL Query1")
     val sc = new SparkContext(conf)
 
-    val date = args.date()    // shipdate
+    val date = Tpch.date(args.date())    // shipdate
 
     // works with lineitem table
-    if (args.text()){
-      val query = sc.textFile(args.input() + "/lineitem.tbl")
-        .filter(line => {
-          val row = line.split('|')
-          val shipdate = row(10)
-          shipdate.trim == date
-        })
-        .count()
-      println("ANSWER=" + query)
-    }
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val lineitemRDD = lineitemDF.rdd
-      val query = lineitemRDD
-        .filter(line => {
-          val shipdate = line(10)
-          shipdate.toString.trim == date
-        })
-        .count()
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet())
+      val query = tables.load(Seq(equalTo(Lineitem.shipdate, date)), Lineitem.shipdate)
+        .map(batch => batch.size.toLong)
+        .fold(0L)(_ + _)
       println("ANSWER=" + query)
     }
   }
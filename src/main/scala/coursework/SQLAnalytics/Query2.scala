@@ -6,7 +6,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf2(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, date, text, parquet)
@@ -14,6 +14,8 @@ class Conf2(args: Seq[String]) extends ScallopConf(args) {
   val date = opt[String](descr = "l_shipdate predicate", required = true)
   val text = opt[Boolean](descr = "work with plaintext data", required = false, default = Some(false))
   val parquet = opt[Boolean](descr = "work with Parquet data", required = false, default = Some(false))
+  val broadcastRows = opt[Int](descr = "largest join build side that is broadcast instead of shuffled", required = false, default = Some(Joins.DEFAULT_BROADCAST_ROWS))
+  val layout = opt[String](descr = "co-partitioned orders and lineitem written by LayoutTables", required = false)
 
   verify()
 }
@@ -28,6 +30,7 @@ object Query2{
     log.info("Date: " + args.date())
     if (args.text()) log.info("Works with the plaintext data")
     if (args.parquet()) log.info("Works with the Parquet data")
+    if (args.layout.isDefined) log.info("Layout: " + args.layout())
 
     val conf = new SparkConf().setAppName("SQL Query2")
     val sc = new SparkContext(conf)
@@ -42,68 +45,30 @@ object Query2{
      * order by o_orderkey asc limit 20;
      */
 
-    if (args.text()){
-      val lineitem = sc.textFile(args.input() + "/lineitem.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val shipdate = row(10)
-          if (shipdate.trim == date) List((orderkey.toInt, '*'))
-          else List()
-        })
-
-      val orders = sc.textFile(args.input() + "/orders.tbl")
-        .map(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val clerk = row(6)
-          (orderkey.toInt, clerk)
-        })
-
-      val query = orders.cogroup(lineitem)
-        .flatMap {
-          case (orderkey, (o_clerk, l_dummy)) => {
-            if (o_clerk.isEmpty || l_dummy.isEmpty) List()
-            else l_dummy.map(dummy => (orderkey, o_clerk.head))
-          }
-        }
-        .sortByKey(numPartitions = 1)
-        .take(20)
-
-      query.foreach { case (orderkey, clerk) =>
-        println(s"($clerk,$orderkey)")
-      }
-    }
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet(), args.layout.toOption)
+      val shipdate = Tpch.date(date)
 
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val lineitemRDD = lineitemDF.rdd
-        .flatMap(line => {
-          val orderkey = line(0)
-          val shipdate = line(10)
-          if (shipdate.toString.trim == date) List((orderkey.toString.toInt, '*'))
-          else List()
+      val lineitem = tables.load(Seq(equalTo(Lineitem.shipdate, shipdate)), Lineitem.orderkey)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Lineitem.orderkey)
+          batch.indices.iterator.map(i => (orderkey(i), '*'))
         })
 
-      val ordersDF = sparkSession.read.parquet(args.input() + "/orders")
-      val ordersRDD = ordersDF.rdd
-        .map(line => {
-          val orderkey = line(0)
-          val clerk = line(6)
-          (orderkey.toString.toInt, clerk)
+      val orders = tables.load(Orders.orderkey, Orders.clerk)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Orders.orderkey)
+          val clerk = batch.strings(Orders.clerk)
+          batch.indices.iterator.map(i => (orderkey(i), clerk(i)))
         })
 
-
-      val query = ordersRDD.cogroup(lineitemRDD)
-        .flatMap {
-          case (orderkey, (o_clerk, l_dummy)) => {
-            if (o_clerk.isEmpty || l_dummy.isEmpty) List()
-            else l_dummy.map(dummy => (orderkey, o_clerk.head))
-          }
-        }
-        .sortByKey(numPartitions = 1)
-        .take(20)
+      // The lineitems of one day are the small side.
+      val joined =
+        if (tables.coPartitioned) Joins.mergeJoin(lineitem, orders)
+        else Joins.hashJoin(lineitem, orders, args.broadcastRows())
+      val clerks = joined
+        .map { case (orderkey, (l_dummy, o_clerk)) => (orderkey, o_clerk) }
+      val query = TopN.by(clerks, 20)(_._1)
 
       query.foreach { case (orderkey, clerk) =>
         println(s"($clerk,$orderkey)")
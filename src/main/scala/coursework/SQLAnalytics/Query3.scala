@@ -6,7 +6,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf3(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, date, text, parquet)
@@ -43,93 +43,37 @@ object Query3{
      * order by l_orderkey asc limit 20;
      */
 
-    if (args.text()){
-      val supplier = sc.broadcast(sc.textFile(args.input() + "/supplier.tbl")
-        .map(line => {
-          val row = line.split('|')
-          val suppkey = row(0)
-          val name = row(1)
-          (suppkey, name)
-        })
-        .collectAsMap()
-      )
-
-      val part = sc.broadcast(sc.textFile(args.input() + "/part.tbl")
-        .map (line => {
-          val row = line.split('|')
-          val partkey = row(0)
-          val name = row(1)
-          (partkey, name)
-        })
-        .collectAsMap()
-      )
-
-      val lineitem = sc.textFile(args.input() + "/lineitem.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val shipdate = row(10)
-          val l_partkey = row(1)
-          val l_suppkey = row(2)
-          if (shipdate.trim == date && supplier.value.contains(l_suppkey) && part.value.contains(l_partkey)) {
-            List((orderkey.toInt,
-                  part.value(l_partkey),
-                  supplier.value(l_suppkey)
-                ))
-          }
-          else List()
-        })
-
-      val query = lineitem
-        .sortBy(_._1)
-        .take(20)
-
-      query.foreach { case (orderkey, pname, sname) =>
-        println(s"($orderkey,$pname,$sname)")
-      }
-    }
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet())
+      val shipdate = Tpch.date(date)
 
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val partDF = sparkSession.read.parquet(args.input() + "/part")
-      val part = sc.broadcast(partDF.rdd
-        .map(row => {
-          val partkey = row(0)
-          val name = row(1)
-          (partkey, name)
+      val supplier = Joins.broadcastMap(tables.load(Supplier.suppkey, Supplier.sname)
+        .flatMap(batch => {
+          val suppkey = batch.ints(Supplier.suppkey)
+          val name = batch.strings(Supplier.sname)
+          batch.indices.iterator.map(i => (suppkey(i), name(i)))
         })
-        .collectAsMap()
       )
 
-      val supplierDF = sparkSession.read.parquet(args.input() + "/supplier")
-      val supplier = sc.broadcast(supplierDF.rdd
-        .map(row => {
-          val suppkey = row(0)
-          val name = row(1)
-          (suppkey, name)
+      val part = Joins.broadcastMap(tables.load(Part.partkey, Part.pname)
+        .flatMap(batch => {
+          val partkey = batch.ints(Part.partkey)
+          val name = batch.strings(Part.pname)
+          batch.indices.iterator.map(i => (partkey(i), name(i)))
         })
-        .collectAsMap()
       )
 
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val lineitemRDD = lineitemDF.rdd
-        .flatMap(row => {
-          val orderkey = row(0)
-          val shipdate = row(10)
-          val l_partkey = row(1)
-          val l_suppkey = row(2)
-          if (shipdate.toString.trim == date && supplier.value.contains(l_suppkey) && part.value.contains(l_partkey)) {
-            List((orderkey.toString.toInt,
-              part.value(l_partkey),
-              supplier.value(l_suppkey)
-            ))
-          }
-          else List()
+      val lineitem = tables.load(Seq(equalTo(Lineitem.shipdate, shipdate)), Lineitem.orderkey, Lineitem.partkey, Lineitem.suppkey)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Lineitem.orderkey)
+          val l_partkey = batch.ints(Lineitem.partkey)
+          val l_suppkey = batch.ints(Lineitem.suppkey)
+          batch.indices.iterator
+            .filter(i => supplier.value.contains(l_suppkey(i)) && part.value.contains(l_partkey(i)))
+            .map(i => (orderkey(i), part.value(l_partkey(i)), supplier.value(l_suppkey(i))))
         })
 
-      val query = lineitemRDD
-        .sortBy(_._1)
-        .take(20)
+      val query = TopN.by(lineitem, 20)(_._1)
 
       query.foreach { case (orderkey, pname, sname) =>
         println(s"($orderkey,$pname,$sname)")
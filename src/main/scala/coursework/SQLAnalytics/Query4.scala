@@ -6,7 +6,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf4(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, date, text, parquet)
@@ -14,6 +14,8 @@ class Conf4(args: Seq[String]) extends ScallopConf(args) {
   val date = opt[String](descr = "l_shipdate predicate", required = true)
   val text = opt[Boolean](descr = "work with plaintext data", required = false, default = Some(false))
   val parquet = opt[Boolean](descr = "work with Parquet data", required = false, default = Some(false))
+  val broadcastRows = opt[Int](descr = "largest join build side that is broadcast instead of shuffled", required = false, default = Some(Joins.DEFAULT_BROADCAST_ROWS))
+  val layout = opt[String](descr = "co-partitioned orders and lineitem written by LayoutTables", required = false)
 
   verify()
 }
@@ -28,6 +30,7 @@ object Query4{
     log.info("Date: " + args.date())
     if (args.text()) log.info("Works with the plaintext data")
     if (args.parquet()) log.info("Works with the Parquet data")
+    if (args.layout.isDefined) log.info("Layout: " + args.layout())
 
     val conf = new SparkConf().setAppName("SQL Query4")
     val sc = new SparkContext(conf)
@@ -45,133 +48,51 @@ object Query4{
      * order by n_nationkey asc;
      */
 
-    if (args.text()){
-      val nation = sc.broadcast(sc.textFile(args.input() + "/nation.tbl")
-        .map(line => {
-          val row = line.split('|')
-          val nationkey = row(0)
-          val name = row(1)
-          (nationkey.toInt, name)
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet(), args.layout.toOption)
+      val shipdate = Tpch.date(date)
+
+      val nation = Joins.broadcastMap(tables.load(Nation.nationkey, Nation.nname)
+        .flatMap(batch => {
+          val nationkey = batch.ints(Nation.nationkey)
+          val name = batch.strings(Nation.nname)
+          batch.indices.iterator.map(i => (nationkey(i), name(i)))
         })
-        .collectAsMap()
       )
-      val customer = sc.broadcast(sc.textFile(args.input() + "/customer.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val custkey = row(0)
-          val nationkey = row(3).toInt
-          if (nation.value.contains(nationkey))
-            List((custkey, (nationkey, nation.value(nationkey))))
-          else List()
+      val customer = Joins.broadcastMap(tables.load(Customer.custkey, Customer.nationkey)
+        .flatMap(batch => {
+          val custkey = batch.ints(Customer.custkey)
+          val nationkey = batch.ints(Customer.nationkey)
+          batch.indices.iterator
+            .filter(i => nation.value.contains(nationkey(i)))
+            .map(i => (custkey(i), (nationkey(i), nation.value(nationkey(i)))))
         })
-        .collectAsMap()
       )
 
-      val orders = sc.textFile(args.input() + "/orders.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val custkey = row(1)
-          if (customer.value.contains(custkey)) {
-            val nationkey = customer.value(custkey)._1
-            val nationname = customer.value(custkey)._2
-            List((orderkey.toInt, (nationkey, nationname)))
-          }
-          else List()
+      val orders = tables.load(Orders.orderkey, Orders.custkey)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Orders.orderkey)
+          val custkey = batch.ints(Orders.custkey)
+          batch.indices.iterator
+            .filter(i => customer.value.contains(custkey(i)))
+            .map(i => (orderkey(i), customer.value(custkey(i))))
         })
 
-
-      val lineitem = sc.textFile(args.input() + "/lineitem.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val shipdate = row(10)
-          if (shipdate.trim == date) List((orderkey.toInt, '*'))
-          else List()
+      val lineitem = tables.load(Seq(equalTo(Lineitem.shipdate, shipdate)), Lineitem.orderkey)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Lineitem.orderkey)
+          batch.indices.iterator.map(i => (orderkey(i), '*'))
         })
 
-      val query = orders.cogroup(lineitem)
-        .filter {
-          case (orderkey, (o_nation, l_dummy)) => o_nation.nonEmpty && l_dummy.nonEmpty
-        }
-        .map {
-          case (orderkey, (o_nation, l_dummy)) => {
-            val count = l_dummy.size
-            val nationkey = o_nation.head._1
-            val nationname = o_nation.head._2
-            ((nationkey, nationname), count)
-          }
-        }
+      // The lineitems of one day are the small side.
+      val joined =
+        if (tables.coPartitioned) Joins.mergeJoin(lineitem, orders)
+        else Joins.hashJoin(lineitem, orders, args.broadcastRows())
+      val query = joined
+        .map { case (orderkey, (l_dummy, o_nation)) => (o_nation, 1) }
         .reduceByKey(_+_)
-        .sortByKey(numPartitions = 1)
-        .collect()
-
-      query.foreach { case ((nationkey, nationname), count) =>
-        println(s"($nationkey,$nationname,$count)")
-      }
-    }
-
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val nationDF = sparkSession.read.parquet(args.input() + "/nation")
-      val nation = sc.broadcast(nationDF.rdd
-        .map(row => {
-          val nationkey = row(0)
-          val name = row(1)
-          (nationkey.toString.toInt, name)
-        })
-        .collectAsMap()
-      )
-
-      val customerDF = sparkSession.read.parquet(args.input() + "/customer")
-      val customer = sc.broadcast(customerDF.rdd
-        .flatMap(row => {
-          val custkey = row(0)
-          val nationkey = row(3).toString.toInt
-          if (nation.value.contains(nationkey))
-            List((custkey, (nationkey, nation.value(nationkey))))
-          else List()
-        })
-        .collectAsMap()
-      )
-
-      val ordersDF = sparkSession.read.parquet(args.input() + "/orders")
-      val ordersRDD = ordersDF.rdd
-        .flatMap(row => {
-          val orderkey = row(0)
-          val custkey = row(1)
-          if (customer.value.contains(custkey)) {
-            val nationkey = customer.value(custkey)._1
-            val nationname = customer.value(custkey)._2
-            List((orderkey.toString.toInt, (nationkey, nationname)))
-          }
-          else List()
-        })
-
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val lineitemRDD = lineitemDF.rdd
-        .flatMap(row => {
-        val orderkey = row(0)
-        val shipdate = row(10)
-        if (shipdate.toString.trim == date) List((orderkey.toString.toInt, '*'))
-        else List()
-      })
-
-      val query = ordersRDD.cogroup(lineitemRDD)
-        .filter {
-          case (orderkey, (o_nation, l_dummy)) => o_nation.nonEmpty && l_dummy.nonEmpty
-        }
-        .map {
-          case (orderkey, (o_nation, l_dummy)) => {
-            val count = l_dummy.size
-            val nationkey = o_nation.head._1
-            val nationname = o_nation.head._2
-            ((nationkey, nationname), count)
-          }
-        }
-        .reduceByKey(_ + _)
-        .sortBy(_._1._1, numPartitions = 1)
         .collect()
+        .sortBy(_._1)
 
       query.foreach { case ((nationkey, nationname), count) =>
         println(s"($nationkey,$nationname,$count)")
@@ -6,13 +6,15 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf5(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, text, parquet)
   val input = opt[String](descr = "input path of data", required = true)
   val text = opt[Boolean](descr = "work with plaintext data", required = false, default = Some(false))
   val parquet = opt[Boolean](descr = "work with Parquet data", required = false, default = Some(false))
+  val broadcastRows = opt[Int](descr = "largest join build side that is broadcast instead of shuffled", required = false, default = Some(Joins.DEFAULT_BROADCAST_ROWS))
+  val layout = opt[String](descr = "co-partitioned orders and lineitem written by LayoutTables", required = false)
 
   verify()
 }
@@ -26,6 +28,7 @@ object Query5{
     log.info("Input: " + args.input())
     if (args.text()) log.info("Works with the plaintext data")
     if (args.parquet()) log.info("Works with the Parquet data")
+    if (args.layout.isDefined) log.info("Layout: " + args.layout())
 
     val conf = new SparkConf().setAppName("SQL Query5")
     val sc = new SparkContext(conf)
@@ -42,134 +45,64 @@ object Query5{
      * order by n_nationkey, year-month asc;
      */
 
-    if (args.text()){
-      val nation = sc.broadcast(sc.textFile(args.input() + "/nation.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val nationkey = row(0)
-          val name = row(1).trim.toUpperCase()
-          if (name.equals("CANADA") || name.equals("UNITED STATES"))
-            List((nationkey.toInt, name))
-          else List()
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet(), args.layout.toOption)
+
+      // Names are matched after trimming and upper-casing, which a pushed-down predicate cannot do;
+      // nation has 25 rows, so nothing is lost by filtering it here.
+      val nation = Joins.broadcastMap(tables.load(Nation.nationkey, Nation.nname)
+        .flatMap(batch => {
+          val nationkey = batch.ints(Nation.nationkey)
+          val name = batch.strings(Nation.nname)
+          batch.indices.iterator
+            .map(i => (nationkey(i), name(i).trim.toUpperCase()))
+            .filter { case (_, name) => name.equals("CANADA") || name.equals("UNITED STATES") }
         })
-        .collectAsMap()
       )
 
-      val customer = sc.broadcast(sc.textFile(args.input() + "/customer.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val custkey = row(0)
-          val nationkey = row(3).toInt
-          if (nation.value.contains(nationkey))
-            List((custkey, (nationkey, nation.value(nationkey))))
-          else List()
+      val customer = Joins.broadcastMap(tables.load(Customer.custkey, Customer.nationkey)
+        .flatMap(batch => {
+          val custkey = batch.ints(Customer.custkey)
+          val nationkey = batch.ints(Customer.nationkey)
+          batch.indices.iterator
+            .filter(i => nation.value.contains(nationkey(i)))
+            .map(i => (custkey(i), (nationkey(i), nation.value(nationkey(i)))))
         })
-        .collectAsMap()
       )
 
-      val orders = sc.textFile(args.input() + "/orders.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val custkey = row(1)
-          if (customer.value.contains(custkey)) {
-            val nationkey = customer.value(custkey)._1
-            val nationname = customer.value(custkey)._2
-            List((orderkey.toInt, (nationkey, nationname)))
-          }
-          else List()
+      val orders = tables.load(Orders.orderkey, Orders.custkey)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Orders.orderkey)
+          val custkey = batch.ints(Orders.custkey)
+          batch.indices.iterator
+            .filter(i => customer.value.contains(custkey(i)))
+            .map(i => (orderkey(i), customer.value(custkey(i))))
         })
-
-
-      val lineitem = sc.textFile(args.input() + "/lineitem.tbl")
-        .map(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val shipdate = row(10).substring(0, 7)
-          (orderkey.toInt, shipdate)
+        .cache()
+
+      // Only the lineitems of surviving orders are kept by the scan.
+      val semiJoin = Joins.semiJoin(orders.keys, "o_orderkey")
+      val lineitem = tables.load(Lineitem.orderkey, Lineitem.shipdate)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Lineitem.orderkey)
+          val shipdate = batch.ints(Lineitem.shipdate)
+          semiJoin.matching(orderkey, batch.size).map(i => (orderkey(i), shipdate(i) / 100))
         })
 
-      val query = orders.cogroup(lineitem)
-        .filter {
-          case (orderkey, (o_nation, l_shipdate)) => o_nation.nonEmpty && l_shipdate.nonEmpty
-        }
-        .flatMap {
-          case (orderkey, (o_nation, l_shipdate)) => {
-            val nationkey = o_nation.head._1
-            val nationname = o_nation.head._2
-            l_shipdate.map(shipdate => ((nationkey, nationname, shipdate), 1))
-          }
-        }
+      // Orders of the two nations are the small side; months stay yyyymm ints until the output.
+      val joined =
+        if (tables.coPartitioned) Joins.mergeJoin(orders, lineitem)
+        else Joins.hashJoin(orders, lineitem, args.broadcastRows(), prefiltered = true)
+      val query = joined
+        .map { case (orderkey, ((nationkey, nationname), yearmonth)) => ((nationkey, nationname, yearmonth), 1) }
         .reduceByKey(_+_)
-        .sortByKey(numPartitions = 1)
         .collect()
-
-      query.foreach { case ((nationkey, nationname, shipdate), count) =>
-        println(s"($nationkey,$nationname,$shipdate,$count)")
-      }
-    }
-
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val nationDF = sparkSession.read.parquet(args.input() + "/nation")
-      val nation = sc.broadcast(nationDF.rdd
-        .flatMap(row => {
-          val nationkey = row(0)
-          val name = row(1).toString.trim.toUpperCase()
-          if (name.equals("CANADA") || name.equals("UNITED STATES"))
-            List((nationkey.toString.toInt, name))
-          else List()
-        })
-        .collectAsMap()
-      )
-
-      val customerDF = sparkSession.read.parquet(args.input() + "/customer")
-      val customer = sc.broadcast(customerDF.rdd
-        .flatMap(row => {
-          val custkey = row(0)
-          val nationkey = row(3).toString.toInt
-          if (nation.value.contains(nationkey))
-            List((custkey, (nationkey, nation.value(nationkey))))
-          else List()
-        })
-        .collectAsMap()
-      )
-
-      val ordersDF = sparkSession.read.parquet(args.input() + "/orders")
-      val ordersRDD = ordersDF.rdd
-        .flatMap(row => {
-          val orderkey = row(0)
-          val custkey = row(1)
-          if (customer.value.contains(custkey)) {
-            val nationkey = customer.value(custkey)._1
-            val nationname = customer.value(custkey)._2
-            List((orderkey.toString.toInt, (nationkey, nationname)))
-          }
-          else List()
-        })
-
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val lineitemRDD = lineitemDF.rdd
-        .map(row => {
-          val orderkey = row(0)
-          val shipdate = row(10).toString.substring(0, 7)
-          (orderkey.toString.toInt, shipdate)
-        })
-
-      val query = ordersRDD.cogroup(lineitemRDD)
-        .filter {
-          case (orderkey, (o_nation, l_shipdate)) => o_nation.nonEmpty && l_shipdate.nonEmpty
+        .sortBy(_._1)
+        .map { case ((nationkey, nationname, yearmonth), count) =>
+          ((nationkey, nationname, Tpch.yearMonth(yearmonth * 100)), count)
         }
-        .flatMap {
-          case (orderkey, (o_nation, l_shipdate)) => {
-            val nationkey = o_nation.head._1
-            val nationname = o_nation.head._2
-            l_shipdate.map(shipdate => ((nationkey, nationname, shipdate), 1))
-          }
-        }
-        .reduceByKey(_ + _)
-        .sortByKey(numPartitions = 1)
-        .collect()
+      semiJoin.log()
+      orders.unpersist(blocking = false)
 
       query.foreach { case ((nationkey, nationname, shipdate), count) =>
         println(s"($nationkey,$nationname,$shipdate,$count)")
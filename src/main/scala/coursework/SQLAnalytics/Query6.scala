@@ -6,7 +6,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf6(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, date, text, parquet)
@@ -52,84 +52,28 @@ object Query6{
      * group by l_returnflag, l_linestatus;
      */
 
-    if (args.text()){
-      val query = sc.textFile(args.input() + "/lineitem.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val shipdate = row(10)
-          if (shipdate.trim == date) {
-            val returnflag = row(8)
-            val linestatus = row(9)
-            val quantity = row(4).toDouble
-            val extendedprice = row(5).toDouble
-            val discount = row(6).toDouble
-            val tax = row(7).toDouble
-            val disc_price = extendedprice * (1 - discount)
-            val charge = extendedprice * (1 - discount) * (1 + tax)
-            List(((returnflag, linestatus), (quantity, extendedprice, disc_price, charge, discount, 1)))
-          }
-          else List()
-        })
-        .reduceByKey((v1, v2) => {
-          (v1._1 + v2._1, v1._2 + v2._2, v1._3 + v2._3, v1._4 + v2._4, v1._5 + v2._5, v1._6 + v2._6)
-        })
-        .map (pair => {
-          val key = pair._1
-          val value = pair._2
-          val returnflag = key._1
-          val linestatus = key._2
-          val count = value._6
-          val sum_qty = value._1
-          val sum_base_price = value._2
-          val sum_disc_price = value._3
-          val sum_charge = value._4
-          val avg_qty = sum_qty / count
-          val avg_price = sum_base_price / count
-          val avg_disc = value._5 / count
-          (returnflag, linestatus, sum_qty, sum_base_price, sum_disc_price, sum_charge, avg_qty, avg_price, avg_disc, count)
-        })
-        .collect()
-        .foreach(println)
-    }
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet())
+      val shipdate = Tpch.date(date)
 
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val query = lineitemDF.rdd
-        .flatMap(row => {
-          val shipdate = row(10)
-          if (shipdate.toString.trim == date){
-            val returnflag = row(8)
-            val linestatus = row(9)
-            val quantity = row(4).toString.toDouble
-            val extendedprice = row(5).toString.toDouble
-            val discount = row(6).toString.toDouble
-            val tax = row(7).toString.toDouble
-            val disc_price = extendedprice * (1 - discount)
-            val charge = extendedprice * (1 - discount) * (1 + tax)
-            List(((returnflag, linestatus), (quantity, extendedprice, disc_price, charge, discount, 1)))
+      val query = tables.load(Seq(equalTo(Lineitem.shipdate, shipdate)), Lineitem.quantity, Lineitem.extendedprice,
+          Lineitem.discount, Lineitem.tax, Lineitem.returnflag, Lineitem.linestatus)
+        // Each partition sums into one PricingSummary; the driver merges them, with no shuffle.
+        .aggregate(new PricingSummary)((summary, batch) => {
+          val returnflag = batch.strings(Lineitem.returnflag)
+          val linestatus = batch.strings(Lineitem.linestatus)
+          val quantity = batch.doubles(Lineitem.quantity)
+          val extendedprice = batch.doubles(Lineitem.extendedprice)
+          val discount = batch.doubles(Lineitem.discount)
+          val tax = batch.doubles(Lineitem.tax)
+          var i = 0
+          while (i < batch.size) {
+            summary.add(returnflag(i), linestatus(i), quantity(i), extendedprice(i), discount(i), tax(i))
+            i += 1
           }
-          else List()
-        })
-        .reduceByKey((v1, v2) => {
-          (v1._1 + v2._1, v1._2 + v2._2, v1._3 + v2._3, v1._4 + v2._4, v1._5 + v2._5, v1._6 + v2._6)
-        })
-        .map(pair => {
-          val key = pair._1
-          val value = pair._2
-          val returnflag = key._1
-          val linestatus = key._2
-          val count = value._6
-          val sum_qty = value._1
-          val sum_base_price = value._2
-          val sum_disc_price = value._3
-          val sum_charge = value._4
-          val avg_qty = sum_qty / count
-          val avg_price = sum_base_price / count
-          val avg_disc = value._5 / count
-          (returnflag, linestatus, sum_qty, sum_base_price, sum_disc_price, sum_charge, avg_qty, avg_price, avg_disc, count)
-        })
-        .collect()
+          summary
+        }, _ merge _)
+        .rows
         .foreach(println)
     }
   }
@@ -6,7 +6,7 @@ import org.apache.spark.SparkContext
 import org.apache.spark.SparkConf
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
-import org.apache.spark.sql.SparkSession
+import coursework.SQLAnalytics.Tpch._
 
 class Conf7(args: Seq[String]) extends ScallopConf(args) {
   mainOptions = Seq(input, date, text, parquet)
@@ -14,6 +14,8 @@ class Conf7(args: Seq[String]) extends ScallopConf(args) {
   val date = opt[String](descr = "l_shipdate predicate", required = true)
   val text = opt[Boolean](descr = "work with plaintext data", required = false, default = Some(false))
   val parquet = opt[Boolean](descr = "work with Parquet data", required = false, default = Some(false))
+  val broadcastRows = opt[Int](descr = "largest join build side that is broadcast instead of shuffled", required = false, default = Some(Joins.DEFAULT_BROADCAST_ROWS))
+  val layout = opt[String](descr = "co-partitioned orders and lineitem written by LayoutTables", required = false)
 
   verify()
 }
@@ -28,6 +30,7 @@ object Query7{
     log.info("Date: " + args.date())
     if (args.text()) log.info("Works with the plaintext data")
     if (args.parquet()) log.info("Works with the Parquet data")
+    if (args.layout.isDefined) log.info("Layout: " + args.layout())
 
     val conf = new SparkConf().setAppName("SQL Query7")
     val sc = new SparkContext(conf)
@@ -57,129 +60,59 @@ object Query7{
      * limit 5;
      */
 
-    if (args.text()){
-      val customer = sc.broadcast(sc.textFile(args.input() + "/customer.tbl")
-        .map(line => {
-          val row = line.split('|')
-          val custkey = row(0)
-          val c_name = row(1)
-          (custkey, c_name)
-        })
-        .collectAsMap()
-      )
+    if (args.text() || args.parquet()){
+      val tables = new TpchLoader(sc, args.input(), args.parquet(), args.layout.toOption)
+      val cutoff = Tpch.date(date)
 
-      val orders = sc.textFile(args.input() + "/orders.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val orderkey = row(0)
-          val custkey = row(1)
-          val orderdate = row(4)
-          val shippriority = row(7)
-          if (orderdate.trim < date && customer.value.contains(custkey)) {
-            val c_name = customer.value(custkey)
-            List((orderkey, (c_name, orderdate, shippriority)))
-          }
-          else List()
+      val customer = Joins.broadcastMap(tables.load(Customer.custkey, Customer.cname)
+        .flatMap(batch => {
+          val custkey = batch.ints(Customer.custkey)
+          val c_name = batch.strings(Customer.cname)
+          batch.indices.iterator.map(i => (custkey(i), c_name(i)))
         })
-
-      val lineitem = sc.textFile(args.input() + "/lineitem.tbl")
-        .flatMap(line => {
-          val row = line.split('|')
-          val shipdate = row(10)
-          if (shipdate.trim > date){
-            val orderkey = row(0)
-            val extendedprice = row(5).toDouble
-            val discount = row(6).toDouble
-            val revenue = extendedprice*(1-discount)
-            List((orderkey, revenue))
-          }
-          else List()
-        })
-
-      val query = orders.cogroup(lineitem)
-        .filter {
-          case (orderkey, (o_value, l_revenue)) => o_value.nonEmpty && l_revenue.nonEmpty
-        }
-        .flatMap {
-          case (orderkey, (o_value, l_revenue)) => {
-            val c_name = o_value.head._1
-            val orderdate = o_value.head._2
-            val shippriority = o_value.head._3
-            l_revenue.map(revenue => ((c_name, orderkey, orderdate, shippriority), revenue))
-          }
-        }
-        .reduceByKey(_+_)
-        .sortBy(_._2, ascending = false)
-        .take(5)
-        .map(pair => {
-          val key = pair._1
-          val revenue = pair._2
-          (key._1, key._2, revenue, key._3, key._4)
-        })
-        .foreach(println)
-    }
-
-    if (args.parquet()){
-      val sparkSession = SparkSession.builder.getOrCreate
-      val customerDF = sparkSession.read.parquet(args.input() + "/customer")
-      val customer = sc.broadcast(customerDF.rdd
-        .map(row => {
-          val custkey = row(0)
-          val c_name = row(1)
-          (custkey, c_name)
-        })
-        .collectAsMap()
       )
 
-      val ordersDF = sparkSession.read.parquet(args.input() + "/orders")
-      val ordersRDD = ordersDF.rdd
-        .flatMap(row => {
-          val orderkey = row(0)
-          val custkey = row(1)
-          val orderdate = row(4)
-          val shippriority = row(7)
-          if (orderdate.toString.trim < date && customer.value.contains(custkey)) {
-            val c_name = customer.value(custkey)
-            List((orderkey, (c_name, orderdate, shippriority)))
-          }
-          else List()
+      val orders = tables.load(Seq(lessThan(Orders.orderdate, cutoff)),
+          Orders.orderkey, Orders.custkey, Orders.orderdate, Orders.shippriority)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Orders.orderkey)
+          val custkey = batch.ints(Orders.custkey)
+          val orderdate = batch.ints(Orders.orderdate)
+          val shippriority = batch.ints(Orders.shippriority)
+          batch.indices.iterator
+            .filter(i => customer.value.contains(custkey(i)))
+            .map(i => (orderkey(i), (customer.value(custkey(i)), orderdate(i), shippriority(i))))
         })
-
-      val lineitemDF = sparkSession.read.parquet(args.input() + "/lineitem")
-      val lineitemRDD = lineitemDF.rdd
-        .flatMap(row => {
-          val shipdate = row(10)
-          if (shipdate.toString.trim > date) {
-            val orderkey = row(0)
-            val extendedprice = row(5).toString.toDouble
-            val discount = row(6).toString.toDouble
-            val revenue = extendedprice * (1 - discount)
-            List((orderkey, revenue))
-          }
-          else List()
+        .cache()
+
+      // Only the lineitems of surviving orders are kept by the scan.
+      val semiJoin = Joins.semiJoin(orders.keys, "o_orderkey")
+      val lineitem = tables.load(Seq(greaterThan(Lineitem.shipdate, cutoff)), Lineitem.orderkey, Lineitem.extendedprice, Lineitem.discount)
+        .flatMap(batch => {
+          val orderkey = batch.ints(Lineitem.orderkey)
+          val extendedprice = batch.doubles(Lineitem.extendedprice)
+          val discount = batch.doubles(Lineitem.discount)
+          semiJoin.matching(orderkey, batch.size).map(i => (orderkey(i), extendedprice(i) * (1 - discount(i))))
         })
 
-      val query = ordersRDD.cogroup(lineitemRDD)
-        .filter {
-          case (orderkey, (o_value, l_revenue)) => o_value.nonEmpty && l_revenue.nonEmpty
+      val joined =
+        if (tables.coPartitioned) Joins.mergeJoin(orders, lineitem)
+        else Joins.hashJoin(orders, lineitem, args.broadcastRows(), prefiltered = true)
+      val revenues = joined
+        .map { case (orderkey, ((c_name, orderdate, shippriority), revenue)) =>
+          ((c_name, orderkey, orderdate, shippriority), revenue)
         }
-        .flatMap {
-          case (orderkey, (o_value, l_revenue)) => {
-            val c_name = o_value.head._1
-            val orderdate = o_value.head._2
-            val shippriority = o_value.head._3
-            l_revenue.map(revenue => ((c_name, orderkey, orderdate, shippriority), revenue))
-          }
-        }
-        .reduceByKey(_ + _)
-        .sortBy(_._2, ascending = false)
-        .take(5)
+        .reduceByKey(_+_)
+      // Highest revenue first.
+      TopN.by(revenues, 5)(-_._2)
         .map(pair => {
           val key = pair._1
           val revenue = pair._2
-          (key._1, key._2, revenue, key._3, key._4)
+          (key._1, key._2, revenue, Tpch.formatDate(key._3), key._4)
         })
         .foreach(println)
+      semiJoin.log()
+      orders.unpersist(blocking = false)
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,49 @@
+package coursework.SQLAnalytics
+
+import org.apache.spark.rdd.RDD
+
+import scala.reflect.ClassTag
+
+/**
+  * The `n` smallest values by `ord` seen so far, in a bounded max-heap: `order by ... limit n`
+  * without a global sort. Each partition fills one and the driver merges them.
+  */
+final class TopN[T](n: Int)(implicit ord: Ordering[T]) extends Serializable {
+  // The largest kept value on top, so it is the one evicted.
+  private val heap = new java.util.PriorityQueue[T](math.max(n, 1), ord.reverse)
+
+  /** Whether `value` would be kept; check it before building an expensive value. */
+  def accepts(value: T): Boolean = n > 0 && (heap.size < n || ord.lt(value, heap.peek))
+
+  def add(value: T): TopN[T] = {
+    if (heap.size < n) {
+      heap.add(value)
+    } else if (accepts(value)) {
+      heap.poll()
+      heap.add(value)
+    }
+    this
+  }
+
+  /** Adds the values of `other` to this heap and returns it. */
+  def merge(other: TopN[T]): TopN[T] = {
+    val values = other.heap.iterator()
+    while (values.hasNext) add(values.next())
+    this
+  }
+
+  /** The kept values, smallest first. */
+  def result(implicit tag: ClassTag[T]): Array[T] = {
+    heap.toArray.map(_.asInstanceOf[T]).sorted(ord)
+  }
+}
+
+object TopN {
+  /** The `n` smallest elements of `rdd` by `ord`, smallest first. */
+  def apply[T: ClassTag](rdd: RDD[T], n: Int)(implicit ord: Ordering[T]): Array[T] =
+    rdd.aggregate(new TopN[T](n))(_ add _, _ merge _).result
+
+  /** The `n` elements of `rdd` with the smallest `key`, smallest first. */
+  def by[T: ClassTag, K: Ordering](rdd: RDD[T], n: Int)(key: T => K): Array[T] =
+    apply(rdd, n)(implicitly[ClassTag[T]], Ordering.by(key))
+}
@@ -0,0 +1,203 @@
+package coursework.SQLAnalytics
+
+/**
+  * The TPC-H columns the queries read, by position in the `*.tbl` lines and in the Parquet files.
+  * Dates are stored as yyyymmdd ints, so that predicates compare ints instead of strings.
+  */
+object Tpch {
+  val INT = 0
+  val DOUBLE = 1
+  val STRING = 2
+  val DATE = 3
+
+  final case class Column(table: String, index: Int, kind: Int)
+
+  val EQ = 0
+  val LT = 1
+  val GT = 2
+  val IN = 3
+
+  /**
+    * A filter on one column, applied by the loader while it scans: pushed down to Parquet, checked
+    * right after parsing for text. Values are ints for INT and DATE (yyyymmdd) columns.
+    */
+  final case class Predicate(column: Column, op: Int, values: Seq[Any]) {
+    def test(columns: Array[AnyRef], row: Int): Boolean = op match {
+      case EQ => compare(columns, row, values.head) == 0
+      case LT => compare(columns, row, values.head) < 0
+      case GT => compare(columns, row, values.head) > 0
+      case IN => values.exists(value => compare(columns, row, value) == 0)
+    }
+
+    private def compare(columns: Array[AnyRef], row: Int, value: Any): Int = column.kind match {
+      case INT | DATE => Integer.compare(columns(column.index).asInstanceOf[Array[Int]](row), value.asInstanceOf[Int])
+      case DOUBLE => java.lang.Double.compare(columns(column.index).asInstanceOf[Array[Double]](row), value.asInstanceOf[Double])
+      case STRING => columns(column.index).asInstanceOf[Array[String]](row).compareTo(value.asInstanceOf[String])
+    }
+  }
+
+  def equalTo(column: Column, value: Any): Predicate = Predicate(column, EQ, Seq(value))
+
+  def lessThan(column: Column, value: Any): Predicate = Predicate(column, LT, Seq(value))
+
+  def greaterThan(column: Column, value: Any): Predicate = Predicate(column, GT, Seq(value))
+
+  def isIn(column: Column, values: Any*): Predicate = Predicate(column, IN, values)
+
+  object Lineitem {
+    val name = "lineitem"
+    val orderkey = Column(name, 0, INT)
+    val partkey = Column(name, 1, INT)
+    val suppkey = Column(name, 2, INT)
+    val quantity = Column(name, 4, DOUBLE)
+    val extendedprice = Column(name, 5, DOUBLE)
+    val discount = Column(name, 6, DOUBLE)
+    val tax = Column(name, 7, DOUBLE)
+    val returnflag = Column(name, 8, STRING)
+    val linestatus = Column(name, 9, STRING)
+    val shipdate = Column(name, 10, DATE)
+  }
+
+  object Orders {
+    val name = "orders"
+    val orderkey = Column(name, 0, INT)
+    val custkey = Column(name, 1, INT)
+    val orderdate = Column(name, 4, DATE)
+    val clerk = Column(name, 6, STRING)
+    val shippriority = Column(name, 7, INT)
+  }
+
+  object Customer {
+    val name = "customer"
+    val custkey = Column(name, 0, INT)
+    val cname = Column(name, 1, STRING)
+    val nationkey = Column(name, 3, INT)
+  }
+
+  object Nation {
+    val name = "nation"
+    val nationkey = Column(name, 0, INT)
+    val nname = Column(name, 1, STRING)
+  }
+
+  object Part {
+    val name = "part"
+    val partkey = Column(name, 0, INT)
+    val pname = Column(name, 1, STRING)
+  }
+
+  object Supplier {
+    val name = "supplier"
+    val suppkey = Column(name, 0, INT)
+    val sname = Column(name, 1, STRING)
+  }
+
+  /** "YYYY-MM-DD" as yyyymmdd. */
+  def date(s: String): Int = parseDate(s, 0, s.length)
+
+  /** Days since 1970-01-01, as Spark stores a DateType, as yyyymmdd. */
+  def epochDayToDate(days: Int): Int = {
+    val date = java.time.LocalDate.ofEpochDay(days)
+    date.getYear * 10000 + date.getMonthValue * 100 + date.getDayOfMonth
+  }
+
+  def formatDate(date: Int): String = format(date, 10)
+
+  /** "YYYY-MM" of a yyyymmdd date. */
+  def yearMonth(date: Int): String = format(date, 7)
+
+  private def format(date: Int, length: Int): String = {
+    val chars = Array('0', '0', '0', '0', '-', '0', '0', '-', '0', '0')
+    var digits = date
+    for (i <- Array(9, 8, 6, 5, 3, 2, 1, 0)) {
+      chars(i) = ('0' + digits % 10).toChar
+      digits /= 10
+    }
+    new String(chars, 0, length)
+  }
+
+  private def skipSpaces(s: String, start: Int, end: Int): Int = {
+    var i = start
+    while (i < end && s.charAt(i) == ' ') i += 1
+    i
+  }
+
+  private def digits(s: String, start: Int, end: Int): Int = {
+    var value = 0
+    var i = start
+    while (i < end) {
+      value = value * 10 + (s.charAt(i) - '0')
+      i += 1
+    }
+    value
+  }
+
+  def parseDate(s: String, start: Int, end: Int): Int = {
+    val i = skipSpaces(s, start, end)
+    if (end - i < 10 || s.charAt(i + 4) != '-' || s.charAt(i + 7) != '-') {
+      throw new NumberFormatException("not a date: " + s.substring(start, end))
+    }
+    digits(s, i, i + 4) * 10000 + digits(s, i + 5, i + 7) * 100 + digits(s, i + 8, i + 10)
+  }
+
+  def parseInt(s: String, start: Int, end: Int): Int = {
+    var i = skipSpaces(s, start, end)
+    val negative = i < end && s.charAt(i) == '-'
+    if (negative) i += 1
+    var value = 0
+    while (i < end && s.charAt(i) != ' ') {
+      val c = s.charAt(i)
+      if (c < '0' || c > '9') throw new NumberFormatException("not an int: " + s.substring(start, end))
+      value = value * 10 + (c - '0')
+      i += 1
+    }
+    if (negative) -value else value
+  }
+
+  private val POWERS_OF_TEN = Array.iterate(1.0, 23)(_ * 10)
+
+  /**
+    * Decimals such as "1234.56" as digits / 10^scale, which is exact and correctly rounded while the
+    * digits fit in 53 bits, the same double String.toDouble gives. Anything else goes through toDouble.
+    */
+  def parseDouble(s: String, start: Int, end: Int): Double = {
+    var i = skipSpaces(s, start, end)
+    val negative = i < end && s.charAt(i) == '-'
+    if (negative) i += 1
+    var mantissa = 0L
+    var scale = -1
+    var simple = true
+    while (simple && i < end && s.charAt(i) != ' ') {
+      val c = s.charAt(i)
+      if (c >= '0' && c <= '9' && mantissa < (1L << 53) / 10) {
+        mantissa = mantissa * 10 + (c - '0')
+        if (scale >= 0) scale += 1
+      } else if (c == '.' && scale < 0) {
+        scale = 0
+      } else {
+        simple = false
+      }
+      i += 1
+    }
+    if (!simple || scale >= POWERS_OF_TEN.length) {
+      s.substring(start, end).trim.toDouble
+    } else {
+      val value = if (scale > 0) mantissa / POWERS_OF_TEN(scale) else mantissa.toDouble
+      if (negative) -value else value
+    }
+  }
+}
+
+/**
+  * Up to a few thousand rows of a table, one primitive array per projected column (indexed by column
+  * position, null for the columns that were not loaded).
+  */
+final class ColumnBatch(val size: Int, columns: Array[AnyRef]) extends Serializable {
+  def ints(column: Tpch.Column): Array[Int] = columns(column.index).asInstanceOf[Array[Int]]
+
+  def doubles(column: Tpch.Column): Array[Double] = columns(column.index).asInstanceOf[Array[Double]]
+
+  def strings(column: Tpch.Column): Array[String] = columns(column.index).asInstanceOf[Array[String]]
+
+  def indices: Range = 0 until size
+}
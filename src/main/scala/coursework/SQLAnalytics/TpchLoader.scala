@@ -0,0 +1,225 @@
+package coursework.SQLAnalytics
+
+import coursework.SQLAnalytics.Tpch._
+import org.apache.hadoop.fs.{FileSystem, Path}
+import org.apache.hadoop.io.{LongWritable, Text}
+import org.apache.hadoop.mapred.TextInputFormat
+import org.apache.log4j._
+import org.apache.spark.SparkContext
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.types._
+import org.apache.spark.sql.{SparkSession, functions}
+
+/**
+  * Loads TPC-H tables as typed column batches, from `<input>/<table>.tbl` text or `<input>/<table>`
+  * Parquet, so that the queries have one code path for --text and --parquet. Only the requested
+  * columns are parsed (text) or read (Parquet), and only the rows that pass the predicates are kept.
+  * Nothing is cached: each query reads each table once, so a query that needs a table twice caches
+  * it itself and unpersists it when done.
+  *
+  * Parquet is read through the vectorized reader with the columns pruned and the predicates pushed
+  * down, and the batches are filled from its internal rows: no `Row` is built per record.
+  *
+  * Given the `layout` written by LayoutTables, `orders` and `lineitem` are read from it instead, one
+  * partition per bucket, so that partition i of both holds bucket i sorted by orderkey.
+  */
+class TpchLoader(sc: SparkContext, input: String, parquet: Boolean, layout: Option[String] = None) {
+  val log = Logger.getLogger(getClass().getName())
+
+  private val buckets: Int = layout.map(path => {
+    val fs = FileSystem.get(sc.hadoopConfiguration)
+    val in = fs.open(new Path(path, LayoutTables.BUCKETS_FILE))
+    try scala.io.Source.fromInputStream(in).mkString.trim.toInt finally in.close()
+  }).getOrElse(0)
+
+  /**
+    * Whether `orders` and `lineitem` come from the co-partitioned layout, so that they can be joined
+    * partition by partition with Joins.mergeJoin.
+    */
+  def coPartitioned: Boolean = layout.isDefined
+
+  def load(columns: Column*): RDD[ColumnBatch] = load(Nil, columns: _*)
+
+  /** The rows of `columns` that pass all of `predicates`. */
+  def load(predicates: Seq[Predicate], columns: Column*): RDD[ColumnBatch] = {
+    val all = columns ++ predicates.map(_.column)
+    val table = all.head.table
+    require(all.forall(_.table == table), "columns of more than one table: " + all.mkString(", "))
+    val projection = all.distinct.sortBy(_.index).toArray
+    log.info("Loading " + table + " columns " + projection.map(_.index).mkString(",") +
+      (if (predicates.isEmpty) "" else " where " + predicates.mkString(" and ")))
+    if (layout.isDefined && LayoutTables.TABLES.contains(table)) bucketBatches(table, projection, predicates.toArray)
+    else if (parquet) parquetBatches(table, projection, predicates.toArray)
+    else textBatches(table, projection, predicates.toArray)
+  }
+
+  private def textBatches(table: String, projection: Array[Column], predicates: Array[Predicate]): RDD[ColumnBatch] =
+    sc.textFile(input + "/" + table + ".tbl").mapPartitions(lines => {
+      val builder = new ColumnBatchBuilder(projection, predicates)
+      builder.batches(lines, (line: String, row: Int) => builder.parse(line, row))
+    })
+
+  private def bucketBatches(table: String, projection: Array[Column], predicates: Array[Predicate]): RDD[ColumnBatch] = {
+    val fs = FileSystem.get(sc.hadoopConfiguration)
+    val files = fs.globStatus(new Path(layout.get + "/" + table + "/part-*")).map(_.getPath.toString).sorted
+    require(files.length == buckets, table + " has " + files.length + " bucket files, expected " + buckets)
+    // Listed in bucket order and never split, so partition i is bucket i.
+    sc.hadoopFile(files.mkString(","), classOf[BucketInputFormat], classOf[LongWritable], classOf[Text])
+      .mapPartitions(records => {
+        val builder = new ColumnBatchBuilder(projection, predicates)
+        builder.batches(records.map(_._2.toString), (line: String, row: Int) => builder.parse(line, row))
+      })
+  }
+
+  private def parquetBatches(table: String, projection: Array[Column], predicates: Array[Predicate]): RDD[ColumnBatch] = {
+    var frame = SparkSession.builder.getOrCreate.read.parquet(input + "/" + table)
+    val fields = frame.schema.fields
+    for (predicate <- predicates) {
+      frame = frame.where(condition(predicate, fields(predicate.column.index)))
+    }
+    val names = projection.map(column => fields(column.index).name)
+    val selected = frame.select(names.head, names.tail: _*)
+    val types = projection.map(column => fields(column.index).dataType)
+    // The rows are already filtered by Parquet and Spark, so the builder checks no predicates.
+    selected.queryExecution.toRdd.mapPartitions(rows => {
+      val builder = new ColumnBatchBuilder(projection, Array.empty, types)
+      builder.batches(rows, (row: InternalRow, i: Int) => builder.set(row, i))
+    })
+  }
+
+  private def condition(predicate: Predicate, field: StructField) = {
+    val column = functions.col(field.name)
+    val values = predicate.values.map(value => literal(predicate.column, value, field.dataType))
+    predicate.op match {
+      case EQ => column === values.head
+      case LT => column < values.head
+      case GT => column > values.head
+      case IN => column.isin(values: _*)
+    }
+  }
+
+  // A predicate value as the type of the Parquet column, e.g. a yyyymmdd date as a string or a Date.
+  private def literal(column: Column, value: Any, dataType: DataType): Any = (column.kind, dataType) match {
+    case (DATE, DateType) => java.sql.Date.valueOf(formatDate(value.asInstanceOf[Int]))
+    case (DATE, StringType) => formatDate(value.asInstanceOf[Int])
+    case _ => value
+  }
+}
+
+/** Fills column batches of a projection, one partition at a time. */
+private final class ColumnBatchBuilder(projection: Array[Column], predicates: Array[Predicate],
+                                       types: Array[DataType] = Array.empty) {
+  private val capacity = 4096
+  private val width = projection.last.index + 1
+  private var columns: Array[AnyRef] = _
+
+  private def allocate(): Unit = {
+    columns = new Array[AnyRef](width)
+    for (column <- projection) {
+      columns(column.index) = column.kind match {
+        case INT | DATE => new Array[Int](capacity)
+        case DOUBLE => new Array[Double](capacity)
+        case STRING => new Array[String](capacity)
+      }
+    }
+  }
+
+  private def accepts(row: Int): Boolean = {
+    var p = 0
+    while (p < predicates.length) {
+      if (!predicates(p).test(columns, row)) return false
+      p += 1
+    }
+    true
+  }
+
+  /** Rows that fail the predicates are overwritten by the next record. */
+  def batches[T](records: Iterator[T], fill: (T, Int) => Unit): Iterator[ColumnBatch] = new Iterator[ColumnBatch] {
+    private var batch: ColumnBatch = _
+
+    def hasNext: Boolean = {
+      while (batch == null && records.hasNext) {
+        allocate()
+        var size = 0
+        while (size < capacity && records.hasNext) {
+          fill(records.next(), size)
+          if (accepts(size)) size += 1
+        }
+        if (size > 0) batch = new ColumnBatch(size, columns)
+      }
+      batch != null
+    }
+
+    def next(): ColumnBatch = {
+      if (!hasNext) throw new NoSuchElementException
+      val out = batch
+      batch = null
+      out
+    }
+  }
+
+  /** Parses the projected fields of a '|'-separated line into row `row`, without splitting the line. */
+  def parse(line: String, row: Int): Unit = {
+    var start = 0
+    var field = 0
+    var p = 0
+    while (p < projection.length) {
+      var end = line.indexOf('|', start)
+      if (end < 0) end = line.length
+      val column = projection(p)
+      if (field == column.index) {
+        column.kind match {
+          case INT => columns(field).asInstanceOf[Array[Int]](row) = parseInt(line, start, end)
+          case DATE => columns(field).asInstanceOf[Array[Int]](row) = parseDate(line, start, end)
+          case DOUBLE => columns(field).asInstanceOf[Array[Double]](row) = parseDouble(line, start, end)
+          case STRING => columns(field).asInstanceOf[Array[String]](row) = line.substring(start, end)
+        }
+        p += 1
+      }
+      field += 1
+      start = end + 1
+    }
+  }
+
+  /** Copies a row of the projected columns, in projection order and of Spark types `types`, into row `row`. */
+  def set(record: InternalRow, row: Int): Unit = {
+    var p = 0
+    while (p < projection.length) {
+      val column = projection(p)
+      column.kind match {
+        case INT | DATE =>
+          val value = types(p) match {
+            case IntegerType => record.getInt(p)
+            case LongType => record.getLong(p).toInt
+            case ShortType => record.getShort(p).toInt
+            case DateType => epochDayToDate(record.getInt(p))
+            case d: DecimalType => record.getDecimal(p, d.precision, d.scale).toInt
+            case StringType =>
+              val s = record.getUTF8String(p).toString
+              if (column.kind == DATE) Tpch.date(s) else parseInt(s, 0, s.length)
+          }
+          columns(column.index).asInstanceOf[Array[Int]](row) = value
+        case DOUBLE =>
+          columns(column.index).asInstanceOf[Array[Double]](row) = types(p) match {
+            case DoubleType => record.getDouble(p)
+            case FloatType => record.getFloat(p).toDouble
+            case d: DecimalType => record.getDecimal(p, d.precision, d.scale).toDouble
+            case IntegerType => record.getInt(p).toDouble
+            case LongType => record.getLong(p).toDouble
+            case StringType =>
+              val s = record.getUTF8String(p).toString
+              parseDouble(s, 0, s.length)
+          }
+        case STRING =>
+          columns(column.index).asInstanceOf[Array[String]](row) = record.getUTF8String(p).toString
+      }
+      p += 1
+    }
+  }
+}
+
+/** Text input with one split per file, for reading a bucket as one partition. */
+class BucketInputFormat extends TextInputFormat {
+  override protected def isSplitable(fs: FileSystem, file: Path): Boolean = false
+}
@@ -0,0 +1,86 @@
+package coursework.Spark
+
+import io.bespin.scala.util.Tokenizer
+
+import scala.collection.mutable
+
+/**
+  * Shared steps of the bigram relative-frequency jobs.
+  */
+object Bigrams extends Tokenizer {
+  /** Bigram counts of a partition as stripes w1 -> {w2: count}, combined in a StripeBuffer. */
+  def stripes(lines: Iterator[String], maxEntries: Int): Iterator[(String, Stripe)] = {
+    val buffer = new StripeBuffer(maxEntries)
+    lines.flatMap(line => {
+      var previous: String = null
+      foreachToken(line) { token =>
+        if (previous != null) buffer.add(previous, token)
+        previous = token
+      }
+      buffer.flushIfFull()
+    }) ++ buffer.flush()
+  }
+
+  /**
+    * Trigram counts of a partition as stripes "w1 w2" -> {w3: count}. Tokens never contain spaces,
+    * so the prefix splits back into its two words.
+    */
+  def trigramStripes(lines: Iterator[String], maxEntries: Int): Iterator[(String, Stripe)] = {
+    val buffer = new StripeBuffer(maxEntries)
+    lines.flatMap(line => {
+      var first: String = null
+      var second: String = null
+      foreachToken(line) { token =>
+        if (first != null) buffer.add(first + " " + second, token)
+        first = second
+        second = token
+      }
+      buffer.flushIfFull()
+    }) ++ buffer.flush()
+  }
+
+  /** (successor, count / marginal) of a stripe, for the successors seen at least `minCount` times. */
+  def frequencies(stripe: Stripe, minCount: Int): List[(String, Float)] = {
+    var marginal = 0L
+    stripe.foreach((_, count) => marginal += count)
+    val out = List.newBuilder[(String, Float)]
+    stripe.foreach((word, count) => if (count >= minCount) out += ((word, count / marginal.toFloat)))
+    out.result()
+  }
+
+  /**
+    * Relative frequencies over bigram counts sorted by (w1, w2), all bigrams of w1 in one partition.
+    * The state is explicit: the successors of the current w1 are buffered until the next w1 starts,
+    * then ((w1, "*"), marginal) is emitted, followed by ((w1, w2), count / marginal) for each w2.
+    */
+  def relativeFrequencies(sorted: Iterator[((String, String), Int)]): Iterator[((String, String), Float)] = {
+    val records = sorted.buffered
+    val successors = new mutable.ArrayBuffer[String]
+    val counts = new mutable.ArrayBuffer[Int]
+
+    new Iterator[Iterator[((String, String), Float)]] {
+      def hasNext: Boolean = records.hasNext
+
+      def next(): Iterator[((String, String), Float)] = {
+        val word1 = records.head._1._1
+        successors.clear()
+        counts.clear()
+        var marginal = 0L
+        while (records.hasNext && records.head._1._1 == word1) {
+          val ((_, word2), count) = records.next()
+          // Partial counts of a bigram from different input partitions arrive next to each other.
+          if (successors.nonEmpty && successors.last == word2) {
+            counts(counts.length - 1) += count
+          } else {
+            successors += word2
+            counts += count
+          }
+          marginal += count
+        }
+        val total = marginal.toFloat
+        Iterator(((word1, "*"), total)) ++
+          successors.indices.iterator.map(i => ((word1, successors(i)), counts(i) / total))
+      }
+    }.flatten
+  }
+}
@@ -30,6 +30,7 @@ class Conf0(args: Seq[String]) extends ScallopConf(args) {
   val input = opt[String](descr = "input path", required = true)
   val output = opt[String](descr = "output path", required = true)
   val reducers = opt[Int](descr = "number of reducers", required = false, default = Some(1))
+  val stripeEntries = opt[Int](descr = "bigram counts a partition combines before it shuffles them", required = false, default = Some(4 * 1024 * 1024))
   verify()
 }
 
@@ -51,34 +52,27 @@ object ComputeBigramRelativeFrequencyPairs extends Tokenizer {
     log.info("Number of reducers: " + args.reducers())
 
     val conf = new SparkConf().setAppName("ComputeBigramRelativeFrequencyPairs")
+      .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+      .registerKryoClasses(Array(classOf[Stripe]))
     val sc = new SparkContext(conf)
 
     val outputDir = new Path(args.output())
     FileSystem.get(sc.hadoopConfiguration).delete(outputDir, true)
 
-    var marginal_count = 0.0f
     val partitioner = new MyPartition(args.reducers())
+    val maxEntries = args.stripeEntries()
 
+    // One shuffle of pre-aggregated bigram counts, without (w, "*") records: the marginals are summed
+    // after the sort, where all bigrams of w1 are adjacent.
     val textFile = sc.textFile(args.input())
     val relativeFrequencyPairs = textFile
-      .flatMap(line => {
-        val tokens = tokenize(line)
-        if (tokens.length > 1) {
-          val bigrams = tokens.sliding(2).toList
-          val wordCount = bigrams.map(bigram => List(bigram(0), "*"))
-          wordCount ++ bigrams
-        } else List()
+      .mapPartitions(lines => Bigrams.stripes(lines, maxEntries).flatMap { case (word1, stripe) =>
+        val pairs = new scala.collection.mutable.ArrayBuffer[((String, String), Int)](stripe.size)
+        stripe.foreach((word2, count) => pairs += (((word1, word2), count)))
+        pairs
       })
-      .map(bigram => ((bigram.head, bigram(1)), 1.0f))
-      .reduceByKey(partitioner, _ + _)
       .repartitionAndSortWithinPartitions(partitioner)
-      .map(bigram => bigram._1 match {
-        case (word, "*") => {
-          marginal_count = bigram._2
-          bigram
-        }
-        case (word1, word2) => (bigram._1, bigram._2 / marginal_count)
-      })
+      .mapPartitions(Bigrams.relativeFrequencies)
     relativeFrequencyPairs.saveAsTextFile(args.output())
   }
 }
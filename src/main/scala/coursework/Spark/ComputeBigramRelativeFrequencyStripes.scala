@@ -19,7 +19,7 @@ package coursework.Spark
 import io.bespin.scala.util.Tokenizer
 import org.apache.log4j._
 import org.apache.hadoop.fs._
-import org.apache.spark.{HashPartitioner, Partitioner, SparkConf, SparkContext}
+import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
 import org.apache.spark.rdd.RDD._
 import org.rogach.scallop._
 
@@ -28,6 +28,7 @@ class Conf1(args: Seq[String]) extends ScallopConf(args) {
   val input = opt[String](descr = "input path", required = true)
   val output = opt[String](descr = "output path", required = true)
   val reducers = opt[Int](descr = "number of reducers", required = false, default = Some(1))
+  val stripeEntries = opt[Int](descr = "stripe entries a partition combines before it shuffles them", required = false, default = Some(4 * 1024 * 1024))
   verify()
 }
 
@@ -42,31 +43,30 @@ object ComputeBigramRelativeFrequencyStripes extends Tokenizer {
     log.info("Number of reducers: " + args.reducers())
 
     val conf = new SparkConf().setAppName("ComputeBigramRelativeFrequencyStripes")
+      .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+      .registerKryoClasses(Array(classOf[Stripe]))
     val sc = new SparkContext(conf)
 
     val outputDir = new Path(args.output())
     FileSystem.get(sc.hadoopConfiguration).delete(outputDir, true)
 
+    val maxEntries = args.stripeEntries()
     val textFile = sc.textFile(args.input())
     val relativeFrequencyStripes = textFile
-      .flatMap(line => {
-        val tokens = tokenize(line)
-        if (tokens.length > 1) {
-          val bigrams = tokens.sliding(2).map(bigram => (bigram.head, Map((bigram(1), 1))))
-          bigrams.toList
-        } else List()
-      })
-      .reduceByKey(new HashPartitioner(args.reducers()), (map1, map2) => {
-        // Merge two maps and sum the values of common keys
-        map1 ++ map2.map {
-          // If a key exists in both maps, the value from the second map will be taken
-          case (k, v) => k -> (v + map1.getOrElse(k, 0))
-        }
-      })
-      .map(stripe => {
-        val marginal_count: Float = stripe._2.values.sum
-        (stripe._1, stripe._2.map { case (k, v) => k -> v / marginal_count })
-    })
+      .mapPartitions(lines => Bigrams.stripes(lines, maxEntries))
+      .combineByKey(
+        (stripe: Stripe) => stripe,
+        (merged: Stripe, stripe: Stripe) => merged.merge(stripe),
+        (merged1: Stripe, merged2: Stripe) => merged1.merge(merged2),
+        new HashPartitioner(args.reducers()),
+        mapSideCombine = false)
+      .map { case (word1, stripe) =>
+        var marginal = 0L
+        stripe.foreach((_, count) => marginal += count)
+        val frequencies = Map.newBuilder[String, Float]
+        stripe.foreach((word2, count) => frequencies += ((word2, count / marginal.toFloat)))
+        (word1, frequencies.result())
+      }
     relativeFrequencyStripes.saveAsTextFile(args.output())
   }
 }
@@ -0,0 +1,112 @@
+package coursework.Spark
+
+import java.io.File
+
+import coursework.LanguageModel.NGramModelWriter
+import org.apache.hadoop.fs._
+import org.apache.log4j._
+import org.apache.spark.rdd.RDD
+import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
+import org.rogach.scallop._
+
+import scala.collection.mutable
+
+class Conf4(args: Seq[String]) extends ScallopConf(args) {
+  mainOptions = Seq(input, output, reducers, trigrams)
+  val input = opt[String](descr = "input path", required = true)
+  val output = opt[String](descr = "model file", required = true)
+  val reducers = opt[Int](descr = "number of reducers", required = false, default = Some(1))
+  val trigrams = opt[Boolean](descr = "also export trigram relative frequencies", required = false, default = Some(false))
+  val minCount = opt[Int](descr = "drop n-grams seen fewer times", required = false, default = Some(1))
+  val stripeEntries = opt[Int](descr = "stripe entries a partition combines before it shuffles them", required = false, default = Some(4 * 1024 * 1024))
+  verify()
+}
+
+/**
+  * Computes bigram (and with --trigrams, trigram) relative frequencies the way
+  * ComputeBigramRelativeFrequencyStripes does and writes them to one NGramModel file for
+  * memory-mapped lookups. The n-grams are sorted by the cluster and streamed to the driver a partition
+  * at a time, so only the term -> id map is held there.
+  */
+object ExportNGramModel {
+  val log = Logger.getLogger(getClass().getName())
+
+  def main(argv: Array[String]) {
+    val args = new Conf4(argv)
+
+    log.info("Input: " + args.input())
+    log.info("Output: " + args.output())
+    log.info("Number of reducers: " + args.reducers())
+    log.info("Trigrams: " + args.trigrams())
+    log.info("Min count: " + args.minCount())
+
+    val conf = new SparkConf().setAppName("ExportNGramModel")
+      .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+      .registerKryoClasses(Array(classOf[Stripe]))
+    val sc = new SparkContext(conf)
+
+    val maxEntries = args.stripeEntries()
+    val minCount = args.minCount()
+    val partitioner = new HashPartitioner(args.reducers())
+    val textFile = sc.textFile(args.input())
+
+    def relativeFrequencies(stripes: RDD[(String, Stripe)]): RDD[(String, String, Float)] = stripes
+      .combineByKey(
+        (stripe: Stripe) => stripe,
+        (merged: Stripe, stripe: Stripe) => merged.merge(stripe),
+        (merged1: Stripe, merged2: Stripe) => merged1.merge(merged2),
+        partitioner,
+        mapSideCombine = false)
+      .flatMap { case (prefix, stripe) =>
+        Bigrams.frequencies(stripe, minCount).map { case (word, p) => (prefix, word, p) }
+      }
+
+    val bigrams = relativeFrequencies(textFile.mapPartitions(lines => Bigrams.stripes(lines, maxEntries))).cache()
+
+    // A trigram's words all occur in bigrams seen at least as often, so the bigram words are the vocabulary.
+    // Term ids are ranks in String order, hence sorting n-grams by their words also sorts them by id.
+    val ids = new mutable.HashMap[String, Int]
+    val localFile = File.createTempFile("ngram-model-", ".bin")
+    val writer = new NGramModelWriter(localFile)
+    try {
+      bigrams.flatMap { case (word1, word2, _) => List(word1, word2) }
+        .distinct(args.reducers())
+        .sortBy(word => word, ascending = true, args.reducers())
+        .toLocalIterator
+        .foreach(word => ids(word) = writer.addTerm(word))
+      log.info("Terms: " + ids.size)
+
+      var numBigrams = 0L
+      bigrams.map { case (word1, word2, p) => ((word1, word2), p) }
+        .sortByKey(ascending = true, args.reducers())
+        .toLocalIterator
+        .foreach { case ((word1, word2), p) =>
+          writer.addBigram(ids(word1), ids(word2), p)
+          numBigrams += 1
+        }
+      log.info("Bigrams: " + numBigrams)
+
+      if (args.trigrams()) {
+        var numTrigrams = 0L
+        relativeFrequencies(textFile.mapPartitions(lines => Bigrams.trigramStripes(lines, maxEntries)))
+          .map { case (prefix, word3, p) =>
+            val space = prefix.indexOf(' ')
+            ((prefix.substring(0, space), prefix.substring(space + 1), word3), p)
+          }
+          .sortByKey(ascending = true, args.reducers())
+          .toLocalIterator
+          .foreach { case ((word1, word2, word3), p) =>
+            writer.addTrigram(ids(word1), ids(word2), ids(word3), p)
+            numTrigrams += 1
+          }
+        log.info("Trigrams: " + numTrigrams)
+      }
+      writer.close()
+
+      val fs = FileSystem.get(sc.hadoopConfiguration)
+      fs.copyFromLocalFile(true, true, new Path(localFile.getAbsolutePath), new Path(args.output()))
+    } finally {
+      localFile.delete()
+    }
+  }
+}
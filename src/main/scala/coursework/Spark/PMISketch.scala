@@ -0,0 +1,66 @@
+package coursework.Spark
+
+import coursework.MapReduce.CountMinSketch
+import io.bespin.scala.util.Tokenizer
+import org.apache.log4j.Logger
+import org.apache.spark.SparkContext
+import org.apache.spark.rdd.RDD
+
+/**
+  * Sketch mode of the Spark PMI jobs (--sketch), as in coursework.MapReduce.PMISketch: every partition
+  * sketches the counts of the unordered pairs on its lines, the sketches are summed, and the PMI job
+  * only shuffles pairs whose estimate clears the threshold. Estimates never undercount, so the output
+  * is exact.
+  */
+object PMISketch extends Tokenizer {
+  def build(lines: RDD[String], wordLimit: Int, depth: Int, width: Int, conservative: Boolean): CountMinSketch = {
+    lines
+      .mapPartitions(iter => {
+        val sketch = new CountMinSketch(depth, width, conservative)
+        iter.foreach(line => {
+          val hashes = wordHashes(tokenize(line, wordLimit).distinct)
+          for (i <- hashes.indices; j <- 0 until i) {
+            sketch.add(CountMinSketch.pairKey(hashes(j), hashes(i)), 1)
+          }
+        })
+        Iterator(sketch)
+      })
+      .treeReduce((sketch1, sketch2) => { sketch1.merge(sketch2); sketch1 })
+  }
+
+  def wordHashes(tokens: Seq[String]): Array[Long] = tokens.map(word => CountMinSketch.hash(word)).toArray
+}
+
+/**
+  * Error of the sketch against the exact counts of the candidates, gathered in accumulators while the
+  * PMI job runs. Retried tasks may count twice, which is fine for a report.
+  */
+class PMISketchReport(sc: SparkContext, threshold: Int) extends Serializable {
+  private val candidates = sc.longAccumulator("sketch candidate pairs")
+  private val falsePositives = sc.longAccumulator("sketch false positives")
+  private val verified = sc.longAccumulator("sketch pairs above threshold")
+  private val overestimate = sc.longAccumulator("sketch count overestimate")
+  private val pmiError = sc.doubleAccumulator("sketch PMI error")
+
+  // The marginals are exact, so the PMI of the estimate exceeds the exact PMI by log10(estimate / count).
+  def record(sketch: CountMinSketch, word1: String, word2: String, count: Int): Unit = {
+    candidates.add(1)
+    if (count < threshold) {
+      falsePositives.add(1)
+    } else {
+      val estimate = sketch.estimate(CountMinSketch.pairKey(word1, word2))
+      verified.add(1)
+      overestimate.add(estimate - count)
+      pmiError.add(math.log10(estimate.toDouble / count))
+    }
+  }
+
+  def log(log: Logger): Unit = {
+    val numVerified = math.max(1L, verified.value)
+    log.info("Sketch: candidate pairs " + candidates.value)
+    log.info(f"Sketch: false positives ${falsePositives.value} (${100.0 * falsePositives.value / math.max(1L, candidates.value)}%.2f%%)")
+    log.info("Sketch: pairs above threshold " + verified.value)
+    log.info(f"Sketch: mean count overestimate ${overestimate.value.toDouble / numVerified}%.3f")
+    log.info(f"Sketch: mean PMI error ${pmiError.value / numVerified}%.6f")
+  }
+}
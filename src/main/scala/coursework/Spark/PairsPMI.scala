@@ -1,5 +1,6 @@
 package coursework.Spark
 
+import coursework.MapReduce.CountMinSketch
 import io.bespin.scala.util.Tokenizer
 import org.apache.log4j._
 import org.apache.hadoop.fs._
@@ -15,6 +16,11 @@ class Conf2(args: Seq[String]) extends ScallopConf(args) {
   val output = opt[String](descr = "output path", required = true)
   val reducers = opt[Int](descr = "number of reducers", required = false, default = Some(1))
   val threshold = opt[Int](descr = "threshold of co-occurrence", required = false, default = Some(10))
+  val sketch = opt[Boolean](descr = "shuffle only the pairs whose count-min estimate clears the threshold", required = false, default = Some(false))
+  val sketchDepth = opt[Int](descr = "rows of the count-min sketch", required = false, default = Some(4))
+  val sketchWidth = opt[Int](descr = "counters per row of the count-min sketch", required = false, default = Some(1 << 20))
+  val conservative = opt[Boolean](descr = "use conservative update in the sketch", required = false, default = Some(false))
+  val window = opt[Int](descr = "pair each word with the last W distinct words of its line (0: all of the first 40 words)", required = false, default = Some(0))
   verify()
 }
 
@@ -35,6 +41,9 @@ object PairsPMI extends Tokenizer {
     log.info("Output: " + args.output())
     log.info("Number of reducers: " + args.reducers())
     log.info("Threshold of co-occurrence: " + args.threshold())
+    log.info("Sketch: " + (if (args.sketch()) args.sketchDepth() + " x " + args.sketchWidth() else "none"))
+    log.info("Window: " + (if (args.window() > 0) args.window() else "line"))
+    require(!(args.sketch() && args.window() > 0), "--sketch cannot be combined with --window")
 
 //    val startTime = System.currentTimeMillis()
 
@@ -48,26 +57,49 @@ object PairsPMI extends Tokenizer {
     val WORD_LIMIT = 40
     // Conf2 is not made Serializable. Using args._ in flatMap will make the task not serializable
     val threshold = args.threshold()
+    val window = args.window()
 
     val textFile = sc.textFile(args.input())
     val wordCountsRDD = textFile
-      .flatMap(line => List("*") ++ tokenize(line).take(WORD_LIMIT).distinct )
+      .flatMap(line =>
+        if (window > 0) WindowCooccurrence.wordCounts(line)
+        else List("*") ++ tokenize(line, WORD_LIMIT).distinct)
       .map(word => (word, 1))
       .reduceByKey(_+_)
 
     val wordCounts = sc.broadcast(wordCountsRDD.collectAsMap())
 
-    val pointWiseMutualInformation = textFile
+    val sketch = if (args.sketch()) {
+      Some(sc.broadcast(PMISketch.build(textFile, WORD_LIMIT, args.sketchDepth(), args.sketchWidth(), args.conservative())))
+    } else None
+    val report = new PMISketchReport(sc, threshold)
+
+    val cooccurrences = if (window > 0) {
+      textFile.mapPartitions(lines => WindowCooccurrence.pairs(lines, window))
+    } else textFile
       .flatMap(line => {
-        val tokens = tokenize(line).take(WORD_LIMIT).distinct
-        tokens.flatMap(word1 =>
-          tokens.map(word2 => (word1, word2)).filter { case (word1, word2) => !word1.equals(word2)}
-        )
+        val tokens = tokenize(line, WORD_LIMIT).distinct
+        sketch match {
+          case None =>
+            tokens.flatMap(word1 =>
+              tokens.map(word2 => (word1, word2)).filter { case (word1, word2) => !word1.equals(word2)}
+            )
+          case Some(s) =>
+            // Only candidate pairs are shuffled
+            val words = tokens.toArray
+            val hashes = PMISketch.wordHashes(words)
+            for (i <- words.indices; j <- words.indices
+                 if i != j && s.value.estimate(CountMinSketch.pairKey(hashes(i), hashes(j))) >= threshold)
+              yield (words(i), words(j))
+        }
       })
+
+    val pointWiseMutualInformation = cooccurrences
       .map(pair => (pair, 1))
       .reduceByKey(partitioner, _+_)
       .repartitionAndSortWithinPartitions(partitioner)
       .flatMap { case ((word1, word2), cnt) =>
+        sketch.foreach(s => report.record(s.value, word1, word2, cnt))
         if (cnt < threshold) Nil
         else {
           val numLine = wordCounts.value("*")
@@ -78,6 +110,7 @@ object PairsPMI extends Tokenizer {
         }
       }
     pointWiseMutualInformation.saveAsTextFile(args.output())
+    if (sketch.isDefined) report.log(log)
 //    val duration = (System.currentTimeMillis() - startTime) / 1000.0
 //    log.info(s"Job finished in $duration seconds")
   }
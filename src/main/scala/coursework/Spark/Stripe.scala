@@ -0,0 +1,111 @@
+package coursework.Spark
+
+import com.esotericsoftware.kryo.{Kryo, KryoSerializable}
+import com.esotericsoftware.kryo.io.{Input, Output}
+
+import scala.collection.mutable
+
+/**
+  * A mutable stripe of word -> count: open addressing over parallel String and Int arrays, so that
+  * merging stripes updates counts in place instead of building immutable maps of boxed tuples.
+  * Kryo writes only the entries.
+  */
+final class Stripe extends KryoSerializable with Serializable {
+  private var keys = new Array[String](8)
+  private var values = new Array[Int](8)
+  private var count = 0
+
+  def size: Int = count
+
+  def isEmpty: Boolean = count == 0
+
+  def increment(key: String, n: Int): Unit = {
+    var i = slot(key)
+    while (keys(i) != null && keys(i) != key) {
+      i = (i + 1) & (keys.length - 1)
+    }
+    if (keys(i) != null) {
+      values(i) += n
+    } else {
+      keys(i) = key
+      values(i) = n
+      count += 1
+      if (count * 2 > keys.length) {
+        rehash(keys.length * 2)
+      }
+    }
+  }
+
+  /** Adds the counts of `other` to this stripe and returns it. */
+  def merge(other: Stripe): Stripe = {
+    other.foreach((key, n) => increment(key, n))
+    this
+  }
+
+  def foreach(f: (String, Int) => Unit): Unit = {
+    var i = 0
+    while (i < keys.length) {
+      if (keys(i) != null) f(keys(i), values(i))
+      i += 1
+    }
+  }
+
+  private def slot(key: String): Int = {
+    val h = key.hashCode * 0x9E3779B9
+    (h ^ (h >>> 16)) & (keys.length - 1)
+  }
+
+  private def rehash(capacity: Int): Unit = {
+    val oldKeys = keys
+    val oldValues = values
+    keys = new Array[String](capacity)
+    values = new Array[Int](capacity)
+    count = 0
+    for (i <- oldKeys.indices if oldKeys(i) != null) increment(oldKeys(i), oldValues(i))
+  }
+
+  override def write(kryo: Kryo, output: Output): Unit = {
+    output.writeInt(count, true)
+    foreach((key, n) => {
+      output.writeString(key)
+      output.writeInt(n, true)
+    })
+  }
+
+  override def read(kryo: Kryo, input: Input): Unit = {
+    val n = input.readInt(true)
+    var capacity = 8
+    while (capacity < n * 2) capacity *= 2
+    keys = new Array[String](capacity)
+    values = new Array[Int](capacity)
+    count = 0
+    for (_ <- 0 until n) increment(input.readString(), input.readInt(true))
+  }
+}
+
+/**
+  * Stripes of one partition, pre-aggregated before the shuffle. Once they hold more than
+  * `maxEntries` entries, they are handed downstream and the buffer starts over, which bounds memory
+  * the way the combiners of the MapReduce StripesPMI do.
+  */
+final class StripeBuffer(maxEntries: Int) {
+  private val stripes = new mutable.HashMap[String, Stripe]
+  private var entries = 0L
+
+  def add(word1: String, word2: String): Unit = {
+    val stripe = stripes.getOrElseUpdate(word1, new Stripe)
+    val before = stripe.size
+    stripe.increment(word2, 1)
+    entries += stripe.size - before
+  }
+
+  /** The buffered stripes if the buffer is full, otherwise nothing. */
+  def flushIfFull(): Iterator[(String, Stripe)] = if (entries > maxEntries) flush() else Iterator.empty
+
+  def flush(): Iterator[(String, Stripe)] = {
+    val out = stripes.toList
+    stripes.clear()
+    entries = 0
+    out.iterator
+  }
+}
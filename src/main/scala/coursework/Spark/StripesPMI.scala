@@ -1,5 +1,6 @@
 package coursework.Spark
 
+import coursework.MapReduce.CountMinSketch
 import io.bespin.scala.util.Tokenizer
 import org.apache.log4j._
 import org.apache.hadoop.fs._
@@ -13,6 +14,12 @@ class Conf3(args: Seq[String]) extends ScallopConf(args) {
   val output = opt[String](descr = "output path", required = true)
   val reducers = opt[Int](descr = "number of reducers", required = false, default = Some(1))
   val threshold = opt[Int](descr = "threshold of co-occurrence", required = false, default = Some(10))
+  val sketch = opt[Boolean](descr = "shuffle only the pairs whose count-min estimate clears the threshold", required = false, default = Some(false))
+  val sketchDepth = opt[Int](descr = "rows of the count-min sketch", required = false, default = Some(4))
+  val sketchWidth = opt[Int](descr = "counters per row of the count-min sketch", required = false, default = Some(1 << 20))
+  val conservative = opt[Boolean](descr = "use conservative update in the sketch", required = false, default = Some(false))
+  val window = opt[Int](descr = "pair each word with the last W distinct words of its line (0: all of the first 40 words)", required = false, default = Some(0))
+  val stripeEntries = opt[Int](descr = "stripe entries a partition combines before it shuffles them", required = false, default = Some(4 * 1024 * 1024))
   verify()
 }
 
@@ -27,8 +34,13 @@ object StripesPMI extends Tokenizer {
     log.info("Output: " + args.output())
     log.info("Number of reducers: " + args.reducers())
     log.info("Threshold of co-occurrence: " + args.threshold())
+    log.info("Sketch: " + (if (args.sketch()) args.sketchDepth() + " x " + args.sketchWidth() else "none"))
+    log.info("Window: " + (if (args.window() > 0) args.window() else "line"))
+    require(!(args.sketch() && args.window() > 0), "--sketch cannot be combined with --window")
 
     val conf = new SparkConf().setAppName("StripesPMI")
+      .set("spark.serializer", "org.apache.spark.serializer.KryoSerializer")
+      .registerKryoClasses(Array(classOf[Stripe], classOf[CountMinSketch]))
     val sc = new SparkContext(conf)
 
     val outputDir = new Path(args.output())
@@ -37,48 +49,73 @@ object StripesPMI extends Tokenizer {
     val WORD_LIMIT = 40
     // Conf3 is not made Serializable. Using args._ in flatMap will make the task not serializable
     val threshold = args.threshold()
+    val window = args.window()
 
     val textFile = sc.textFile(args.input())
     val wordCountsRDD = textFile
-      .flatMap(line => List("*") ++ tokenize(line).take(WORD_LIMIT).distinct)
+      .flatMap(line =>
+        if (window > 0) WindowCooccurrence.wordCounts(line)
+        else List("*") ++ tokenize(line, WORD_LIMIT).distinct)
       .map(word => (word, 1))
       .reduceByKey(_+_)
 
     val wordCounts = sc.broadcast(wordCountsRDD.collectAsMap())
 
-    val pointWiseMutualInformation = textFile
-      .flatMap(line => {
-        val tokens = tokenize(line).take(WORD_LIMIT).distinct
-        tokens.flatMap(word1 =>
-          tokens.flatMap(word2 => if (word1 == word2) Nil else List((word1, Map((word2, 1)))))
-        )
-      })
-      .reduceByKey(new HashPartitioner(args.reducers()), (map1, map2) => {
-        // Merge two maps and sum the values of common keys
-        map1 ++ map2.map {
-          // If a key exists in both maps, the value from the second map will be taken
-          case (k, v) => k -> (v + map1.getOrElse(k, 0))
+    val sketch = if (args.sketch()) {
+      Some(sc.broadcast(PMISketch.build(textFile, WORD_LIMIT, args.sketchDepth(), args.sketchWidth(), args.conservative())))
+    } else None
+    val report = new PMISketchReport(sc, threshold)
+
+    val maxEntries = args.stripeEntries()
+    val stripes = textFile.mapPartitions(lines => {
+      // Stripes are summed per partition first; only what the buffer holds is shuffled.
+      val buffer = new StripeBuffer(maxEntries)
+      val windowPairs = if (window > 0) Some(new WindowCooccurrence(window)) else None
+      lines.flatMap(line => {
+        windowPairs match {
+          case Some(cooccurrences) => cooccurrences.foreachPair(line)(buffer.add)
+          case None =>
+            val words = tokenize(line, WORD_LIMIT).distinct.toArray
+            // In sketch mode, only candidate partners are shuffled
+            val candidate: (Int, Int) => Boolean = sketch match {
+              case None => (_, _) => true
+              case Some(s) =>
+                val hashes = PMISketch.wordHashes(words)
+                (i, j) => s.value.estimate(CountMinSketch.pairKey(hashes(i), hashes(j))) >= threshold
+            }
+            for (i <- words.indices; j <- words.indices if i != j && candidate(i, j)) {
+              buffer.add(words(i), words(j))
+            }
         }
-      })
-      .flatMap(stripe => {
-        val word1 = stripe._1
-        val wordMap = stripe._2
+        buffer.flushIfFull()
+      }) ++ buffer.flush()
+    })
+
+    val pointWiseMutualInformation = stripes
+      // Partitions have combined their stripes already, so there is no map-side combine; stripes
+      // from the shuffle are merged in place.
+      .combineByKey(
+        (stripe: Stripe) => stripe,
+        (merged: Stripe, stripe: Stripe) => merged.merge(stripe),
+        (merged1: Stripe, merged2: Stripe) => merged1.merge(merged2),
+        new HashPartitioner(args.reducers()),
+        mapSideCombine = false)
+      .flatMap { case (word1, stripe) =>
+        val numLine = wordCounts.value("*")
         val word1Occurrence = wordCounts.value(word1)
-        val newMap = wordMap.flatMap {case (word2, cnt) =>
-          if (cnt < threshold) Nil
-          else {
-            val numLine = wordCounts.value("*")
+        val pmis = Map.newBuilder[String, (Float, Int)]
+        stripe.foreach((word2, cnt) => {
+          sketch.foreach(s => report.record(s.value, word1, word2, cnt))
+          if (cnt >= threshold) {
             val word2Occurrence = wordCounts.value(word2)
             val PMI: Float = (math.log10(cnt * 1.0f * numLine / (word1Occurrence * word2Occurrence))).toFloat
-            List((word2, (PMI, cnt)))
+            pmis += ((word2, (PMI, cnt)))
           }
-        }
-        if (newMap.isEmpty) Nil
-        else {
-          val resMap : Map[String, (Float, Int)] = newMap
-          List((word1, resMap))
-        }
-      })
+        })
+        val resMap: Map[String, (Float, Int)] = pmis.result()
+        if (resMap.isEmpty) Nil else List((word1, resMap))
+      }
     pointWiseMutualInformation.saveAsTextFile(args.output())
+    if (sketch.isDefined) report.log(log)
   }
 }
@@ -0,0 +1,47 @@
+package coursework.Spark
+
+import coursework.MapReduce.CooccurrenceWindow
+import io.bespin.scala.util.Tokenizer
+
+import scala.collection.mutable
+
+/**
+  * Window mode of the Spark PMI jobs (--window W), on the engine of the MapReduce jobs: a word co-occurs
+  * with the last W distinct words before it on its line, and whole lines are read. Create one per
+  * partition; term ids are local to it.
+  */
+class WindowCooccurrence(width: Int) extends Tokenizer {
+  private val vocabulary = new CooccurrenceWindow.Vocabulary
+  private val window = new CooccurrenceWindow(width)
+
+  /** Calls `f` on both orientations of every co-occurrence on the line. */
+  def foreachPair(line: String)(f: (String, String) => Unit): Unit = {
+    window.reset()
+    foreachToken(line) { token =>
+      val id = vocabulary.id(token)
+      val word = vocabulary.word(id)
+      val n = window.add(id)
+      var i = 0
+      while (i < n) {
+        val partner = vocabulary.word(window.partner(i))
+        f(word, partner)
+        f(partner, word)
+        i += 1
+      }
+    }
+  }
+}
+
+object WindowCooccurrence extends Tokenizer {
+  /** Every token, plus "*" once per token: the marginals of window mode. */
+  def wordCounts(line: String): List[String] = tokenize(line).flatMap(word => List("*", word))
+
+  def pairs(lines: Iterator[String], width: Int): Iterator[(String, String)] = {
+    val cooccurrences = new WindowCooccurrence(width)
+    lines.flatMap(line => {
+      val out = new mutable.ArrayBuffer[(String, String)]
+      cooccurrences.foreachPair(line)((word1, word2) => out += ((word1, word2)))
+      out
+    })
+  }
+}
@@ -16,16 +16,73 @@
 
 package io.bespin.scala.util
 
-import java.util.StringTokenizer
-
-import scala.collection.JavaConverters._
+import scala.collection.mutable.ListBuffer
 
+/**
+ * Tokenizer so that we have a consistent definition of a "word": split on whitespace, lowercase, and
+ * strip non-letter prefixes and suffixes. Lines are scanned character by character; only tokens with
+ * non-ASCII characters go through the regex.
+ */
 trait Tokenizer {
-  def tokenize(s: String): List[String] = {
-    val pattern = """(^[^a-z]+|[^a-z]+$)""".r
+  def tokenize(s: String): List[String] = tokenize(s, Int.MaxValue)
+
+  /** The first `limit` tokens of `s`; the rest of the line is not scanned. */
+  def tokenize(s: String, limit: Int): List[String] = {
+    val tokens = new ListBuffer[String]
+    Tokenizer.scan(s, limit, token => tokens += token)
+    tokens.toList
+  }
+
+  /** Calls `f` on every token of `s` without building a collection. */
+  def foreachToken(s: String)(f: String => Unit): Unit = Tokenizer.scan(s, Int.MaxValue, f)
+}
+
+object Tokenizer {
+  private val pattern = """(^[^a-z]+|[^a-z]+$)""".r
+
+  // Same delimiters as java.util.StringTokenizer
+  private def isDelimiter(c: Char): Boolean = c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f'
+
+  // A letter after lowercasing
+  private def isLetter(c: Char): Boolean = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+
+  private def scan(s: String, limit: Int, f: String => Unit): Unit = {
+    val n = s.length
+    var i = 0
+    var count = 0
+    while (i < n && count < limit) {
+      while (i < n && isDelimiter(s.charAt(i))) i += 1
+      val start = i
+      var ascii = true
+      while (i < n && !isDelimiter(s.charAt(i))) {
+        if (s.charAt(i) >= 0x80) ascii = false
+        i += 1
+      }
+      if (start < i) {
+        // Unicode lowercasing can change which characters are letters, so keep the regex for those.
+        val token =
+          if (ascii) strip(s, start, i)
+          else pattern.replaceAllIn(s.substring(start, i).toLowerCase(), "")
+        if (token.length != 0) {
+          f(token)
+          count += 1
+        }
+      }
+    }
+  }
 
-    new StringTokenizer(s).asScala.toList
-      .map(t => pattern.replaceAllIn(t.asInstanceOf[String].toLowerCase(), ""))
-      .filter(_.length != 0)
+  private def strip(s: String, start: Int, end: Int): String = {
+    var lo = start
+    var hi = end
+    while (lo < hi && !isLetter(s.charAt(lo))) lo += 1
+    while (hi > lo && !isLetter(s.charAt(hi - 1))) hi -= 1
+    val chars = new Array[Char](hi - lo)
+    var j = 0
+    while (j < chars.length) {
+      val c = s.charAt(lo + j)
+      chars(j) = if (c >= 'A' && c <= 'Z') (c + ('a' - 'A')).toChar else c
+      j += 1
+    }
+    new String(chars)
   }
-}
\ No newline at end of file
+}